@@ -19,6 +19,7 @@ import org.opendedup.sdfs.io.MetaDataDedupFile;
 import org.opendedup.sdfs.notification.SDFSEvent;
 import org.opendedup.sdfs.servers.HCServiceProxy;
 import org.opendedup.util.RandomGUID;
+import org.opendedup.util.StringUtils;
 
 import fuse.Errno;
 import fuse.FuseException;
@@ -38,6 +39,7 @@ public class SDFSCmds {
 			"user.cmd.dedupAll", "user.cmd.optimize", "user.cmd.snapshot",
 			"user.cmd.vmdk.make", "user.cmd.ids.clearstatus",
 			"user.cmd.ids.status", "user.cmd.file.flush", "user.cmd.flush.all",
+			"user.cmd.chunksize",
 			"user.sdfs.file.isopen", "user.sdfs.ActualBytesWritten",
 			"user.sdfs.VirtualBytesWritten", "user.sdfs.BytesRead",
 			"user.sdfs.DuplicateData", "user.sdfs.fileGUID",
@@ -45,7 +47,7 @@ public class SDFSCmds {
 			"user.dse.maxsize" };
 
 	public static final String[] cmdDes = { "", "", "", "", "", "", "", "", "",
-			"", "", "", "", "", "", "", "", "", "" };
+			"", "", "", "", "", "", "", "", "", "", "" };
 
 	/*
 	 * public static final String[] cmdDes = {
@@ -231,6 +233,9 @@ public class SDFSCmds {
 			if (command.equalsIgnoreCase("user.cmd.flush.all")) {
 				status = flushAllCache();
 			}
+			if (command.equalsIgnoreCase("user.cmd.chunksize")) {
+				status = setChunkSize(path, args[1]);
+			}
 			cmdStatus.put(args[0], status + " cmd=" + command + " " + value);
 		}
 	}
@@ -298,6 +303,22 @@ public class SDFSCmds {
 		}
 	}
 
+	private String setChunkSize(String srcPath, String size) {
+		File f = new File(this.mountedVolume + File.separator + srcPath);
+		try {
+			MetaFileStore.getMF(f.getPath()).setChunkSize(
+					(int) StringUtils.parseSize(size));
+			return "SUCCESS Chunk Size: set chunk size of [" + srcPath
+					+ "] to [" + size + "]";
+		} catch (Exception e) {
+			log.error("ERROR Chunk Size Failed: unable to set chunk size of ["
+					+ srcPath + "] to [" + size + "] because :" + e.toString(),
+					e);
+			return "ERROR Chunk Size Failed: unable to set chunk size of ["
+					+ srcPath + "] to [" + size + "] because :" + e.toString();
+		}
+	}
+
 	private String takeSnapshot(String srcPath, String dstPath) {
 		File f = new File(this.mountedVolume + File.separator + srcPath);
 		File nf = new File(this.mountedVolume + File.separator + dstPath);
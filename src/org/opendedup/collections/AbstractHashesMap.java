@@ -32,6 +32,16 @@ public interface AbstractHashesMap {
 	 */
 	public abstract boolean containsKey(byte[] key) throws IOException;
 
+	/**
+	 * Searches the set for several keys at once
+	 * 
+	 * @param keys
+	 *            the keys to look for
+	 * @return true for each key that was found
+	 * @throws IOException
+	 */
+	public abstract boolean[] containsKeys(byte[][] keys) throws IOException;
+
 	public abstract boolean put(ChunkData cm) throws IOException,
 			HashtableFullException;
 
@@ -34,6 +34,15 @@ public interface AbstractShard {
 	 */
 	public abstract boolean containsKey(byte[] key);
 
+	/**
+	 * Searches the set for several keys while holding the shard lock once
+	 * 
+	 * @param keys
+	 *            the keys to look for
+	 * @return true for each key that was found
+	 */
+	public abstract boolean[] containsKeys(byte[][] keys);
+
 	/**
 	 * Searches the set for <tt>obj</tt>
 	 * 
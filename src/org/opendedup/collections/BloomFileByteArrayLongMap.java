@@ -324,6 +324,19 @@ public class BloomFileByteArrayLongMap implements AbstractShard, Serializable {
 		}
 	}
 
+	@Override
+	public boolean[] containsKeys(byte[][] keys) {
+		boolean[] found = new boolean[keys.length];
+		this.hashlock.lock();
+		try {
+			for (int i = 0; i < keys.length; i++)
+				found[i] = this.containsKey(keys[i]);
+		} finally {
+			this.hashlock.unlock();
+		}
+		return found;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -250,6 +250,19 @@ public class FCByteArrayLongMap implements AbstractShard {
 		}
 	}
 
+	@Override
+	public boolean[] containsKeys(byte[][] keys) {
+		boolean[] found = new boolean[keys.length];
+		this.hashlock.lock();
+		try {
+			for (int i = 0; i < keys.length; i++)
+				found[i] = this.containsKey(keys[i]);
+		} finally {
+			this.hashlock.unlock();
+		}
+		return found;
+	}
+
 	/**
 	 * Searches the set for <tt>obj</tt>
 	 * 
@@ -61,15 +61,17 @@ public class FileBasedCSMap implements AbstractMap, AbstractHashesMap {
 
 	public AbstractShard getMap(byte[] hash) throws IOException {
 
+		AbstractShard m = maps[getRoute(hash)];
+
+		return m;
+	}
+
+	private static int getRoute(byte[] hash) {
 		int hashb = hash[2];
 		if (hashb < 0) {
 			hashb = ((hashb * -1) - 1);
 		}
-		int hashRoute = hashb;
-
-		AbstractShard m = maps[hashRoute];
-
-		return m;
+		return hashb;
 	}
 
 	@Override
@@ -226,6 +228,47 @@ public class FileBasedCSMap implements AbstractMap, AbstractHashesMap {
 		return this.getMap(key).containsKey(key);
 	}
 
+	/**
+	 * Searches the set for several keys. Keys are grouped by shard so each
+	 * shard is locked once for the whole batch.
+	 * 
+	 * @param keys
+	 *            the keys to look for
+	 * @return true for each key that was found
+	 * @throws IOException
+	 */
+	@Override
+	public boolean[] containsKeys(byte[][] keys) throws IOException {
+		if (this.isClosed()) {
+			throw new IOException("hashtable [" + this.fileName + "] is close");
+		}
+		boolean[] found = new boolean[keys.length];
+		int[] counts = new int[maps.length];
+		for (byte[] key : keys)
+			counts[getRoute(key)]++;
+		int[][] routes = new int[maps.length][];
+		for (int i = 0; i < maps.length; i++) {
+			if (counts[i] > 0)
+				routes[i] = new int[counts[i]];
+			counts[i] = 0;
+		}
+		for (int i = 0; i < keys.length; i++) {
+			int r = getRoute(keys[i]);
+			routes[r][counts[r]++] = i;
+		}
+		for (int i = 0; i < maps.length; i++) {
+			if (routes[i] == null)
+				continue;
+			byte[][] sk = new byte[routes[i].length][];
+			for (int z = 0; z < sk.length; z++)
+				sk[z] = keys[routes[i][z]];
+			boolean[] sf = maps[i].containsKeys(sk);
+			for (int z = 0; z < sf.length; z++)
+				found[routes[i][z]] = sf[z];
+		}
+		return found;
+	}
+
 	
 
 	@Override
@@ -49,6 +49,7 @@ public class LongByteArrayMap implements DataMapInterface {
 	private int arrayLength = _v1arrayLength;
 	private byte version = Main.MAPVERSION;
 	private byte[] FREE;
+	private int chunkSize = Main.CHUNK_LENGTH;
 	long flen = 0;
 
 	static {
@@ -67,6 +68,44 @@ public class LongByteArrayMap implements DataMapInterface {
 
 	}
 
+	/**
+	 * Opens a map and sets the logical chunk size if the map is created.
+	 * Existing maps keep the chunk size in their header.
+	 * 
+	 * @param filePath
+	 *            the path to the map
+	 * @param chunkSize
+	 *            the chunk size of a new map. Records of version 2 maps hold
+	 *            MAX_ELEMENTS_PER_AR fingers for each Main.CHUNK_LENGTH of the
+	 *            chunk size.
+	 * @throws IOException
+	 */
+	public LongByteArrayMap(String filePath, int chunkSize) throws IOException {
+		this.filePath = filePath;
+		if (chunkSize > 0)
+			this.chunkSize = chunkSize;
+		this.openFile();
+	}
+
+	/**
+	 * 
+	 * @return the logical chunk size of the file the map belongs to
+	 */
+	public int getChunkSize() {
+		return this.chunkSize;
+	}
+
+	/**
+	 * 
+	 * @param chunkSize
+	 *            the logical chunk size of a file
+	 * @return the number of fingers a version 2 record of the file holds
+	 */
+	public static int getMaxElements(int chunkSize) {
+		int n = (chunkSize + Main.CHUNK_LENGTH - 1) / Main.CHUNK_LENGTH;
+		return MAX_ELEMENTS_PER_AR * Math.max(n, 1);
+	}
+
 	public byte getVersion() {
 		return this.version;
 	}
@@ -120,7 +159,7 @@ public class LongByteArrayMap implements DataMapInterface {
 			while (_cpos < flen) {
 				try {
 					ByteBuffer buf = ByteBuffer.wrap(new byte[arrayLength]);
-					long pos = iterPos * Main.CHUNK_LENGTH;
+					long pos = iterPos * this.chunkSize;
 					pbdb.read(buf, _cpos);
 					byte[] val = buf.array();
 					iterPos++;
@@ -197,7 +236,7 @@ public class LongByteArrayMap implements DataMapInterface {
 					pbdb.read(buf, _cpos);
 					byte[] val = buf.array();
 					if (!Arrays.equals(val, FREE)) {
-						return new LongKeyValue(iterPos * Main.CHUNK_LENGTH,
+						return new LongKeyValue(iterPos * this.chunkSize,
 								val);
 					}
 				} finally {
@@ -243,9 +282,13 @@ public class LongByteArrayMap implements DataMapInterface {
 			this.arrayLength = _v1arrayLength;
 		}
 		if (version == 2) {
-			this.FREE = _V2FREE;
 			this.offset = _v2offset;
-			this.arrayLength = _v2arrayLength;
+			this.arrayLength = 1 + 4 + 4 + 4
+					+ (HashLocPair.BAL * getMaxElements(this.chunkSize));
+			if (this.arrayLength == _v2arrayLength)
+				this.FREE = _V2FREE;
+			else
+				this.FREE = new byte[this.arrayLength];
 		}
 	}
 
@@ -270,9 +313,12 @@ public class LongByteArrayMap implements DataMapInterface {
 					if (version > 0) {
 						// SDFSLogger.getLog().info("Writing version " +
 						// this.version);
-						ByteBuffer buf = ByteBuffer.allocate(3);
+						// chunk size 0 is the volume chunk size
+						ByteBuffer buf = ByteBuffer.allocate(7);
 						buf.putShort(magicnumber);
 						buf.put(this.version);
+						buf.putInt(this.chunkSize == Main.CHUNK_LENGTH ? 0
+								: this.chunkSize);
 						buf.position(0);
 						bdb.position(0);
 						bdb.write(buf);
@@ -287,14 +333,17 @@ public class LongByteArrayMap implements DataMapInterface {
 				rf = new RandomAccessFile(filePath, "rw");
 
 				pbdb = rf.getChannel();
-				ByteBuffer buf = ByteBuffer.allocate(3);
+				ByteBuffer buf = ByteBuffer.allocate(7);
 				pbdb.position(0);
 				pbdb.read(buf);
 				buf.position(0);
 				if (buf.getShort() == magicnumber) {
 					this.version = buf.get();
+					int cs = buf.getInt();
+					this.chunkSize = cs > 0 ? cs : Main.CHUNK_LENGTH;
 				} else {
 					this.version = 0;
+					this.chunkSize = Main.CHUNK_LENGTH;
 				}
 				this.intVersion();
 				// initiall allocate 32k
@@ -309,7 +358,7 @@ public class LongByteArrayMap implements DataMapInterface {
 	}
 
 	private long getMapFilePosition(long pos) throws IOException {
-		long propLen = ((pos / Main.CHUNK_LENGTH) * FREE.length) + this.offset;
+		long propLen = ((pos / this.chunkSize) * FREE.length) + this.offset;
 		return propLen;
 	}
 
@@ -323,11 +372,9 @@ public class LongByteArrayMap implements DataMapInterface {
 		if (this.isClosed()) {
 			throw new IOException("hashtable [" + this.filePath + "] is close");
 		}
-		/*
-		if (data.length != arrayLength)
+		if (data.length > arrayLength)
 			throw new IOException("data length " + data.length
-					+ " does not equal " + arrayLength);
-		*/
+					+ " is larger than " + arrayLength);
 		long fpos = 0;
 		fpos = this.getMapFilePosition(pos);
 
@@ -357,9 +404,9 @@ public class LongByteArrayMap implements DataMapInterface {
 	@Override
 	public synchronized void trim(long pos, int len) {
 
-		double spos = Math.ceil(((double) pos / (double) Main.CHUNK_LENGTH));
+		double spos = Math.ceil(((double) pos / (double) this.chunkSize));
 		long ep = pos + len;
-		double epos = Math.floor(((double) ep / (double) Main.CHUNK_LENGTH));
+		double epos = Math.floor(((double) ep / (double) this.chunkSize));
 		long ls = ((long) spos * (long) FREE.length) + (long) this.offset;
 		long es = ((long) epos * (long) FREE.length) + (long) this.offset;
 		if (es <= ls)
@@ -442,21 +489,12 @@ public class LongByteArrayMap implements DataMapInterface {
 			throw new IOException("hashtable [" + this.filePath + "] is close");
 		}
 		this.hashlock.lock();
-		long fpos = 0;
-		FileChannel _bdb = null;
 		try {
-			fpos = this.getMapFilePosition(pos);
-			_bdb = (FileChannel) Files.newByteChannel(bdbf,
-					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
-					StandardOpenOption.READ, StandardOpenOption.SPARSE);
-			_bdb.write(ByteBuffer.wrap(FREE), fpos);
+			long fpos = this.getMapFilePosition(pos);
+			pbdb.write(ByteBuffer.wrap(FREE), fpos);
 		} catch (Exception e) {
 			throw new IOException(e);
 		} finally {
-			try {
-				_bdb.close();
-			} catch (Exception e) {
-			}
 			this.hashlock.unlock();
 		}
 	}
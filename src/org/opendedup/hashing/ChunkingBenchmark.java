@@ -0,0 +1,113 @@
+package org.opendedup.hashing;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.opendedup.sdfs.Main;
+
+/**
+ * 
+ * @author Sam Silverberg Compares the rabin and FastCDC chunking engines. A
+ *         random data set and a copy of it with small inserts and deletes are
+ *         split into write buffers, each buffer is chunked and hashed the way
+ *         the write path does it and the throughput, chunk size distribution
+ *         and dedup ratio of each engine are printed.
+ * 
+ *         Usage: ChunkingBenchmark [data-size-mb] [edits] [iterations]
+ * 
+ */
+public class ChunkingBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int mb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int edits = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		Main.CHUNK_LENGTH = 128 * 1024;
+		VariableHashEngine.maxLen = Main.CHUNK_LENGTH;
+		Random r = new Random(VariableHashEngine.seed);
+		byte[] v1 = new byte[mb * 1024 * 1024];
+		r.nextBytes(v1);
+		byte[] v2 = edit(v1, edits, r);
+		System.out.println("data=" + mb + " MB edits=" + edits
+				+ " buffer-size=" + Main.CHUNK_LENGTH + " min=" + VariableHashEngine.minLen
+				+ " max=" + VariableHashEngine.maxLen + " avg="
+				+ FastCDCHashEngine.avgLen);
+		run("rabin", new VariableHashEngine(), v1, v2, iterations);
+		run("fastcdc", new FastCDCHashEngine(), v1, v2, iterations);
+	}
+
+	private static byte[] edit(byte[] src, int edits, Random r) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(src.length);
+		int pos = 0;
+		int stride = src.length / (edits + 1);
+		for (int i = 0; i < edits; i++) {
+			int next = pos + r.nextInt(stride) + 1;
+			out.write(src, pos, next - pos);
+			if (r.nextBoolean()) {
+				byte[] ins = new byte[r.nextInt(64) + 1];
+				r.nextBytes(ins);
+				out.write(ins, 0, ins.length);
+				pos = next;
+			} else {
+				pos = Math.min(src.length, next + r.nextInt(64) + 1);
+			}
+		}
+		out.write(src, pos, src.length - pos);
+		return out.toByteArray();
+	}
+
+	private static void run(String name, VariableHashEngine hc, byte[] v1,
+			byte[] v2, int iterations) throws Exception {
+		// warm up
+		chunk(hc, v1, null, null);
+		long bytes = 0;
+		long tm = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			bytes += chunk(hc, v1, null, null);
+		long ns = System.nanoTime() - tm;
+		long[] sizes = new long[3];
+		HashSet<ByteBuffer> unique = new HashSet<ByteBuffer>();
+		long[] uniqueBytes = new long[1];
+		chunk(hc, v1, sizes, unique, uniqueBytes);
+		chunk(hc, v2, sizes, unique, uniqueBytes);
+		double avg = (double) sizes[1] / sizes[0];
+		double sd = Math.sqrt(((double) sizes[2] / sizes[0]) - (avg * avg));
+		double mbs = (bytes / (1024D * 1024D)) / (ns / 1000000000D);
+		System.out.println(name + ": " + String.format("%.1f", mbs)
+				+ " MB/s chunks="
+				+ sizes[0] + " avg-size=" + (long) avg + " stddev="
+				+ (long) sd + " dedup-ratio="
+				+ String.format("%.3f", (double) sizes[1] / uniqueBytes[0]));
+	}
+
+	private static long chunk(VariableHashEngine hc, byte[] data, long[] sizes,
+			HashSet<ByteBuffer> unique) throws Exception {
+		return chunk(hc, data, sizes, unique, null);
+	}
+
+	private static long chunk(VariableHashEngine hc, byte[] data, long[] sizes,
+			HashSet<ByteBuffer> unique, long[] uniqueBytes) throws Exception {
+		long ct = 0;
+		for (int pos = 0; pos < data.length; pos += Main.CHUNK_LENGTH) {
+			int len = Math.min(Main.CHUNK_LENGTH, data.length - pos);
+			byte[] b = new byte[len];
+			System.arraycopy(data, pos, b, 0, len);
+			List<Finger> fs = hc.getChunks(b);
+			ct += len;
+			if (sizes == null)
+				continue;
+			for (Finger f : fs) {
+				sizes[0]++;
+				sizes[1] += f.len;
+				sizes[2] += (long) f.len * f.len;
+				if (unique.add(ByteBuffer.wrap(f.hash)))
+					uniqueBytes[0] += f.len;
+			}
+		}
+		return ct;
+	}
+
+}
@@ -0,0 +1,78 @@
+package org.opendedup.hashing;
+
+import java.util.concurrent.BlockingQueue;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.io.WritableCacheBuffer;
+
+/**
+ *
+ * @author Sam Silverberg The last stage of the write pipeline. Locks each
+ *         buffer in a batch, attaches the fingers found by the earlier stages
+ *         and closes it, which stores new chunks and updates the file map.
+ *         Buffers that were written to again since they were hashed are
+ *         skipped since they have been queued again.
+ *
+ */
+public class CommitThread implements AbstractPoolThread, Runnable {
+	private final BlockingQueue<WriteBatch> commitQueue;
+	private final ThreadPool pool;
+	private volatile boolean isStopped = false;
+	Thread th = null;
+
+	public CommitThread(BlockingQueue<WriteBatch> commitQueue, ThreadPool pool) {
+		this.commitQueue = commitQueue;
+		this.pool = pool;
+	}
+
+	@Override
+	public void run() {
+		while (!isStopped()) {
+			WriteBatch batch = null;
+			try {
+				batch = commitQueue.take();
+			} catch (InterruptedException e) {
+				if (isStopped())
+					break;
+				continue;
+			}
+			try {
+				for (int i = 0; i < batch.size(); i++) {
+					WritableCacheBuffer writeBuffer = batch.buffers.get(i);
+					if (!writeBuffer.startClose(batch.generations[i]))
+						continue;
+					try {
+						writeBuffer.setAR(batch.fingers.get(i));
+					} finally {
+						try {
+							writeBuffer.endClose();
+						} catch (Exception e) {
+							SDFSLogger.getLog().warn("unable to close block",
+									e);
+						}
+					}
+				}
+			} finally {
+				pool.complete(batch.size());
+			}
+		}
+	}
+
+	@Override
+	public void start() {
+		th = new Thread(this);
+		th.start();
+	}
+
+	@Override
+	public void exit() {
+		isStopped = true;
+		th.interrupt();
+	}
+
+	@Override
+	public boolean isStopped() {
+		return isStopped;
+	}
+
+}
@@ -0,0 +1,135 @@
+package org.opendedup.hashing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 
+ * @author Sam Silverberg Variable length chunking using FastCDC. Boundaries
+ *         are found with a gear hash, which costs a shift and an add per
+ *         byte, instead of a rabin fingerprint. The first minLen bytes of a
+ *         chunk are skipped and a stricter mask is used until the chunk
+ *         reaches avgLen and a looser one after it (normalized chunking),
+ *         which keeps chunk sizes close to avgLen. All the boundaries in a
+ *         buffer are found first and the chunks are then hashed in place in
+ *         one batch.
+ * 
+ *         The gear table and masks decide where chunks are cut, so changing
+ *         them stops new data from deduplicating against data already
+ *         stored.
+ * 
+ */
+public class FastCDCHashEngine extends VariableHashEngine {
+	public static int avgLen = 8 * 1024;
+	private static final long[] GEAR = new long[256];
+	private static final int NORMALIZATION = 2;
+	private final long maskS;
+	private final long maskL;
+	private final FastMurmur3HashEngine hc = new FastMurmur3HashEngine();
+
+	static {
+		Random r = new Random(seed);
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = r.nextLong();
+	}
+
+	public FastCDCHashEngine() {
+		super(false);
+		int bits = 31 - Integer.numberOfLeadingZeros(avgLen);
+		this.maskS = mask(bits + NORMALIZATION);
+		this.maskL = mask(bits - NORMALIZATION);
+	}
+
+	/*
+	 * Uses the high bits of the gear hash since they depend on the most bytes.
+	 */
+	private static long mask(int bits) {
+		return ((1L << bits) - 1) << (64 - bits);
+	}
+
+	/**
+	 * 
+	 * @param data
+	 *            the buffer to chunk
+	 * @param off
+	 *            the start of the next chunk
+	 * @param end
+	 *            the end of the data in the buffer
+	 * @return the end of the next chunk
+	 */
+	public int cut(byte[] data, int off, int end) {
+		int n = end - off;
+		if (n <= minLen)
+			return end;
+		if (n > maxLen)
+			n = maxLen;
+		int normal = avgLen < n ? avgLen : n;
+		long fp = 0;
+		int i = off + minLen;
+		int ns = off + normal;
+		int ne = off + n;
+		for (; i < ns; i++) {
+			fp = (fp << 1) + GEAR[data[i] & 0xff];
+			if ((fp & maskS) == 0)
+				return i + 1;
+		}
+		for (; i < ne; i++) {
+			fp = (fp << 1) + GEAR[data[i] & 0xff];
+			if ((fp & maskL) == 0)
+				return i + 1;
+		}
+		return ne;
+	}
+
+	@Override
+	public List<Finger> getChunks(byte[] data) throws IOException {
+		return this.getChunks(data, 0, data.length);
+	}
+
+	/**
+	 * Chunks and hashes part of a buffer.
+	 * 
+	 * @param data
+	 *            the buffer to chunk
+	 * @param off
+	 *            where to start in the buffer
+	 * @param len
+	 *            the number of bytes to chunk
+	 * @return the chunks found
+	 */
+	public List<Finger> getChunks(byte[] data, int off, int len) {
+		int end = off + len;
+		// every chunk but the last is longer than minLen
+		int[] offs = new int[len / minLen + 1];
+		int[] lens = new int[offs.length];
+		int n = 0;
+		int start = off;
+		while (start < end) {
+			int ce = this.cut(data, start, end);
+			offs[n] = start;
+			lens[n] = ce - start;
+			n++;
+			start = ce;
+		}
+		byte[] hashes = new byte[n * 16];
+		this.hc.getHashes(data, offs, lens, n, hashes);
+		ArrayList<Finger> al = new ArrayList<Finger>(n);
+		for (int i = 0; i < n; i++) {
+			Finger f = new Finger();
+			f.hash = Arrays.copyOfRange(hashes, i * 16, (i + 1) * 16);
+			f.start = offs[i] - off;
+			f.len = lens[i];
+			// chunks outlive the source buffer so the body is copied once
+			if (offs[i] == 0 && lens[i] == data.length)
+				f.chunk = data;
+			else
+				f.chunk = Arrays.copyOfRange(data, offs[i], offs[i] + lens[i]);
+			al.add(f);
+		}
+		return al;
+	}
+
+}
@@ -0,0 +1,177 @@
+package org.opendedup.hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.opendedup.sdfs.Main;
+
+/**
+ *
+ * @author Sam Silverberg MurmurHash3 x64 128 bit hash that writes into a
+ *         caller provided array. Hashes are the same as Murmur3HashEngine
+ *         (Guava's murmur3_128 with the same seed) so a volume can be moved
+ *         between the two, but nothing is allocated per call and the input is
+ *         read a long at a time instead of through a streaming hasher.
+ *
+ *         getHashes hashes many slices of one buffer in a single call, which
+ *         is how the variable length engines hash the chunks of a write
+ *         buffer.
+ *
+ */
+public class FastMurmur3HashEngine implements AbstractHashEngine {
+
+	public static final int seed = Murmur3HashEngine.seed;
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	public FastMurmur3HashEngine() {
+	}
+
+	@Override
+	public byte[] getHash(byte[] data) {
+		byte[] hash = new byte[16];
+		hash(data, 0, data.length, hash, 0);
+		return hash;
+	}
+
+	/**
+	 * Hashes part of a buffer into out.
+	 */
+	public void getHash(byte[] data, int off, int len, byte[] out, int outOff) {
+		hash(data, off, len, out, outOff);
+	}
+
+	/**
+	 * Hashes count slices of a buffer. The hash of slice i is written to out
+	 * at i * 16.
+	 *
+	 * @param data
+	 *            the buffer
+	 * @param offs
+	 *            the start of each slice
+	 * @param lens
+	 *            the length of each slice
+	 * @param count
+	 *            the number of slices
+	 * @param out
+	 *            at least count * 16 bytes
+	 */
+	public void getHashes(byte[] data, int[] offs, int[] lens, int count,
+			byte[] out) {
+		ByteBuffer bb = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer ob = ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < count; i++)
+			hash(bb, offs[i], lens[i], ob, i * 16);
+	}
+
+	public static void hash(byte[] data, int off, int len, byte[] out,
+			int outOff) {
+		hash(ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN), off, len,
+				ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN), outOff);
+	}
+
+	private static void hash(ByteBuffer bb, int off, int len, ByteBuffer out,
+			int outOff) {
+		long h1 = seed;
+		long h2 = seed;
+		int end = off + (len & ~15);
+		for (int i = off; i < end; i += 16) {
+			h1 ^= mixK1(bb.getLong(i));
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+			h2 ^= mixK2(bb.getLong(i + 8));
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+		long k1 = 0;
+		long k2 = 0;
+		switch (len & 15) {
+		case 15:
+			k2 ^= (long) (bb.get(end + 14) & 0xff) << 48;
+		case 14:
+			k2 ^= (long) (bb.get(end + 13) & 0xff) << 40;
+		case 13:
+			k2 ^= (long) (bb.get(end + 12) & 0xff) << 32;
+		case 12:
+			k2 ^= (long) (bb.get(end + 11) & 0xff) << 24;
+		case 11:
+			k2 ^= (long) (bb.get(end + 10) & 0xff) << 16;
+		case 10:
+			k2 ^= (long) (bb.get(end + 9) & 0xff) << 8;
+		case 9:
+			k2 ^= (long) (bb.get(end + 8) & 0xff);
+		case 8:
+			k1 ^= bb.getLong(end);
+			break;
+		case 7:
+			k1 ^= (long) (bb.get(end + 6) & 0xff) << 48;
+		case 6:
+			k1 ^= (long) (bb.get(end + 5) & 0xff) << 40;
+		case 5:
+			k1 ^= (long) (bb.get(end + 4) & 0xff) << 32;
+		case 4:
+			k1 ^= (long) (bb.get(end + 3) & 0xff) << 24;
+		case 3:
+			k1 ^= (long) (bb.get(end + 2) & 0xff) << 16;
+		case 2:
+			k1 ^= (long) (bb.get(end + 1) & 0xff) << 8;
+		case 1:
+			k1 ^= (long) (bb.get(end) & 0xff);
+		}
+		h1 ^= mixK1(k1);
+		h2 ^= mixK2(k2);
+		h1 ^= len;
+		h2 ^= len;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix64(h1);
+		h2 = fmix64(h2);
+		h1 += h2;
+		h2 += h1;
+		out.putLong(outOff, h1);
+		out.putLong(outOff + 8, h2);
+	}
+
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		k1 *= C2;
+		return k1;
+	}
+
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		k2 *= C1;
+		return k2;
+	}
+
+	private static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	public static int getHashLenth() {
+		return 16;
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	@Override
+	public boolean isVariableLength() {
+		return false;
+	}
+
+	@Override
+	public int getMaxLen() {
+		return Main.CHUNK_LENGTH;
+	}
+}
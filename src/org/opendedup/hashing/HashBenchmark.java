@@ -0,0 +1,119 @@
+package org.opendedup.hashing;
+
+import java.util.Random;
+
+import org.opendedup.sdfs.Main;
+
+/**
+ *
+ * @author Sam Silverberg Compares the hash engines. Each engine hashes the
+ *         same random chunks the way the write path does and the throughput
+ *         and time per chunk are printed. The fixed length engines hash a copy
+ *         of each chunk, the variable length engines hash the chunks in place
+ *         and murmur3_128_fast is run both one chunk at a time and as a batch.
+ *         Engines whose libraries are not on the classpath are skipped.
+ *
+ *         Usage: HashBenchmark [chunk-size-kb] [data-size-mb] [iterations]
+ *
+ */
+public class HashBenchmark {
+
+	private interface Run {
+		public abstract void run(byte[] data, int[] offs, int[] lens, int n);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int kb = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int mb = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		Main.CHUNK_LENGTH = 128 * 1024;
+		Random r = new Random(VariableHashEngine.seed);
+		byte[] data = new byte[mb * 1024 * 1024];
+		r.nextBytes(data);
+		// chunk sizes vary by up to half a chunk like variable length chunks
+		int len = kb * 1024;
+		int n = 0;
+		int[] offs = new int[data.length / (len / 2) + 1];
+		int[] lens = new int[offs.length];
+		for (int pos = 0; pos < data.length; n++) {
+			offs[n] = pos;
+			lens[n] = Math.min(len / 2 + r.nextInt(len), data.length - pos);
+			pos += lens[n];
+		}
+		System.out.println("data=" + mb + " MB chunks=" + n + " avg-size="
+				+ (data.length / n));
+		run("tiger16", copy(HashFunctionPool.TIGER_16), data, offs, lens, n,
+				iterations);
+		run("tiger24", copy(HashFunctionPool.TIGER_24), data, offs, lens, n,
+				iterations);
+		run("murmur3_128", copy(HashFunctionPool.MURMUR3_16), data, offs,
+				lens, n, iterations);
+		run("murmur3_128_fast", copy(HashFunctionPool.MURMUR3_16_FAST), data,
+				offs, lens, n, iterations);
+		final FastMurmur3HashEngine fm = new FastMurmur3HashEngine();
+		run("murmur3_128_fast in place", new Run() {
+			private final byte[] out = new byte[16];
+
+			@Override
+			public void run(byte[] data, int[] offs, int[] lens, int n) {
+				for (int i = 0; i < n; i++)
+					fm.getHash(data, offs[i], lens[i], out, 0);
+			}
+		}, data, offs, lens, n, iterations);
+		run("murmur3_128_fast batch", new Run() {
+			@Override
+			public void run(byte[] data, int[] offs, int[] lens, int n) {
+				fm.getHashes(data, offs, lens, n, new byte[n * 16]);
+			}
+		}, data, offs, lens, n, iterations);
+		final VariableHashEngine ve = new FastCDCHashEngine();
+		run("variable", new Run() {
+			@Override
+			public void run(byte[] data, int[] offs, int[] lens, int n) {
+				for (int i = 0; i < n; i++)
+					ve.getHash(data, offs[i], lens[i]);
+			}
+		}, data, offs, lens, n, iterations);
+	}
+
+	private static Run copy(String type) {
+		final AbstractHashEngine hc;
+		String ht = Main.hashType;
+		try {
+			Main.hashType = type;
+			hc = HashFunctionPool.getHashEngine();
+		} catch (Throwable e) {
+			System.out.println(type + ": unavailable " + e);
+			return null;
+		} finally {
+			Main.hashType = ht;
+		}
+		return new Run() {
+			@Override
+			public void run(byte[] data, int[] offs, int[] lens, int n) {
+				for (int i = 0; i < n; i++) {
+					byte[] b = new byte[lens[i]];
+					System.arraycopy(data, offs[i], b, 0, b.length);
+					hc.getHash(b);
+				}
+			}
+		};
+	}
+
+	private static void run(String name, Run run, byte[] data, int[] offs,
+			int[] lens, int n, int iterations) {
+		if (run == null)
+			return;
+		// warm up
+		run.run(data, offs, lens, n);
+		long tm = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			run.run(data, offs, lens, n);
+		long ns = System.nanoTime() - tm;
+		double mbs = ((double) data.length * iterations / (1024D * 1024D))
+				/ (ns / 1000000000D);
+		System.out.println(name + ": " + String.format("%.1f", mbs)
+				+ " MB/s " + (ns / ((long) n * iterations)) + " ns/chunk");
+	}
+
+}
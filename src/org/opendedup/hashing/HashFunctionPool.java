@@ -15,7 +15,9 @@ public class HashFunctionPool {
 	public static final String TIGER_16 = "tiger16";
 	public static final String TIGER_24 = "tiger24";
 	public static final String MURMUR3_16 = "murmur3_128";
+	public static final String MURMUR3_16_FAST = "murmur3_128_fast";
 	public static final String VARIABLE_MURMUR3 = "VARIABLE_MURMUR3";
+	public static final String VARIABLE_FASTCDC = "VARIABLE_FASTCDC";
 	public static int hashLength = 16;
 	public static int max_hash_cluster = 1;
 	//public static int min_page_size = Main.CHUNK_LENGTH;
@@ -28,10 +30,16 @@ public class HashFunctionPool {
 			hashLength = TigerHashEngine.getHashLenth();
 		} else if (Main.hashType.equalsIgnoreCase(MURMUR3_16)) {
 			hashLength = Murmur3HashEngine.getHashLenth();
+		} else if (Main.hashType.equalsIgnoreCase(MURMUR3_16_FAST)) {
+			hashLength = FastMurmur3HashEngine.getHashLenth();
 		} else if (Main.hashType.equalsIgnoreCase(VARIABLE_MURMUR3)) {
 			hashLength = VariableHashEngine.getHashLenth();
 			Main.MAPVERSION = 2;
 			max_hash_cluster = VariableHashEngine.getMaxCluster();
+		} else if (Main.hashType.equalsIgnoreCase(VARIABLE_FASTCDC)) {
+			hashLength = FastCDCHashEngine.getHashLenth();
+			Main.MAPVERSION = 2;
+			max_hash_cluster = FastCDCHashEngine.getMaxCluster();
 		}
 	}
 
@@ -92,8 +100,12 @@ public class HashFunctionPool {
 			hc = new TigerHashEngine();
 		} else if (Main.hashType.equalsIgnoreCase(MURMUR3_16)) {
 			hc = new Murmur3HashEngine();
+		} else if (Main.hashType.equalsIgnoreCase(MURMUR3_16_FAST)) {
+			hc = new FastMurmur3HashEngine();
 		} else if (Main.hashType.equalsIgnoreCase("VARIABLE_MURMUR3")) {
 			hc = new VariableHashEngine();
+		} else if (Main.hashType.equalsIgnoreCase(VARIABLE_FASTCDC)) {
+			hc = new FastCDCHashEngine();
 		}
 		return hc;
 	}
@@ -0,0 +1,73 @@
+package org.opendedup.hashing;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.io.HashLocPair;
+import org.opendedup.sdfs.servers.HCServiceProxy;
+
+/**
+ *
+ * @author Sam Silverberg The second stage of the write pipeline. Looks up
+ *         every hash in a batch with a single request to the DSE and passes
+ *         the batch on to the commit stage. If the lookup fails the batch is
+ *         still committed and its chunks are written without the lookup.
+ *         Files that have stopped deduping stage their buffers instead, see
+ *         IOMonitor.addDedupSample.
+ *
+ */
+public class LookupThread implements AbstractPoolThread, Runnable {
+	private final BlockingQueue<WriteBatch> lookupQueue;
+	private final BlockingQueue<WriteBatch> commitQueue;
+	private volatile boolean isStopped = false;
+	Thread th = null;
+
+	public LookupThread(BlockingQueue<WriteBatch> lookupQueue,
+			BlockingQueue<WriteBatch> commitQueue) {
+		this.lookupQueue = lookupQueue;
+		this.commitQueue = commitQueue;
+	}
+
+	@Override
+	public void run() {
+		while (!isStopped()) {
+			try {
+				WriteBatch batch = lookupQueue.take();
+				try {
+					List<HashLocPair> ar = batch.getLookupFingers();
+					if (ar.size() > 0)
+						HCServiceProxy.batchHashExists(ar);
+				} catch (Exception e) {
+					SDFSLogger.getLog().warn(
+							"unable to look up batch of " + batch.size()
+									+ " buffers", e);
+				}
+				commitQueue.put(batch);
+			} catch (InterruptedException e) {
+				if (isStopped())
+					break;
+			} catch (Exception e) {
+				SDFSLogger.getLog().fatal("unable to execute thread", e);
+			}
+		}
+	}
+
+	@Override
+	public void start() {
+		th = new Thread(this);
+		th.start();
+	}
+
+	@Override
+	public void exit() {
+		isStopped = true;
+		th.interrupt();
+	}
+
+	@Override
+	public boolean isStopped() {
+		return isStopped;
+	}
+
+}
@@ -1,5 +1,6 @@
 package org.opendedup.hashing;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 import java.util.List;
@@ -13,11 +14,22 @@ import org.opendedup.sdfs.io.BufferClosedException;
 import org.opendedup.sdfs.io.HashLocPair;
 import org.opendedup.sdfs.io.SparseDedupFile;
 import org.opendedup.sdfs.io.WritableCacheBuffer;
-import org.opendedup.sdfs.servers.HCServiceProxy;
-
+import org.opendedup.util.ByteUtils;
+
+/**
+ *
+ * @author Sam Silverberg The first stage of the write pipeline. Blocks until
+ *         write buffers are queued, takes as many as are waiting up to the
+ *         batch size, chunks and hashes a copy of each and hands the batch to
+ *         the lookup stage. When the lookup stage is full this blocks, which
+ *         in turn blocks writers once the task queue fills.
+ *
+ */
 public class PoolThread implements AbstractPoolThread, Runnable {
 
 	private BlockingQueue<WritableCacheBuffer> taskQueue = null;
+	private BlockingQueue<WriteBatch> lookupQueue = null;
+	private ThreadPool pool = null;
 	private boolean isStopped = false;
 	private static int maxTasks = ((Main.maxWriteBuffers * 1024 * 1024) / (Main.CHUNK_LENGTH)) + 1;
 	// private static final int maxTasks = 40;
@@ -31,8 +43,11 @@ public class PoolThread implements AbstractPoolThread, Runnable {
 		SDFSLogger.getLog().info("Pool List Size will be " + maxTasks);
 	}
 
-	public PoolThread(BlockingQueue<WritableCacheBuffer> queue) {
-		taskQueue = queue;
+	public PoolThread(BlockingQueue<WritableCacheBuffer> queue,
+			BlockingQueue<WriteBatch> lookupQueue, ThreadPool pool) {
+		this.taskQueue = queue;
+		this.lookupQueue = lookupQueue;
+		this.pool = pool;
 	}
 
 	@Override
@@ -40,107 +55,81 @@ public class PoolThread implements AbstractPoolThread, Runnable {
 		while (!isStopped()) {
 			try {
 				tasks.clear();
-				int ts = taskQueue.drainTo(tasks, maxTasks);
-				if (ts > 0) {
-					if (Main.chunkStoreLocal) {
-						for (int i = 0; i < ts; i++) {
-							WritableCacheBuffer runnable = tasks.get(i);
-							try {
-								runnable.close();
-							} catch (Exception e) {
-								SDFSLogger.getLog().fatal(
-										"unable to execute thread", e);
-							}
-						}
-					} else {
-
-						if (HashFunctionPool.max_hash_cluster == 1) {
-							for (int i = 0; i < ts; i++) {
-								WritableCacheBuffer runnable = tasks.get(i);
-								runnable.startClose();
-								AbstractHashEngine hc = SparseDedupFile.hashPool
-										.borrowObject();
-								byte[] hash = null;
-
-								try {
-
-									byte[] b = runnable.getFlushedBuffer();
-									hash = hc.getHash(b);
-									ArrayList<HashLocPair> ar = new ArrayList<HashLocPair>();
-									HashLocPair p = new HashLocPair();
-									p.hash = hash;
-									p.pos = 0;
-									p.len = b.length;
-									p.hashloc = new byte[8];
-									p.hash = hash;
-									p.data = b;
-									ar.add(p);
-									runnable.setAR(ar);
-								} catch (BufferClosedException e) {
-									
-								} finally {
-									SparseDedupFile.hashPool.returnObject(hc);
-								}
-							}
-						} else {
-							for (int i = 0; i < ts; i++) {
-								WritableCacheBuffer writeBuffer = tasks.get(i);
-								writeBuffer.startClose();
-								VariableHashEngine hc = (VariableHashEngine) SparseDedupFile.hashPool
-										.borrowObject();
-								List<Finger> fs = hc.getChunks(writeBuffer
-										.getFlushedBuffer());
-								int _pos = 0;
-								ArrayList<HashLocPair> ar = new ArrayList<HashLocPair>();
-								for (Finger f : fs) {
-									HashLocPair p = new HashLocPair();
-									p.hash = f.hash;
-									p.hashloc = f.hl;
-									p.len = f.len;
-									p.offset = 0;
-									p.nlen = f.len;
-									p.data = f.chunk;
-									p.pos = _pos;
-									_pos += f.chunk.length;
-									ar.add(p);
-								}
-								writeBuffer.setAR(ar);
-							}
-						}
-						ArrayList<HashLocPair> al = new ArrayList<HashLocPair>();
-						
-						for(int i = 0; i < tasks.size();i++) {
-							WritableCacheBuffer ck = tasks.get(i);
-							if(ck == null)
-								break;
-							else
-								al.addAll(ck.getFingers());
-						}
-						
-						HCServiceProxy.batchHashExists(al);
-						for (int i = 0; i < ts; i++) {
-							WritableCacheBuffer runnable = tasks.get(i);
-							if (runnable != null) {
-
-									try {
-										runnable.endClose();
-									} catch (Exception e) {
-										SDFSLogger.getLog().warn(
-												"unable to close block", e);
-									}
-							}
-						}
+				tasks.add(taskQueue.take());
+				int ts = taskQueue.drainTo(tasks, maxTasks - 1) + 1;
+				WriteBatch batch = new WriteBatch(ts);
+				for (int i = 0; i < ts; i++) {
+					WritableCacheBuffer writeBuffer = tasks.get(i);
+					try {
+						int gen = writeBuffer.getFlushGeneration();
+						batch.add(writeBuffer,
+								this.getFingers(writeBuffer.getFlushedBuffer()),
+								gen);
+					} catch (BufferClosedException e) {
+						// closed or reopened since it was queued
+						pool.complete(1);
+					} catch (Exception e) {
+						SDFSLogger.getLog().error(
+								"unable to hash buffer at "
+										+ writeBuffer.getFilePosition(), e);
+						pool.complete(1);
 					}
-				} else {
-					Thread.sleep(5);
 				}
-
+				if (batch.size() > 0)
+					lookupQueue.put(batch);
+			} catch (InterruptedException e) {
+				if (isStopped())
+					break;
 			} catch (Exception e) {
 				SDFSLogger.getLog().fatal("unable to execute thread", e);
 			}
 		}
 	}
 
+	private List<HashLocPair> getFingers(byte[] b) throws IOException {
+		ArrayList<HashLocPair> ar = new ArrayList<HashLocPair>();
+		if (ByteUtils.isZero(b)) {
+			// stored as a hole so there is nothing to hash or look up
+			return ar;
+		}
+		if (HashFunctionPool.max_hash_cluster == 1) {
+			AbstractHashEngine hc = SparseDedupFile.hashPool.borrowObject();
+			try {
+				HashLocPair p = new HashLocPair();
+				p.hash = hc.getHash(b);
+				p.pos = 0;
+				p.len = b.length;
+				p.hashloc = new byte[8];
+				p.data = b;
+				ar.add(p);
+			} finally {
+				SparseDedupFile.hashPool.returnObject(hc);
+			}
+		} else {
+			VariableHashEngine hc = (VariableHashEngine) SparseDedupFile.hashPool
+					.borrowObject();
+			try {
+				List<Finger> fs = hc.getChunks(b);
+				int _pos = 0;
+				for (Finger f : fs) {
+					HashLocPair p = new HashLocPair();
+					p.hash = f.hash;
+					p.hashloc = f.hl;
+					p.len = f.len;
+					p.offset = 0;
+					p.nlen = f.len;
+					p.data = f.chunk;
+					p.pos = _pos;
+					_pos += f.chunk.length;
+					ar.add(p);
+				}
+			} finally {
+				SparseDedupFile.hashPool.returnObject(hc);
+			}
+		}
+		return ar;
+	}
+
 	private ReentrantLock exitLock = new ReentrantLock();
 
 	public void start() {
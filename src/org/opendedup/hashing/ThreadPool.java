@@ -3,27 +3,74 @@ package org.opendedup.hashing;
 import java.util.ArrayList;
 
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.io.WritableCacheBuffer;
 
+/**
+ *
+ * @author Sam Silverberg The write pipeline for flushed write buffers. Buffers
+ *         are hashed in batches by the hash stage, looked up in the DSE by the
+ *         lookup stage and written by the commit stage. Each stage has its own
+ *         threads and the stages are joined by bounded queues so a slow stage
+ *         blocks the one before it and eventually the writer calling execute.
+ *
+ */
 public class ThreadPool {
 
 	private BlockingQueue<WritableCacheBuffer> taskQueue = null;
+	private BlockingQueue<WriteBatch> lookupQueue = null;
+	private BlockingQueue<WriteBatch> commitQueue = null;
 	private List<AbstractPoolThread> threads = new ArrayList<AbstractPoolThread>();
 	private boolean isStopped = false;
+	private final Object doneLock = new Object();
+	private long outstanding = 0;
 
 	public ThreadPool(int noOfThreads, int maxNoOfTasks) {
-		taskQueue = new LinkedBlockingQueue<WritableCacheBuffer>(maxNoOfTasks);
+		this(noOfThreads, Main.writeLookupThreads,
+				Main.writeCommitThreads > 0 ? Main.writeCommitThreads
+						: noOfThreads, maxNoOfTasks);
+	}
 
-		for (int i = 0; i < noOfThreads; i++) {
-			threads.add(new PoolThread(taskQueue));
+	/**
+	 *
+	 * @param hashThreads
+	 *            threads that chunk and hash buffers
+	 * @param lookupThreads
+	 *            threads that look up batches of hashes
+	 * @param commitThreads
+	 *            threads that write chunks and update file maps
+	 * @param maxNoOfTasks
+	 *            the number of buffers that can be queued before execute
+	 *            blocks
+	 */
+	public ThreadPool(int hashThreads, int lookupThreads, int commitThreads,
+			int maxNoOfTasks) {
+		taskQueue = new LinkedBlockingQueue<WritableCacheBuffer>(maxNoOfTasks);
+		lookupQueue = new ArrayBlockingQueue<WriteBatch>(Math.max(
+				lookupThreads * 2, 2));
+		commitQueue = new ArrayBlockingQueue<WriteBatch>(Math.max(
+				commitThreads * 2, 2));
+		for (int i = 0; i < hashThreads; i++) {
+			threads.add(new PoolThread(taskQueue, lookupQueue, this));
+		}
+		for (int i = 0; i < lookupThreads; i++) {
+			threads.add(new LookupThread(lookupQueue, commitQueue));
+		}
+		for (int i = 0; i < commitThreads; i++) {
+			threads.add(new CommitThread(commitQueue, this));
 		}
 		for (AbstractPoolThread thread : threads) {
 			thread.start();
 		}
+		SDFSLogger.getLog().info(
+				"write pipeline started with hash-threads=" + hashThreads
+						+ " lookup-threads=" + lookupThreads
+						+ " commit-threads=" + commitThreads);
 	}
 
 	public void execute(WritableCacheBuffer task) {
@@ -32,20 +79,46 @@ public class ThreadPool {
 					"threadpool is stopped will not execute task");
 			return;
 		}
-
+		synchronized (doneLock) {
+			outstanding++;
+		}
 		try {
 			this.taskQueue.put(task);
 		} catch (InterruptedException e) {
+			this.complete(1);
 			SDFSLogger.getLog().warn("thread interrupted", e);
 		}
 	}
 
+	/**
+	 * Called by the pipeline stages when buffers leave the pipeline.
+	 *
+	 * @param count
+	 *            the number of buffers that finished
+	 */
+	void complete(int count) {
+		synchronized (doneLock) {
+			outstanding -= count;
+			if (outstanding <= 0)
+				doneLock.notifyAll();
+		}
+	}
+
+	public int getQueueDepth() {
+		return this.taskQueue.size();
+	}
+
+	/**
+	 * Waits until every buffer that has been queued has been written.
+	 */
 	public synchronized void flush() {
-		while (!this.taskQueue.isEmpty()) {
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				break;
+		synchronized (doneLock) {
+			while (outstanding > 0) {
+				try {
+					doneLock.wait();
+				} catch (InterruptedException e) {
+					break;
+				}
 			}
 		}
 	}
@@ -57,4 +130,4 @@ public class ThreadPool {
 		}
 	}
 
-}
\ No newline at end of file
+}
@@ -12,9 +12,6 @@ import org.rabinfingerprint.handprint.EnhancedFingerFactory;
 import org.rabinfingerprint.handprint.EnhancedFingerFactory.EnhancedChunkVisitor;
 import org.rabinfingerprint.polynomial.Polynomial;
 
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
-
 public class VariableHashEngine implements AbstractHashEngine {
 
 	public static final int seed = 6442;
@@ -24,19 +21,36 @@ public class VariableHashEngine implements AbstractHashEngine {
 	ChunkBoundaryDetector boundaryDetector = BoundaryDetectors.DEFAULT_BOUNDARY_DETECTOR;
 	static final long bytesPerWindow = 48;
 	private EnhancedFingerFactory ff = null;
-	HashFunction hf = Hashing.murmur3_128(seed);
 	
 	public VariableHashEngine() throws NoSuchAlgorithmException {
-		while(ff == null) {
+		this(true);
+	}
+
+	/**
+	 * 
+	 * @param rabin
+	 *            false if a subclass finds its own chunk boundaries and does
+	 *            not need the rabin finger factory
+	 */
+	protected VariableHashEngine(boolean rabin) {
+		while(rabin && ff == null) {
 			ff = new EnhancedFingerFactory(p, bytesPerWindow,
 					boundaryDetector, minLen, maxLen);
 		}
-
 	}
 
 	@Override
 	public byte[] getHash(byte[] data) {
-		byte[] hash = hf.hashBytes(data).asBytes();
+		return this.getHash(data, 0, data.length);
+	}
+
+	/**
+	 * Hashes part of a buffer without copying it. The hash is the same as
+	 * murmur3_128 with this seed.
+	 */
+	public byte[] getHash(byte[] data, int off, int len) {
+		byte[] hash = new byte[16];
+		FastMurmur3HashEngine.hash(data, off, len, hash, 0);
 		return hash;
 	}
 
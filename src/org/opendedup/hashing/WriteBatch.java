@@ -0,0 +1,82 @@
+package org.opendedup.hashing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opendedup.sdfs.io.HashLocPair;
+import org.opendedup.sdfs.io.WritableCacheBuffer;
+
+/**
+ *
+ * @author Sam Silverberg A batch of write buffers passed between the stages of
+ *         the write pipeline. The hash stage fills in the fingers of each
+ *         buffer from a copy of its data along with the flush generation the
+ *         copy was taken at so the commit stage can skip buffers that were
+ *         written to again while the batch was in flight.
+ *
+ */
+public class WriteBatch {
+	public final List<WritableCacheBuffer> buffers;
+	public final List<List<HashLocPair>> fingers;
+	public final int[] generations;
+
+	public WriteBatch(int size) {
+		this.buffers = new ArrayList<WritableCacheBuffer>(size);
+		this.fingers = new ArrayList<List<HashLocPair>>(size);
+		this.generations = new int[size];
+	}
+
+	public void add(WritableCacheBuffer buffer, List<HashLocPair> ar,
+			int generation) {
+		this.generations[buffers.size()] = generation;
+		this.buffers.add(buffer);
+		this.fingers.add(ar);
+	}
+
+	public int size() {
+		return this.buffers.size();
+	}
+
+	/**
+	 *
+	 * @return the fingers of every buffer in the batch
+	 */
+	public List<HashLocPair> getAllFingers() {
+		ArrayList<HashLocPair> al = new ArrayList<HashLocPair>();
+		for (List<HashLocPair> ar : fingers) {
+			if (ar != null)
+				al.addAll(ar);
+		}
+		return al;
+	}
+
+	/**
+	 * Returns the fingers that should be looked up before they are written.
+	 * Files that are bypassing inline dedup stage their buffers, so only
+	 * buffers that could not be staged get here. Their fingers are left out
+	 * and marked as not found so the commit stage writes them directly and the
+	 * chunk store checks for them as it writes. Staged buffers that are being
+	 * deduped in the background are always looked up so the file can tell
+	 * when it dedups again.
+	 *
+	 * @return the fingers to look up
+	 */
+	public List<HashLocPair> getLookupFingers() {
+		ArrayList<HashLocPair> al = new ArrayList<HashLocPair>();
+		for (int i = 0; i < buffers.size(); i++) {
+			List<HashLocPair> ar = fingers.get(i);
+			if (ar == null)
+				continue;
+			WritableCacheBuffer wb = buffers.get(i);
+			if (!wb.isIngest()
+					&& wb.getDedupFile().getMetaFile().getIOMonitor()
+							.isInlineDedupBypassed()) {
+				for (HashLocPair p : ar)
+					p.resetHashLoc();
+			} else
+				al.addAll(ar);
+		}
+		return al;
+	}
+
+}
@@ -12,12 +12,14 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
+import org.opendedup.hashing.FastCDCHashEngine;
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.hashing.VariableHashEngine;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.io.Volume;
 import org.opendedup.sdfs.servers.HCServiceProxy;
 import org.opendedup.util.StorageUnit;
+import org.opendedup.util.StringUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -264,6 +266,49 @@ public class Config {
 		Main.safeSync = Boolean.parseBoolean(cache.getAttribute("safe-sync"));
 		Main.writeThreads = Integer.parseInt(cache
 				.getAttribute("write-threads"));
+		if (cache.hasAttribute("write-lookup-threads"))
+			Main.writeLookupThreads = Integer.parseInt(cache
+					.getAttribute("write-lookup-threads"));
+		if (cache.hasAttribute("write-commit-threads"))
+			Main.writeCommitThreads = Integer.parseInt(cache
+					.getAttribute("write-commit-threads"));
+		if (cache.hasAttribute("io-tasks"))
+			Main.ioTasks = Integer.parseInt(cache.getAttribute("io-tasks"));
+		if (cache.hasAttribute("read-ahead-chunks"))
+			Main.readAheadChunks = Integer.parseInt(cache
+					.getAttribute("read-ahead-chunks"));
+		if (cache.hasAttribute("read-cache-size"))
+			Main.readCacheSize = StringUtils.parseSize(cache
+					.getAttribute("read-cache-size"));
+		if (cache.hasAttribute("restore-read-ahead"))
+			Main.restoreReadAhead = Boolean.parseBoolean(cache
+					.getAttribute("restore-read-ahead"));
+		if (cache.hasAttribute("compact-metadata"))
+			Main.compactMetaData = Boolean.parseBoolean(cache
+					.getAttribute("compact-metadata"));
+		if (cache.hasAttribute("meta-cache-size"))
+			Main.metaCacheSize = Integer.parseInt(cache
+					.getAttribute("meta-cache-size"));
+		if (cache.hasAttribute("write-buffer-pool-size"))
+			Main.writeBufferPoolSize = StringUtils.parseSize(cache
+					.getAttribute("write-buffer-pool-size"));
+		if (cache.hasAttribute("intent-log-path"))
+			Main.intentLogPath = cache.getAttribute("intent-log-path");
+		if (cache.hasAttribute("intent-log-size"))
+			Main.intentLogSize = StringUtils.parseSize(cache
+					.getAttribute("intent-log-size"));
+		if (cache.hasAttribute("dedup-bypass-ratio"))
+			Main.inlineDedupBypassRatio = Double.parseDouble(cache
+					.getAttribute("dedup-bypass-ratio"));
+		if (cache.hasAttribute("post-process-dedup"))
+			Main.postProcessDedup = Boolean.parseBoolean(cache
+					.getAttribute("post-process-dedup"));
+		if (cache.hasAttribute("post-process-idle-time"))
+			Main.postProcessIdleTime = Long.parseLong(cache
+					.getAttribute("post-process-idle-time"));
+		if (cache.hasAttribute("stream-write-threshold"))
+			Main.streamWriteThreshold = StringUtils.parseSize(cache
+					.getAttribute("stream-write-threshold"));
 		if (cache.hasAttribute("hash-size")) {
 			short hsz = Short.parseShort(cache.getAttribute("hash-size"));
 			if (hsz == 16)
@@ -284,6 +329,9 @@ public class Config {
 		} else {
 			VariableHashEngine.maxLen =Main.CHUNK_LENGTH;
 		}
+		if(cache.hasAttribute("avg-variable-segment-size")) {
+			FastCDCHashEngine.avgLen = Integer.parseInt(cache.getAttribute("avg-variable-segment-size"))*1024;
+		}
 		Main.blankHash = new byte[Main.CHUNK_LENGTH];
 
 		Main.maxWriteBuffers = Integer.parseInt(cache
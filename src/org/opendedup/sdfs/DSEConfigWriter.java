@@ -214,13 +214,15 @@ public class DSEConfigWriter {
 			String ht = cmd.getOptionValue("hash-type");
 			if (ht.equalsIgnoreCase(HashFunctionPool.TIGER_16)
 					|| ht.equalsIgnoreCase(HashFunctionPool.TIGER_24)
-					|| ht.equalsIgnoreCase(HashFunctionPool.MURMUR3_16))
+					|| ht.equalsIgnoreCase(HashFunctionPool.MURMUR3_16)
+					|| ht.equalsIgnoreCase(HashFunctionPool.MURMUR3_16_FAST))
 				this.hashType = ht;
 			else {
 				System.out.println("Invalid Hash Type. Must be "
 						+ HashFunctionPool.TIGER_16 + " "
 						+ HashFunctionPool.TIGER_24 + " "
-						+ HashFunctionPool.MURMUR3_16);
+						+ HashFunctionPool.MURMUR3_16 + " "
+						+ HashFunctionPool.MURMUR3_16_FAST);
 				System.exit(-1);
 			}
 		}
@@ -417,13 +419,16 @@ public class DSEConfigWriter {
 								+ HashFunctionPool.TIGER_24
 								+ " "
 								+ HashFunctionPool.MURMUR3_16
+								+ " "
+								+ HashFunctionPool.MURMUR3_16_FAST
 								+ " This Defaults to "
 								+ HashFunctionPool.TIGER_16)
 				.hasArg()
 				.withArgName(
 						HashFunctionPool.TIGER_16 + "|"
 								+ HashFunctionPool.TIGER_24 + "|"
-								+ HashFunctionPool.MURMUR3_16).create());
+								+ HashFunctionPool.MURMUR3_16 + "|"
+								+ HashFunctionPool.MURMUR3_16_FAST).create());
 		options.addOption(OptionBuilder
 				.withLongOpt("encrypt")
 				.withDescription(
@@ -206,6 +206,101 @@ public class Main {
 
 	public static int writeThreads = (short) (Runtime.getRuntime()
 			.availableProcessors() * 3);
+	/**
+	 * The number of threads in the write pipeline that look up batches of
+	 * hashes in the DSE after they are hashed. This is used on the client.
+	 */
+	public static int writeLookupThreads = 4;
+	/**
+	 * The number of threads in the write pipeline that store chunks and update
+	 * the file maps once hashes have been looked up. 0 uses writeThreads. This
+	 * is used on the client.
+	 */
+	public static int writeCommitThreads = 0;
+	/**
+	 * The maximum number of bytes kept in the pool of write buffers shared by
+	 * all open files. Buffers are allocated outside of the pool once it is
+	 * full. This is used on the client.
+	 */
+	public static long writeBufferPoolSize = 256L * 1024L * 1024L;
+	/**
+	 * The maximum number of shard reads and chunk writes that can wait on DSE
+	 * or cloud I/O at once. When set these tasks get their own threads instead
+	 * of running on the write thread pools. 0 runs them on the write thread
+	 * pools. This is used on the client.
+	 */
+	public static int ioTasks = 0;
+	/**
+	 * The maximum number of chunks fetched ahead of a sequential read. The
+	 * number fetched starts at one and doubles while a file is read in
+	 * sequence. 0 disables read ahead. This is used on the client.
+	 */
+	public static int readAheadChunks = 8;
+	/**
+	 * The maximum number of bytes of chunks cached for reads of chunks that
+	 * are not being written. 0 reads all chunks through the write buffer
+	 * cache. This is used on the client.
+	 */
+	public static long readCacheSize = 64L * 1024L * 1024L;
+	/**
+	 * If true each read ahead window is read as one restore that fetches its
+	 * chunks in the order they are stored in the local chunk store instead
+	 * of in file order. This turns restores of files whose chunks are spread
+	 * over the chunk store into mostly sequential reads. Requires the read
+	 * cache. This is used on the client.
+	 */
+	public static boolean restoreReadAhead = false;
+	/**
+	 * If true file metadata is written in a compact binary format instead of
+	 * as a serialized object. Both formats are always read so existing files
+	 * are converted as they are written. This is used on the client.
+	 */
+	public static boolean compactMetaData = false;
+	/**
+	 * The number of file metadata entries kept in memory by the
+	 * MetaFileStore. Stat heavy workloads such as find, rsync and backup scans
+	 * only read the metadata of a file from disk the first time it is seen
+	 * while it fits. This is used on the client.
+	 */
+	public static int metaCacheSize = 5000;
+	/**
+	 * The directory of the write intent log. Writes are appended to the log so
+	 * an fsync only has to sync the log. The log is disabled when this is not
+	 * set. This is used on the client.
+	 */
+	public static String intentLogPath = null;
+	/**
+	 * The maximum size of the write intent log. Writes are not logged while
+	 * the log is full. This is used on the client.
+	 */
+	public static long intentLogSize = 1024L * 1024L * 1024L;
+	/**
+	 * The fraction of written bytes that have to be duplicates for a file to
+	 * keep deduping inline. Files that dedup less than this over their last
+	 * writes stage flushed buffers without hashing them, as post process dedup
+	 * does, until the background dedup of the staged buffers shows that they
+	 * dedup again. 0 disables the bypass. This is used on the client.
+	 */
+	public static double inlineDedupBypassRatio = 0.02;
+	/**
+	 * Stores flushed write buffers as is in a staging file next to the file
+	 * map and dedups them in the background instead of in the write path.
+	 * This is used on the client.
+	 */
+	public static boolean postProcessDedup = false;
+	/**
+	 * The number of milliseconds without staged writes before the background
+	 * dedup runs at full speed. While files are being written it only runs a
+	 * batch every ten times this. This is used on the client.
+	 */
+	public static long postProcessIdleTime = 1000;
+	/**
+	 * The number of bytes a file channel has to write in sequence before it
+	 * streams. A streaming channel holds the buffer it is writing outside of
+	 * the write buffer cache and queues it as soon as it moves past it. 0
+	 * disables streaming. This is used on the client.
+	 */
+	public static long streamWriteThreshold = 1024 * 1024;
 	/**
 	 * The representation of a blank hash of the default chunk size. This is
 	 * used on the client.
@@ -176,17 +176,22 @@ public class VolumeConfigWriter {
 			if (ht.equalsIgnoreCase(HashFunctionPool.TIGER_16)
 					|| ht.equalsIgnoreCase(HashFunctionPool.TIGER_24)
 					|| ht.equalsIgnoreCase(HashFunctionPool.MURMUR3_16)
-					|| ht.equalsIgnoreCase(HashFunctionPool.VARIABLE_MURMUR3))
+					|| ht.equalsIgnoreCase(HashFunctionPool.MURMUR3_16_FAST)
+					|| ht.equalsIgnoreCase(HashFunctionPool.VARIABLE_MURMUR3)
+					|| ht.equalsIgnoreCase(HashFunctionPool.VARIABLE_FASTCDC))
 				this.hashType = ht;
 			else {
 				System.out.println("Invalid Hash Type. Must be "
 						+ HashFunctionPool.TIGER_16 + " "
 						+ HashFunctionPool.TIGER_24 + " "
 						+ HashFunctionPool.MURMUR3_16 + " "
-						+ HashFunctionPool.VARIABLE_MURMUR3);
+						+ HashFunctionPool.MURMUR3_16_FAST + " "
+						+ HashFunctionPool.VARIABLE_MURMUR3 + " "
+						+ HashFunctionPool.VARIABLE_FASTCDC);
 				System.exit(-1);
 			}
-			if (ht.equalsIgnoreCase(HashFunctionPool.VARIABLE_MURMUR3)) {
+			if (ht.equalsIgnoreCase(HashFunctionPool.VARIABLE_MURMUR3)
+					|| ht.equalsIgnoreCase(HashFunctionPool.VARIABLE_FASTCDC)) {
 				this.chunk_store_class = "org.opendedup.sdfs.filestore.VariableFileChunkStore";
 				this.chunk_size = 128;
 				this.compress = true;
@@ -938,7 +943,11 @@ public class VolumeConfigWriter {
 								+ " "
 								+ HashFunctionPool.MURMUR3_16
 								+ " "
+								+ HashFunctionPool.MURMUR3_16_FAST
+								+ " "
 								+ HashFunctionPool.VARIABLE_MURMUR3
+								+ " "
+								+ HashFunctionPool.VARIABLE_FASTCDC
 								+ " This Defaults to "
 								+ HashFunctionPool.MURMUR3_16)
 				.hasArg()
@@ -946,7 +955,9 @@ public class VolumeConfigWriter {
 						HashFunctionPool.TIGER_16 + "|"
 								+ HashFunctionPool.TIGER_24 + "|"
 								+ HashFunctionPool.MURMUR3_16 + "|"
-								+ HashFunctionPool.VARIABLE_MURMUR3).create());
+								+ HashFunctionPool.MURMUR3_16_FAST + "|"
+								+ HashFunctionPool.VARIABLE_MURMUR3 + "|"
+								+ HashFunctionPool.VARIABLE_FASTCDC).create());
 		options.addOption(OptionBuilder
 				.withLongOpt("chunk-store-encrypt")
 				.withDescription(
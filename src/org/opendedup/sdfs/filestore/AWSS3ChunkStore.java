@@ -2,17 +2,23 @@ package org.opendedup.sdfs.filestore;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantLock;
 
 import org.bouncycastle.util.Arrays;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.cloud.AWSS3ObjectStore;
+import org.opendedup.sdfs.filestore.cloud.BatchDeleter;
+import org.opendedup.sdfs.filestore.cloud.DiskChunkCache;
+import org.opendedup.sdfs.filestore.cloud.StagedChunkStore;
+import org.opendedup.sdfs.filestore.cloud.StagingUploader;
 import org.opendedup.util.CompressionUtils;
 import org.opendedup.util.EncryptUtils;
 import org.opendedup.util.StringUtils;
@@ -20,6 +26,7 @@ import org.w3c.dom.Element;
 
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
@@ -36,64 +43,65 @@ import com.google.common.cache.LoadingCache;
  *         important to make the chunk size very large on the client when using
  *         this chunk store since S3 charges per http request.
  * 
+ *         If async-upload is set in the extended-config element chunks are
+ *         written to a local staging area and uploaded in the background by
+ *         upload-threads threads. max-staged-uploads limits how many chunks
+ *         can wait in staging-path before writes block.
+ * 
+ *         Deletes are sent as multi-object delete requests of up to
+ *         delete-batch-size keys by delete-threads threads. The position
+ *         returned by writeChunk is [chunk length (32 bits)|stored length (32
+ *         bits)] so deleteChunk can update the store size without reading the
+ *         object metadata.
+ * 
  */
-public class AWSS3ChunkStore implements AbstractChunkStore {
+public class AWSS3ChunkStore implements AbstractChunkStore, StagedChunkStore {
 	private static BasicAWSCredentials awsCredentials = null;
 	private String name;
 	private AWSS3ServicePool pool = null;
 	private AtomicLong currentLength = new AtomicLong(0);
 	private AtomicLong compressedLength = new AtomicLong(0);
 	private int cacheSize = 10485760 / Main.CHUNK_LENGTH;
+	private StagingUploader uploader = null;
+	private DiskChunkCache diskCache = null;
+	private BatchDeleter deleter = null;
 	private static XpathUtils utils = new XpathUtils();
 
 	LoadingCache<String, byte[]> chunks = CacheBuilder.newBuilder()
 			.maximumSize(cacheSize).concurrencyLevel(72)
 			.build(new CacheLoader<String, byte[]>() {
 				public byte[] load(String hashString) throws IOException {
+					if (uploader != null) {
+						StagingUploader.StagedObject so = uploader
+								.get(hashString);
+						if (so != null) {
+							try {
+								return decode(so.getData(), so.md);
+							} catch (IOException e) {
+								// uploaded while reading
+								if (uploader.get(hashString) != null)
+									throw e;
+							}
+						}
+					}
+					byte[] cached = diskCache.get(hashString);
+					if (cached != null)
+						return cached;
 					AmazonS3Client s3Service = null;
 					try {
 						s3Service = pool.borrowObject();
 						S3Object obj = s3Service.getObject(name, hashString);
-						boolean encrypt = false;
-						boolean compress = false;
-						boolean lz4compress = false;
 						Map<String, String> md = obj.getObjectMetadata()
 								.getUserMetadata();
-						int size = Integer.parseInt(md.get("size"));
-						// Map<String,String> md =
-						// obj.getObjectMetadata().getUserMetadata();
-						int csz = size;
-						if (md.containsKey("encrypt")) {
-							encrypt = Boolean.parseBoolean(md.get("encrypt"));
-						}
-						if (md.containsKey("compress")) {
-							compress = Boolean.parseBoolean(md.get("compress"));
-						} else if (md.containsKey("lz4compress")) {
-							csz = Integer.parseInt(md.get("compressedsize"));
-							lz4compress = Boolean.parseBoolean(md
-									.get("lz4compress"));
-						}
 						int cl = (int) obj.getObjectMetadata()
 								.getContentLength();
-						if (cl != csz) {
-							SDFSLogger.getLog().warn(
-									"Possible data mismatch size=" + csz
-											+ " does not equal content length"
-											+ cl);
-						}
-
 						byte[] data = new byte[cl];
 						DataInputStream in = new DataInputStream(obj
 								.getObjectContent());
 						in.readFully(data);
 						obj.close();
-						if (encrypt)
-							data = EncryptUtils.decrypt(data);
-						if (compress)
-							data = CompressionUtils.decompressZLIB(data);
-						else if (lz4compress) {
-							data = CompressionUtils.decompressLz4(data, size);
-						}
+						data = decode(data, md);
+						diskCache.put(hashString, data);
 						return data;
 					} catch (Throwable e) {
 						SDFSLogger.getLog()
@@ -106,6 +114,37 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 				}
 			});
 
+	private static byte[] decode(byte[] data, Map<String, String> md)
+			throws IOException {
+		boolean encrypt = false;
+		boolean compress = false;
+		boolean lz4compress = false;
+		int size = Integer.parseInt(md.get("size"));
+		int csz = size;
+		if (md.containsKey("encrypt")) {
+			encrypt = Boolean.parseBoolean(md.get("encrypt"));
+		}
+		if (md.containsKey("compress")) {
+			compress = Boolean.parseBoolean(md.get("compress"));
+		} else if (md.containsKey("lz4compress")) {
+			csz = Integer.parseInt(md.get("compressedsize"));
+			lz4compress = Boolean.parseBoolean(md.get("lz4compress"));
+		}
+		if (data.length != csz) {
+			SDFSLogger.getLog().warn(
+					"Possible data mismatch size=" + csz
+							+ " does not equal content length" + data.length);
+		}
+		if (encrypt)
+			data = EncryptUtils.decrypt(data);
+		if (compress)
+			data = CompressionUtils.decompressZLIB(data);
+		else if (lz4compress) {
+			data = CompressionUtils.decompressLz4(data, size);
+		}
+		return data;
+	}
+
 	static {
 		try {
 			awsCredentials = new BasicAWSCredentials(Main.cloudAccessKey,
@@ -166,6 +205,16 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 
 	@Override
 	public void close() {
+		if (this.uploader != null) {
+			if (!this.uploader.flush(Main.writeTimeoutSeconds * 1000L))
+				SDFSLogger.getLog().warn(
+						"timed out waiting for uploads, "
+								+ this.uploader.getQueueDepth()
+								+ " chunks will be uploaded on next mount");
+			this.uploader.close();
+		}
+		this.deleter.close(Main.writeTimeoutSeconds * 1000L);
+		this.diskCache.close();
 		AmazonS3Client s3Service = null;
 		try {
 
@@ -237,47 +286,47 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 		return this.currentLength.get();
 	}
 
-	private static ReentrantLock lock = new ReentrantLock();
-
 	@Override
 	public long writeChunk(byte[] hash, byte[] chunk, int len)
 			throws IOException {
 		try {
 			String hashString = this.getHashName(hash,
 					Main.chunkStoreEncryptionEnabled);
-			lock.lock();
-			RandomAccessFile rf = new RandomAccessFile("/tmp/hashes.txt", "rw");
-			rf.seek(rf.length());
-			rf.writeBytes(hashString + "\n");
-			rf.close();
-			lock.unlock();
-			ObjectMetadata md = new ObjectMetadata();
-			md.addUserMetadata("size", Integer.toString(chunk.length));
+			// the chunk may have been removed by gc and written again
+			this.deleter.cancel(hashString);
+			int size = chunk.length;
+			HashMap<String, String> umd = new HashMap<String, String>();
+			umd.put("size", Integer.toString(chunk.length));
 			this.currentLength.addAndGet(chunk.length);
 			if (Main.compress) {
 				chunk = CompressionUtils.compressLz4(chunk);
-				md.addUserMetadata("lz4compress", "true");
+				umd.put("lz4compress", "true");
 			} else {
-				md.addUserMetadata("lz4compress", "false");
+				umd.put("lz4compress", "false");
 			}
 			if (Main.chunkStoreEncryptionEnabled) {
 				chunk = EncryptUtils.encrypt(chunk);
-				md.addUserMetadata("encrypt", "true");
+				umd.put("encrypt", "true");
 			} else {
-				md.addUserMetadata("encrypt", "false");
+				umd.put("encrypt", "false");
 			}
-			md.addUserMetadata("compressedsize", Integer.toString(chunk.length));
-			md.setContentLength(chunk.length);
+			umd.put("compressedsize", Integer.toString(chunk.length));
 			this.compressedLength.addAndGet(chunk.length);
+			if (this.uploader != null) {
+				// blocks while the staging area is full
+				this.uploader.stage(hashString, chunk, umd, null);
+				return ((long) size << 32) | chunk.length;
+			}
+			ObjectMetadata md = new ObjectMetadata();
+			md.setUserMetadata(umd);
+			md.setContentLength(chunk.length);
 			ByteArrayInputStream s3IS = new ByteArrayInputStream(chunk);
 			md.setContentType("binary/octet-stream");
 			AmazonS3Client s3Service = null;
 			try {
 				s3Service = pool.borrowObject();
 				s3Service.putObject(name, hashString, s3IS, md);
-				SDFSLogger.getLog().info(hashString);
-
-				return 0;
+				return ((long) size << 32) | chunk.length;
 			} finally {
 				pool.returnObject(s3Service);
 				s3IS.close();
@@ -304,14 +353,34 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 		AmazonS3Client s3Service = null;
 		try {
 			this.chunks.invalidate(hashString);
-			s3Service = pool.borrowObject();
-			Map<String, String> md = s3Service.getObjectMetadata(name,
-					hashString).getUserMetadata();
-			int size = Integer.parseInt(md.get("size"));
-			int compressedSize = Integer.parseInt(md.get("compressedsize"));
+			this.diskCache.remove(hashString);
+			if (this.uploader != null) {
+				StagingUploader.StagedObject so = this.uploader
+						.cancel(hashString);
+				if (so != null) {
+					this.currentLength.addAndGet(-1
+							* Integer.parseInt(so.md.get("size")));
+					this.compressedLength.addAndGet(-1
+							* Integer.parseInt(so.md.get("compressedsize")));
+					return;
+				}
+			}
+			int size;
+			int compressedSize;
+			if (start > 0) {
+				size = (int) (start >>> 32);
+				compressedSize = (int) (start & 0xFFFFFFFFL);
+			} else {
+				// written before the sizes were kept in the position
+				s3Service = pool.borrowObject();
+				Map<String, String> md = s3Service.getObjectMetadata(name,
+						hashString).getUserMetadata();
+				size = Integer.parseInt(md.get("size"));
+				compressedSize = Integer.parseInt(md.get("compressedsize"));
+			}
 			this.currentLength.addAndGet(-1 * size);
 			this.compressedLength.addAndGet(-1 * compressedSize);
-			s3Service.deleteObject(this.name, hashString);
+			this.deleter.delete(hashString);
 		} catch (Exception e) {
 			SDFSLogger.getLog()
 					.warn("Unable to delete object " + hashString, e);
@@ -341,6 +410,33 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 	@Override
 	public void init(Element config) throws IOException {
 		this.name = Main.cloudBucket.toLowerCase();
+		boolean async = false;
+		int uploadThreads = Main.dseIOThreads;
+		int maxStaged = 2048;
+		String stagingPath = Main.chunkStore + File.separator + "staging";
+		if (config != null) {
+			if (config.hasAttribute("async-upload"))
+				async = Boolean.parseBoolean(config.getAttribute("async-upload"));
+			if (config.hasAttribute("upload-threads"))
+				uploadThreads = Integer.parseInt(config
+						.getAttribute("upload-threads"));
+			if (config.hasAttribute("max-staged-uploads"))
+				maxStaged = Integer.parseInt(config
+						.getAttribute("max-staged-uploads"));
+			if (config.hasAttribute("staging-path"))
+				stagingPath = config.getAttribute("staging-path");
+		}
+		this.diskCache = DiskChunkCache.getCache(config);
+		int deleteBatchSize = 1000;
+		int deleteThreads = 8;
+		if (config != null) {
+			if (config.hasAttribute("delete-batch-size"))
+				deleteBatchSize = Integer.parseInt(config
+						.getAttribute("delete-batch-size"));
+			if (config.hasAttribute("delete-threads"))
+				deleteThreads = Integer.parseInt(config
+						.getAttribute("delete-threads"));
+		}
 		try {
 
 			pool = new AWSS3ServicePool(AWSS3ChunkStore.awsCredentials,
@@ -378,7 +474,39 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
+		this.deleter = new BatchDeleter(new BatchDeleter.Deleter() {
+			@Override
+			public void delete(List<String> keys) throws IOException {
+				AmazonS3Client s3Service = null;
+				try {
+					s3Service = pool.borrowObject();
+					ArrayList<DeleteObjectsRequest.KeyVersion> kv = new ArrayList<DeleteObjectsRequest.KeyVersion>(
+							keys.size());
+					for (String key : keys)
+						kv.add(new DeleteObjectsRequest.KeyVersion(key));
+					DeleteObjectsRequest req = new DeleteObjectsRequest(name);
+					req.setKeys(kv);
+					req.setQuiet(true);
+					s3Service.deleteObjects(req);
+				} catch (Exception e) {
+					throw new IOException(e);
+				} finally {
+					pool.returnObject(s3Service);
+				}
+			}
+		}, deleteBatchSize, deleteThreads);
+		if (async) {
+			this.uploader = new StagingUploader(new AWSS3ObjectStore(
+					this.name, pool), new File(stagingPath), uploadThreads,
+					maxStaged);
+			this.uploader.recover(null);
+		}
+
+	}
 
+	@Override
+	public StagingUploader getStagingUploader() {
+		return this.uploader;
 	}
 
 	@Override
@@ -402,15 +530,34 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 			if (md.containsKey("compressedsize")) {
 				int cl = Integer.parseInt(md.get("compressedsize"));
 				this.compressedLength.addAndGet(cl);
+				chk.setcPos(((long) chk.cLen << 32) | cl);
 			}
 			objPos++;
 			return chk;
 		}
+		while (stagedKeys != null && stagedPos < stagedKeys.size()) {
+			// chunks that have not been uploaded yet
+			String key = stagedKeys.get(stagedPos);
+			stagedPos++;
+			StagingUploader.StagedObject so = uploader.get(key);
+			if (so == null)
+				continue;
+			ChunkData chk = new ChunkData(this.getHashBytes(key,
+					Boolean.parseBoolean(so.md.get("encrypt"))), 0);
+			chk.cLen = Integer.parseInt(so.md.get("size"));
+			int cl = Integer.parseInt(so.md.get("compressedsize"));
+			this.currentLength.addAndGet(chk.cLen);
+			this.compressedLength.addAndGet(cl);
+			chk.setcPos(((long) chk.cLen << 32) | cl);
+			return chk;
+		}
 		return null;
 	}
 
 	List<S3ObjectSummary> obj = null;
 	int objPos = 0;
+	List<String> stagedKeys = null;
+	int stagedPos = 0;
 	AmazonS3Client bs3Service = null;
 	String lastKey = null;
 
@@ -418,6 +565,9 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 	public void iterationInit() {
 		bs3Service = new AmazonS3Client(awsCredentials);
 		obj = bs3Service.listObjects(this.name).getObjectSummaries();
+		if (uploader != null)
+			stagedKeys = uploader.getStagedKeys();
+		stagedPos = 0;
 		this.compressedLength.set(0);
 		this.currentLength.set(0);
 		this.lastKey = null;
@@ -469,8 +619,7 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 
 	@Override
 	public void setCacheSize(long bps) {
-		// TODO Auto-generated method stub
-		
+		this.diskCache.setMaxSize(bps);
 	}
 
 	@Override
@@ -487,14 +636,12 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 
 	@Override
 	public long getCacheSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return this.diskCache.getSize();
 	}
 
 	@Override
 	public long getMaxCacheSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return this.diskCache.getMaxSize();
 	}
 
 	@Override
@@ -0,0 +1,248 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.opendedup.hashing.HashFunctionPool;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.w3c.dom.Element;
+
+/**
+ *
+ * @author Sam Silverberg This chunk store lays out chunks exactly like
+ *         FileChunkStore but keeps a checksum for every page in a side file
+ *         (chunks.crc). Checksums are verified inline on every read and by a
+ *         background {@link ChunkScrubber} that walks the store in page order.
+ *         Checksum record layout is as follows: [state (1 byte)|crc32 (4
+ *         bytes)|hash (hash length bytes)]. The crc32 always covers the whole
+ *         page as it is laid out on disk, the chunk zero padded to the page
+ *         size.
+ **/
+public class ChecksumFileChunkStore extends FileChunkStore {
+	public static final int CHUNK_SKIPPED = 0;
+	public static final int CHUNK_OK = 1;
+	public static final int CHUNK_REPAIRED = 2;
+	public static final int CHUNK_CORRUPT = 3;
+	private static final byte WRITTEN = 1;
+	private final int recSize = 1 + 4 + HashFunctionPool.hashLength;
+	private final int pageSize;
+	private final byte[] ZEROS;
+	private RandomAccessFile crcRaf = null;
+	private FileChannel crcFC = null;
+	private RandomAccessFile repairRaf = null;
+	private ReentrantLock repairLock = new ReentrantLock();
+	private ChunkScrubber scrubber = null;
+
+	public ChecksumFileChunkStore() {
+		super();
+		this.pageSize = this.getPageSize();
+		this.ZEROS = new byte[this.pageSize];
+		try {
+			File cf = new File(Main.chunkStore + File.separator + "chunks.crc");
+			crcRaf = new RandomAccessFile(cf, "rw");
+			crcFC = crcRaf.getChannel();
+			repairRaf = new RandomAccessFile(f, "rw");
+			SDFSLogger.getLog().debug(
+					"Checksum store " + cf.getPath() + " opened");
+		} catch (Exception e) {
+			SDFSLogger.getLog().error("unable to open checksum store", e);
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Reads the scrubber settings from the extended-config element.
+	 * "scrub-throughput" is the read budget of the scrubber in MB/s and
+	 * "scrub-interval" is the number of hours between scrub passes. A
+	 * throughput of 0 disables background scrubbing.
+	 */
+	@Override
+	public void init(Element config) {
+		int throughput = 10;
+		int interval = 168;
+		if (config != null) {
+			if (config.hasAttribute("scrub-throughput"))
+				throughput = Integer.parseInt(config
+						.getAttribute("scrub-throughput"));
+			if (config.hasAttribute("scrub-interval"))
+				interval = Integer.parseInt(config
+						.getAttribute("scrub-interval"));
+		}
+		if (throughput > 0)
+			this.scrubber = new ChunkScrubber(this,
+					(long) throughput * 1024L * 1024L,
+					(long) interval * 60L * 60L * 1000L);
+	}
+
+	public ChunkScrubber getScrubber() {
+		return this.scrubber;
+	}
+
+	/**
+	 *
+	 * @return the number of pages, including free ones, in the chunk store
+	 */
+	public long getPages() {
+		return this.size() / this.pageSize;
+	}
+
+	@Override
+	public long writeChunk(byte[] hash, byte[] chunk, int len)
+			throws IOException {
+		int crc = this.checksum(chunk);
+		long pos = super.writeChunk(hash, chunk, len);
+		this.writeRecord(pos / this.pageSize, crc, hash);
+		return pos;
+	}
+
+	@Override
+	public byte[] getChunk(byte[] hash, long start, int len)
+			throws IOException {
+		if (len > pageSize)
+			throw new IOException("length is greater than page size");
+		byte[] b = super.getChunk(hash, start, pageSize);
+		ByteBuffer rec = this.readRecord(start / this.pageSize);
+		if (rec.get(0) == WRITTEN && rec.getInt(1) != this.checksum(b)) {
+			SDFSLogger.getLog().warn(
+					"checksum mismatch for chunk at position " + start);
+			b = this.repair(rec, start);
+			if (b == null)
+				throw new IOException("checksum mismatch for chunk at position "
+						+ start);
+		}
+		if (len == -1 || len == pageSize)
+			return b;
+		return Arrays.copyOf(b, len);
+	}
+
+	@Override
+	public void deleteChunk(byte[] hash, long start, int len)
+			throws IOException {
+		super.deleteChunk(hash, start, len);
+		crcFC.write(ByteBuffer.wrap(new byte[1]), (start / this.pageSize)
+				* recSize);
+	}
+
+	/**
+	 * Verifies a single page against its stored checksum and repairs it from a
+	 * replica if it does not match.
+	 *
+	 * @param page
+	 *            the page number within the chunk store
+	 * @return one of CHUNK_SKIPPED, CHUNK_OK, CHUNK_REPAIRED or CHUNK_CORRUPT
+	 * @throws IOException
+	 */
+	public int scrubPage(long page) throws IOException {
+		ByteBuffer rec = this.readRecord(page);
+		if (rec.get(0) != WRITTEN)
+			return CHUNK_SKIPPED;
+		long pos = page * this.pageSize;
+		byte[] b = super.getChunk(null, pos, pageSize);
+		if (rec.getInt(1) == this.checksum(b))
+			return CHUNK_OK;
+		SDFSLogger.getLog().warn(
+				"scrubber found checksum mismatch for chunk at position "
+						+ pos);
+		if (this.repair(rec, pos) != null)
+			return CHUNK_REPAIRED;
+		else
+			return CHUNK_CORRUPT;
+	}
+
+	private byte[] repair(ByteBuffer rec, long pos) {
+		byte[] hash = new byte[HashFunctionPool.hashLength];
+		rec.position(5);
+		rec.get(hash);
+		byte[] b = ChunkScrubber.fetchFromReplica(hash);
+		if (b == null || b.length > pageSize) {
+			SDFSLogger.getLog().error(
+					"unable to repair chunk at position " + pos);
+			return null;
+		}
+		// compare the page the replica would lay down, not the bytes it
+		// returned, against the page checksum
+		byte[] page = Arrays.copyOf(b, pageSize);
+		if (this.checksum(page) != rec.getInt(1)) {
+			SDFSLogger.getLog().error(
+					"replica of chunk at position " + pos
+							+ " does not match its checksum");
+			return null;
+		}
+		repairLock.lock();
+		try {
+			repairRaf.getChannel().write(ByteBuffer.wrap(page), pos);
+			repairRaf.getChannel().force(false);
+			SDFSLogger.getLog().info(
+					"repaired chunk at position " + pos + " from replica");
+			return page;
+		} catch (IOException e) {
+			SDFSLogger.getLog().error(
+					"unable to write repaired chunk at position " + pos, e);
+			return null;
+		} finally {
+			repairLock.unlock();
+		}
+	}
+
+	/**
+	 * Computes the checksum of the page a chunk is written to.
+	 *
+	 * @param chunk
+	 *            the chunk or the page
+	 * @return the crc32 of the chunk zero padded to the page size
+	 */
+	private int checksum(byte[] chunk) {
+		CRC32 crc = new CRC32();
+		crc.update(chunk, 0, chunk.length);
+		if (chunk.length < pageSize)
+			crc.update(ZEROS, 0, pageSize - chunk.length);
+		return (int) crc.getValue();
+	}
+
+	private ByteBuffer readRecord(long page) throws IOException {
+		ByteBuffer rec = ByteBuffer.wrap(new byte[recSize]);
+		crcFC.read(rec, page * recSize);
+		rec.position(0);
+		return rec;
+	}
+
+	private void writeRecord(long page, int crc, byte[] hash)
+			throws IOException {
+		ByteBuffer rec = ByteBuffer.wrap(new byte[recSize]);
+		rec.put(WRITTEN);
+		rec.putInt(crc);
+		if (hash != null)
+			rec.put(hash, 0, Math.min(hash.length, recSize - 5));
+		rec.position(0);
+		crcFC.write(rec, page * recSize);
+	}
+
+	@Override
+	public void sync() throws IOException {
+		super.sync();
+		crcFC.force(false);
+	}
+
+	@Override
+	public void close() {
+		if (this.scrubber != null)
+			this.scrubber.close();
+		super.close();
+		try {
+			crcFC.force(true);
+			crcRaf.close();
+			repairRaf.close();
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("while closing checksum store ", e);
+		}
+	}
+
+}
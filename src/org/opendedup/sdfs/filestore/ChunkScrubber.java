@@ -0,0 +1,194 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.cluster.ClusterSocket;
+import org.opendedup.sdfs.cluster.DSEServer;
+import org.opendedup.sdfs.network.HashClient;
+import org.opendedup.sdfs.notification.SDFSEvent;
+import org.opendedup.sdfs.servers.HCServer;
+import org.opendedup.sdfs.servers.HCServiceProxy;
+
+/**
+ *
+ * @author Sam Silverberg Walks a {@link ChecksumFileChunkStore} page by page
+ *         and verifies every written chunk against its checksum. Reads are
+ *         throttled to a bytes per second budget so the scrubber does not
+ *         compete with foreground IO. Corrupt chunks are repaired from other
+ *         storage nodes in the cluster when there are any. The time of the
+ *         last finished pass is kept in chunks.scrub so restarts do not push
+ *         the next pass back by a whole interval.
+ */
+public class ChunkScrubber implements Runnable {
+	private final ChecksumFileChunkStore store;
+	private final long bytesPerSecond;
+	private final long interval;
+	// the first pass after a start waits at least this long so the scrubber
+	// does not compete with the volume coming up
+	private static final long START_DELAY = 5 * 60 * 1000L;
+	private final File lastScrubFile;
+	private boolean closed = false;
+	private Thread th = null;
+
+	public ChunkScrubber(ChecksumFileChunkStore store, long bytesPerSecond,
+			long interval) {
+		this.store = store;
+		this.bytesPerSecond = bytesPerSecond;
+		this.interval = interval;
+		this.lastScrubFile = new File(Main.chunkStore + File.separator
+				+ "chunks.scrub");
+		th = new Thread(this);
+		th.setDaemon(true);
+		th.start();
+	}
+
+	@Override
+	public void run() {
+		long wait = Math.min(interval, START_DELAY);
+		long last = this.getLastScrub();
+		if (last > 0)
+			wait = Math.max(wait, last + interval - System.currentTimeMillis());
+		while (!closed) {
+			try {
+				Thread.sleep(wait);
+				this.scrub();
+				wait = interval;
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	private long getLastScrub() {
+		if (!lastScrubFile.exists())
+			return 0;
+		try {
+			return Long.parseLong(new String(Files.readAllBytes(lastScrubFile
+					.toPath())).trim());
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn(
+					"unable to read last scrub time from "
+							+ lastScrubFile.getPath(), e);
+			return 0;
+		}
+	}
+
+	private void setLastScrub(long time) {
+		try {
+			Files.write(lastScrubFile.toPath(), Long.toString(time).getBytes());
+		} catch (IOException e) {
+			SDFSLogger.getLog().warn(
+					"unable to write last scrub time to "
+							+ lastScrubFile.getPath(), e);
+		}
+	}
+
+	/**
+	 * Runs a single scrub pass over the chunk store.
+	 *
+	 * @return the event the results of the pass are reported to
+	 * @throws InterruptedException
+	 */
+	public SDFSEvent scrub() throws InterruptedException {
+		SDFSEvent evt = SDFSEvent.scrubEvent("Scrubbing chunk store "
+				+ store.getName());
+		long pages = store.getPages();
+		evt.maxCt = pages;
+		long ok = 0;
+		long repaired = 0;
+		long corrupt = 0;
+		long windowStart = System.currentTimeMillis();
+		long windowBytes = 0;
+		try {
+			for (long i = 0; i < pages && !closed; i++) {
+				evt.curCt = i;
+				switch (store.scrubPage(i)) {
+				case ChecksumFileChunkStore.CHUNK_OK:
+					ok++;
+					break;
+				case ChecksumFileChunkStore.CHUNK_REPAIRED:
+					repaired++;
+					break;
+				case ChecksumFileChunkStore.CHUNK_CORRUPT:
+					corrupt++;
+					break;
+				default:
+					continue;
+				}
+				windowBytes += store.getPageSize();
+				if (windowBytes >= bytesPerSecond) {
+					long el = System.currentTimeMillis() - windowStart;
+					if (el < 1000)
+						Thread.sleep(1000 - el);
+					windowStart = System.currentTimeMillis();
+					windowBytes = 0;
+				}
+			}
+		} catch (InterruptedException e) {
+			throw e;
+		} catch (Exception e) {
+			SDFSLogger.getLog().error("scrub of chunk store failed", e);
+			evt.endEvent("Scrub of chunk store failed", SDFSEvent.ERROR, e);
+			return evt;
+		}
+		if (!closed)
+			this.setLastScrub(System.currentTimeMillis());
+		String msg = "Scrub of chunk store finished. Verified [" + ok
+				+ "] repaired [" + repaired + "] corrupt [" + corrupt + "]";
+		SDFSLogger.getLog().info(msg);
+		if (corrupt > 0)
+			evt.endEvent(msg, SDFSEvent.WARN);
+		else
+			evt.endEvent(msg, SDFSEvent.INFO);
+		return evt;
+	}
+
+	/**
+	 * Fetches a chunk from another storage node in the cluster.
+	 *
+	 * @param hash
+	 *            the hash of the chunk to fetch
+	 * @return the chunk or null if no replica could be found
+	 */
+	static byte[] fetchFromReplica(byte[] hash) {
+		ClusterSocket cs = HCServiceProxy.cs;
+		if (cs == null || cs.getServer() == null)
+			return null;
+		List<DSEServer> servers = cs.getStorageNodes();
+		for (DSEServer server : servers) {
+			if (server.id == cs.getServer().id)
+				continue;
+			HashClient hc = null;
+			try {
+				hc = new HashClient(new HCServer(server.hostName,
+						server.dseport, false, false, server.useSSL),
+						"scrubber", Main.DSEPassword, server.id, null);
+				byte[] b = hc.fetchChunk(hash);
+				if (b != null)
+					return b;
+			} catch (Exception e) {
+				if (SDFSLogger.isDebug())
+					SDFSLogger.getLog().debug(
+							"unable to fetch chunk from " + server.hostName, e);
+			} finally {
+				if (hc != null)
+					hc.close();
+			}
+		}
+		return null;
+	}
+
+	public void close() {
+		this.closed = true;
+		try {
+			th.interrupt();
+		} catch (Exception e) {
+		}
+	}
+
+}
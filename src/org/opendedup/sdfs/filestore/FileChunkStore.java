@@ -278,6 +278,14 @@ public class FileChunkStore implements AbstractChunkStore {
 		return 0;
 	}
 
+	/**
+	 * 
+	 * @return the size of each page in this chunk store
+	 */
+	public int getPageSize() {
+		return this.pageSize;
+	}
+
 	@Override
 	public long getFreeBlocks() {
 		if (this.freeSlots != null) {
@@ -2,7 +2,11 @@ package org.opendedup.sdfs.filestore;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.jets3t.service.ServiceException;
 import org.jets3t.service.impl.rest.httpclient.GoogleStorageService;
@@ -10,6 +14,11 @@ import org.jets3t.service.model.GSObject;
 import org.jets3t.service.security.GSCredentials;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.cloud.BatchDeleter;
+import org.opendedup.sdfs.filestore.cloud.DiskChunkCache;
+import org.opendedup.sdfs.filestore.cloud.GoogleObjectStore;
+import org.opendedup.sdfs.filestore.cloud.StagedChunkStore;
+import org.opendedup.sdfs.filestore.cloud.StagingUploader;
 import org.opendedup.util.CompressionUtils;
 import org.opendedup.util.EncryptUtils;
 import org.opendedup.util.StringUtils;
@@ -23,11 +32,19 @@ import org.w3c.dom.Element;
  *         important to make the chunk size very large on the client when using
  *         this chunk store since S3 charges per http request.
  * 
+ *         If async-upload is set in the extended-config element chunks are
+ *         written to a local staging area and uploaded in the background by
+ *         upload-threads threads. max-staged-uploads limits how many chunks
+ *         can wait in staging-path before writes block.
+ * 
  */
-public class GoogleChunkStore implements AbstractChunkStore {
+public class GoogleChunkStore implements AbstractChunkStore, StagedChunkStore {
 	private String name;
 	private static GoogleStorageService gsService;
 	private long currentLength = 0L;
+	private DiskChunkCache diskCache = null;
+	private BatchDeleter deleter = null;
+	private StagingUploader uploader = null;
 	// private static ReentrantLock lock = new ReentrantLock();
 
 	static {
@@ -65,7 +82,16 @@ public class GoogleChunkStore implements AbstractChunkStore {
 
 	@Override
 	public void close() {
-
+		if (this.uploader != null) {
+			if (!this.uploader.flush(Main.writeTimeoutSeconds * 1000L))
+				SDFSLogger.getLog().warn(
+						"timed out waiting for uploads, "
+								+ this.uploader.getQueueDepth()
+								+ " chunks will be uploaded on next mount");
+			this.uploader.close();
+		}
+		this.deleter.close(Main.writeTimeoutSeconds * 1000L);
+		this.diskCache.close();
 	}
 
 	public void expandFile(long length) throws IOException {
@@ -76,6 +102,21 @@ public class GoogleChunkStore implements AbstractChunkStore {
 	@Override
 	public byte[] getChunk(byte[] hash, long start, int len) throws IOException {
 		String hashString = this.getHashName(hash);
+		if (this.uploader != null) {
+			StagingUploader.StagedObject so = this.uploader.get(hashString);
+			if (so != null) {
+				try {
+					return decode(so.getData(), so.md);
+				} catch (IOException e) {
+					// uploaded while reading
+					if (this.uploader.get(hashString) != null)
+						throw e;
+				}
+			}
+		}
+		byte[] cached = this.diskCache.get(hashString);
+		if (cached != null)
+			return cached;
 		try {
 			GSObject obj = gsService.getObject(this.name, hashString);
 			byte[] data = new byte[(int) obj.getContentLength()];
@@ -86,6 +127,7 @@ public class GoogleChunkStore implements AbstractChunkStore {
 				data = EncryptUtils.decrypt(data);
 			if (Main.compress)
 				data = CompressionUtils.decompressZLIB(data);
+			this.diskCache.put(hashString, data);
 			return data;
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
@@ -96,6 +138,18 @@ public class GoogleChunkStore implements AbstractChunkStore {
 
 	}
 
+	/**
+	 * Decodes a chunk that is still in staging.
+	 */
+	private static byte[] decode(byte[] data, Map<String, String> md)
+			throws IOException {
+		if (Boolean.parseBoolean(md.get("encrypt")))
+			data = EncryptUtils.decrypt(data);
+		if (Boolean.parseBoolean(md.get("compress")))
+			data = CompressionUtils.decompressZLIB(data);
+		return data;
+	}
+
 	@Override
 	public String getName() {
 		return this.name;
@@ -115,19 +169,29 @@ public class GoogleChunkStore implements AbstractChunkStore {
 			throws IOException {
 
 		String hashString = this.getHashName(hash);
-		GSObject gsObject = new GSObject(hashString);
+		// the chunk may have been removed by gc and written again
+		this.deleter.cancel(hashString);
+		HashMap<String, String> md = new HashMap<String, String>();
 		if (Main.compress) {
 			chunk = CompressionUtils.compressZLIB(chunk);
-			gsObject.addMetadata("compress", "true");
+			md.put("compress", "true");
 		} else {
-			gsObject.addMetadata("compress", "false");
+			md.put("compress", "false");
 		}
 		if (Main.chunkStoreEncryptionEnabled) {
 			chunk = EncryptUtils.encrypt(chunk);
-			gsObject.addMetadata("encrypt", "true");
+			md.put("encrypt", "true");
 		} else {
-			gsObject.addMetadata("encrypt", "false");
+			md.put("encrypt", "false");
+		}
+		if (this.uploader != null) {
+			// blocks while the staging area is full
+			this.uploader.stage(hashString, chunk, md, null);
+			return 0;
 		}
+		GSObject gsObject = new GSObject(hashString);
+		for (Map.Entry<String, String> e : md.entrySet())
+			gsObject.addMetadata(e.getKey(), e.getValue());
 		ByteArrayInputStream s3IS = new ByteArrayInputStream(chunk);
 		gsObject.setDataInputStream(s3IS);
 		gsObject.setContentType("binary/octet-stream");
@@ -184,12 +248,10 @@ public class GoogleChunkStore implements AbstractChunkStore {
 	public void deleteChunk(byte[] hash, long start, int len)
 			throws IOException {
 		String hashString = this.getHashName(hash);
-		try {
-			gsService.deleteObject(this.getName(), hashString);
-		} catch (ServiceException e) {
-			SDFSLogger.getLog()
-					.warn("Unable to delete object " + hashString, e);
-		}
+		this.diskCache.remove(hashString);
+		if (this.uploader != null && this.uploader.cancel(hashString) != null)
+			return;
+		this.deleter.delete(hashString);
 	}
 
 	public static void deleteBucket(String bucketName, String awsAccessKey,
@@ -222,12 +284,62 @@ public class GoogleChunkStore implements AbstractChunkStore {
 
 	@Override
 	public void init(Element config) throws IOException {
+		this.diskCache = DiskChunkCache.getCache(config);
+		int deleteBatchSize = 100;
+		int deleteThreads = 16;
+		boolean async = false;
+		int uploadThreads = Main.dseIOThreads;
+		int maxStaged = 2048;
+		String stagingPath = Main.chunkStore + File.separator + "staging";
+		if (config != null) {
+			if (config.hasAttribute("async-upload"))
+				async = Boolean.parseBoolean(config
+						.getAttribute("async-upload"));
+			if (config.hasAttribute("upload-threads"))
+				uploadThreads = Integer.parseInt(config
+						.getAttribute("upload-threads"));
+			if (config.hasAttribute("max-staged-uploads"))
+				maxStaged = Integer.parseInt(config
+						.getAttribute("max-staged-uploads"));
+			if (config.hasAttribute("staging-path"))
+				stagingPath = config.getAttribute("staging-path");
+			if (config.hasAttribute("delete-batch-size"))
+				deleteBatchSize = Integer.parseInt(config
+						.getAttribute("delete-batch-size"));
+			if (config.hasAttribute("delete-threads"))
+				deleteThreads = Integer.parseInt(config
+						.getAttribute("delete-threads"));
+		}
+		// Google storage has no multi-object delete so each batch is deleted
+		// one object at a time on its own thread
+		this.deleter = new BatchDeleter(new BatchDeleter.Deleter() {
+			@Override
+			public void delete(List<String> keys) throws IOException {
+				try {
+					for (String key : keys)
+						gsService.deleteObject(name, key);
+				} catch (ServiceException e) {
+					throw new IOException(e);
+				}
+			}
+		}, deleteBatchSize, deleteThreads);
 		try {
 			this.name = Main.cloudBucket;
 			gsService.getOrCreateBucket(Main.cloudBucket);
 		} catch (ServiceException e) {
 			throw new IOException(e);
 		}
+		if (async) {
+			this.uploader = new StagingUploader(new GoogleObjectStore(
+					this.name, gsService), new File(stagingPath),
+					uploadThreads, maxStaged);
+			this.uploader.recover(null);
+		}
+	}
+
+	@Override
+	public StagingUploader getStagingUploader() {
+		return this.uploader;
 	}
 
 	public void clearStore() throws IOException {
@@ -304,8 +416,7 @@ public class GoogleChunkStore implements AbstractChunkStore {
 
 	@Override
 	public void setCacheSize(long bps) {
-		// TODO Auto-generated method stub
-		
+		this.diskCache.setMaxSize(bps);
 	}
 
 	@Override
@@ -322,14 +433,12 @@ public class GoogleChunkStore implements AbstractChunkStore {
 
 	@Override
 	public long getCacheSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return this.diskCache.getSize();
 	}
 
 	@Override
 	public long getMaxCacheSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return this.diskCache.getMaxSize();
 	}
 
 	@Override
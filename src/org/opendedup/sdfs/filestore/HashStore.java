@@ -134,6 +134,19 @@ public class HashStore {
 	public boolean hashExists(byte[] hash) throws IOException {
 		return this.bdb.containsKey(hash);
 	}
+
+	/**
+	 * method used to determine if several hashes already exist in the
+	 * database
+	 * 
+	 * @param hashes
+	 *            the hashes to lookup
+	 * @return true for each hash that already exists
+	 * @throws IOException
+	 */
+	public boolean[] hashesExist(byte[][] hashes) throws IOException {
+		return this.bdb.containsKeys(hashes);
+	}
 	
 	
 	public String restoreBlock(byte[] hash) throws IOException {
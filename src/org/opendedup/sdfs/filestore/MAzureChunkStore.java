@@ -2,11 +2,14 @@ package org.opendedup.sdfs.filestore;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -14,6 +17,11 @@ import org.bouncycastle.util.Arrays;
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.cloud.AzureObjectStore;
+import org.opendedup.sdfs.filestore.cloud.BatchDeleter;
+import org.opendedup.sdfs.filestore.cloud.DiskChunkCache;
+import org.opendedup.sdfs.filestore.cloud.StagedChunkStore;
+import org.opendedup.sdfs.filestore.cloud.StagingUploader;
 import org.opendedup.util.CompressionUtils;
 import org.opendedup.util.EncryptUtils;
 import org.opendedup.util.PassPhrase;
@@ -34,8 +42,19 @@ import com.microsoft.azure.storage.blob.*;
  *         important to make the chunk size very large on the client when using
  *         this chunk store since S3 charges per http request.
  * 
+ *         If async-upload is set in the extended-config element chunks are
+ *         written to a local staging area and uploaded in the background by
+ *         upload-threads threads. max-staged-uploads limits how many chunks
+ *         can wait in staging-path before writes block.
+ * 
+ *         Deletes are queued and sent by delete-threads threads in batches of
+ *         delete-batch-size blobs. The position returned by writeChunk is
+ *         [chunk length (32 bits)|stored length (32 bits)] so deleteChunk can
+ *         update the store size without reading the blob metadata.
+ * 
  */
-public class MAzureChunkStore implements AbstractChunkStore {
+public class MAzureChunkStore implements AbstractChunkStore,
+		StagedChunkStore {
 	CloudStorageAccount account;
 	CloudBlobClient serviceClient;
 	// CloudBlobContainer container;
@@ -46,6 +65,16 @@ public class MAzureChunkStore implements AbstractChunkStore {
 	private AtomicLong currentLength = new AtomicLong(0);
 	private AtomicLong compressedLength = new AtomicLong(0);
 	private int cacheSize = 104857600 / Main.CHUNK_LENGTH;
+	private DiskChunkCache diskCache = null;
+	private BatchDeleter deleter = null;
+	private int deleteBatchSize = 100;
+	private int deleteThreads = 16;
+	private StagingUploader uploader = null;
+	private boolean async = false;
+	private int uploadThreads = Main.dseIOThreads;
+	private int maxStaged = 2048;
+	private String stagingPath = Main.chunkStore + File.separator
+			+ "staging";
 	static {
 		System.setProperty("http.keepalive", "true");
 		System.setProperty("http.maxConnections", "128");
@@ -57,6 +86,22 @@ public class MAzureChunkStore implements AbstractChunkStore {
 				public byte[] load(String hashString) throws IOException {
 					if (SDFSLogger.isDebug())
 						SDFSLogger.getLog().debug("getting hash " + hashString);
+					if (uploader != null) {
+						StagingUploader.StagedObject so = uploader
+								.get(hashString);
+						if (so != null) {
+							try {
+								return decode(so.getData(), so.md);
+							} catch (IOException e) {
+								// uploaded while reading
+								if (uploader.get(hashString) != null)
+									throw e;
+							}
+						}
+					}
+					byte[] cached = diskCache.get(hashString);
+					if (cached != null)
+						return cached;
 					CloudBlobContainer container = null;
 					try {
 						container = pool.borrowObject();
@@ -91,7 +136,7 @@ public class MAzureChunkStore implements AbstractChunkStore {
 							size = Integer.parseInt(metaData.get("size"));
 							data = CompressionUtils.decompressLz4(data, size);
 						}
-
+						diskCache.put(hashString, data);
 						return data;
 					} catch (Exception e) {
 						SDFSLogger.getLog()
@@ -104,6 +149,19 @@ public class MAzureChunkStore implements AbstractChunkStore {
 				}
 			});
 
+	/**
+	 * Decodes a chunk that is still in staging.
+	 */
+	private static byte[] decode(byte[] data, Map<String, String> md)
+			throws IOException {
+		if (Boolean.parseBoolean(md.get("encrypt")))
+			data = EncryptUtils.decrypt(data);
+		if (Boolean.parseBoolean(md.get("lz4Compress")))
+			data = CompressionUtils.decompressLz4(data,
+					Integer.parseInt(md.get("size")));
+		return data;
+	}
+
 	public static boolean checkAuth(String awsAccessKey, String awsSecretKey) {
 		return false;
 	}
@@ -129,6 +187,16 @@ public class MAzureChunkStore implements AbstractChunkStore {
 
 	@Override
 	public void close() {
+		if (this.uploader != null) {
+			if (!this.uploader.flush(Main.writeTimeoutSeconds * 1000L))
+				SDFSLogger.getLog().warn(
+						"timed out waiting for uploads, "
+								+ this.uploader.getQueueDepth()
+								+ " chunks will be uploaded on next mount");
+			this.uploader.close();
+		}
+		this.deleter.close(Main.writeTimeoutSeconds * 1000L);
+		this.diskCache.close();
 		CloudBlobContainer container = null;
 		try {
 			container = pool.borrowObject();
@@ -198,12 +266,11 @@ public class MAzureChunkStore implements AbstractChunkStore {
 			throws IOException {
 		String hashString = this.getHashName(hash,
 				Main.chunkStoreEncryptionEnabled);
+		// the chunk may have been removed by gc and written again
+		this.deleter.cancel(hashString);
 		CloudBlobContainer container = null;
 		int cl = chunk.length;
 		try {
-			container = pool.borrowObject();
-
-			CloudBlockBlob blob = container.getBlockBlobReference(hashString);
 			HashMap<String, String> metaData = new HashMap<String, String>();
 
 			if (Main.compress) {
@@ -220,16 +287,28 @@ public class MAzureChunkStore implements AbstractChunkStore {
 			}
 			metaData.put("size", Integer.toString(cl));
 			metaData.put("compressedsize", Integer.toString(chunk.length));
+			if (this.uploader != null) {
+				// blocks while the staging area is full
+				this.uploader.stage(hashString, chunk, metaData, null);
+				this.currentLength.addAndGet(cl);
+				this.compressedLength.addAndGet(chunk.length);
+				return ((long) cl << 32) | chunk.length;
+			}
+			container = pool.borrowObject();
+			CloudBlockBlob blob = container.getBlockBlobReference(hashString);
 			blob.setMetadata(metaData);
 			ByteArrayInputStream s3IS = new ByteArrayInputStream(chunk);
 			blob.upload(s3IS, chunk.length);
 			blob.uploadMetadata();
-			return 0;
+			this.currentLength.addAndGet(cl);
+			this.compressedLength.addAndGet(chunk.length);
+			return ((long) cl << 32) | chunk.length;
 		} catch (Exception e) {
 			SDFSLogger.getLog().error("unable to write hash " + hashString, e);
 			throw new IOException(e);
 		} finally {
-			pool.returnObject(container);
+			if (container != null)
+				pool.returnObject(container);
 		}
 	}
 
@@ -239,19 +318,23 @@ public class MAzureChunkStore implements AbstractChunkStore {
 		String hashString = this.getHashName(hash,
 				Main.chunkStoreEncryptionEnabled);
 
-		CloudBlobContainer container = null;
-		try {
-			container = pool.borrowObject();
-			this.chunks.invalidate(hashString);
-			CloudBlockBlob blob = container.getBlockBlobReference(hashString);
-			if (blob.exists())
-				blob.delete();
-		} catch (Exception e) {
-			SDFSLogger.getLog()
-					.warn("Unable to delete object " + hashString, e);
-		} finally {
-			pool.returnObject(container);
+		this.chunks.invalidate(hashString);
+		this.diskCache.remove(hashString);
+		if (this.uploader != null) {
+			StagingUploader.StagedObject so = this.uploader.cancel(hashString);
+			if (so != null) {
+				this.currentLength.addAndGet(-1
+						* Integer.parseInt(so.md.get("size")));
+				this.compressedLength.addAndGet(-1
+						* Integer.parseInt(so.md.get("compressedsize")));
+				return;
+			}
 		}
+		if (start > 0) {
+			this.currentLength.addAndGet(-1 * (int) (start >>> 32));
+			this.compressedLength.addAndGet(-1 * (int) (start & 0xFFFFFFFFL));
+		}
+		this.deleter.delete(hashString);
 	}
 
 	public void deleteBucket() throws StorageException, IOException,
@@ -278,11 +361,48 @@ public class MAzureChunkStore implements AbstractChunkStore {
 	@Override
 	public void init(Element config) throws IOException {
 		this.name = Main.cloudBucket.toLowerCase();
+		this.diskCache = DiskChunkCache.getCache(config);
+		if (config != null) {
+			if (config.hasAttribute("delete-batch-size"))
+				this.deleteBatchSize = Integer.parseInt(config
+						.getAttribute("delete-batch-size"));
+			if (config.hasAttribute("delete-threads"))
+				this.deleteThreads = Integer.parseInt(config
+						.getAttribute("delete-threads"));
+			if (config.hasAttribute("async-upload"))
+				this.async = Boolean.parseBoolean(config
+						.getAttribute("async-upload"));
+			if (config.hasAttribute("upload-threads"))
+				this.uploadThreads = Integer.parseInt(config
+						.getAttribute("upload-threads"));
+			if (config.hasAttribute("max-staged-uploads"))
+				this.maxStaged = Integer.parseInt(config
+						.getAttribute("max-staged-uploads"));
+			if (config.hasAttribute("staging-path"))
+				this.stagingPath = config.getAttribute("staging-path");
+		}
 		init();
 
 	}
 
 	public void init() throws IOException {
+		if (this.diskCache == null)
+			this.diskCache = DiskChunkCache.getCache(null);
+		this.deleter = new BatchDeleter(new BatchDeleter.Deleter() {
+			@Override
+			public void delete(List<String> keys) throws IOException {
+				CloudBlobContainer container = null;
+				try {
+					container = pool.borrowObject();
+					for (String key : keys)
+						container.getBlockBlobReference(key).deleteIfExists();
+				} catch (Exception e) {
+					throw new IOException(e);
+				} finally {
+					pool.returnObject(container);
+				}
+			}
+		}, deleteBatchSize, deleteThreads);
 		CloudBlobContainer container = null;
 		try {
 			String storageConnectionString = "DefaultEndpointsProtocol=http;"
@@ -319,6 +439,17 @@ public class MAzureChunkStore implements AbstractChunkStore {
 			if (pool != null)
 				pool.returnObject(container);
 		}
+		if (this.async) {
+			this.uploader = new StagingUploader(new AzureObjectStore(
+					this.name, pool), new File(stagingPath), uploadThreads,
+					maxStaged);
+			this.uploader.recover(null);
+		}
+	}
+
+	@Override
+	public StagingUploader getStagingUploader() {
+		return this.uploader;
 	}
 
 	Iterator<ListBlobItem> iter = null;
@@ -378,7 +509,7 @@ public class MAzureChunkStore implements AbstractChunkStore {
 				byte[] nm = this.getHashBytes(bi.getName(), encrypt);
 				int sz = Integer.parseInt(md.get("size"));
 				int cl = Integer.parseInt(md.get("compressedsize"));
-				ChunkData chk = new ChunkData(nm, 0);
+				ChunkData chk = new ChunkData(nm, ((long) sz << 32) | cl);
 				chk.cLen = sz;
 				this.currentLength.addAndGet(chk.cLen);
 				this.compressedLength.addAndGet(cl);
@@ -426,8 +557,7 @@ public class MAzureChunkStore implements AbstractChunkStore {
 
 	@Override
 	public void setCacheSize(long bps) {
-		// TODO Auto-generated method stub
-		
+		this.diskCache.setMaxSize(bps);
 	}
 
 	@Override
@@ -444,14 +574,12 @@ public class MAzureChunkStore implements AbstractChunkStore {
 
 	@Override
 	public long getCacheSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return this.diskCache.getSize();
 	}
 
 	@Override
 	public long getMaxCacheSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return this.diskCache.getMaxSize();
 	}
 
 	@Override
@@ -43,7 +43,8 @@ private static EventBus eventBus = new EventBus();
 	
 
 	private static ConcurrentLinkedHashMap<String, MetaDataDedupFile> pathMap = new Builder<String, MetaDataDedupFile>()
-			.concurrencyLevel(Main.writeThreads).maximumWeightedCapacity(5000)
+			.concurrencyLevel(Main.writeThreads)
+			.maximumWeightedCapacity(Main.metaCacheSize)
 			.listener(new EvictionListener<String, MetaDataDedupFile>() {
 				// This method is called just after a new entry has been
 				// added
@@ -2,7 +2,11 @@ package org.opendedup.sdfs.filestore;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -13,10 +17,17 @@ import org.jets3t.service.StorageObjectsChunk;
 import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.S3Bucket;
 import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.MultipleDeleteResult;
 import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.model.container.ObjectKeyAndVersion;
 import org.jets3t.service.security.AWSCredentials;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.cloud.BatchDeleter;
+import org.opendedup.sdfs.filestore.cloud.DiskChunkCache;
+import org.opendedup.sdfs.filestore.cloud.S3ObjectStore;
+import org.opendedup.sdfs.filestore.cloud.StagedChunkStore;
+import org.opendedup.sdfs.filestore.cloud.StagingUploader;
 import org.opendedup.util.CompressionUtils;
 import org.opendedup.util.EncryptUtils;
 import org.opendedup.util.StringUtils;
@@ -34,20 +45,49 @@ import com.google.common.cache.LoadingCache;
  *         important to make the chunk size very large on the client when using
  *         this chunk store since S3 charges per http request.
  * 
+ *         If async-upload is set in the extended-config element chunks are
+ *         written to a local staging area and uploaded in the background by
+ *         upload-threads threads. max-staged-uploads limits how many chunks
+ *         can wait in staging-path before writes block.
+ * 
+ *         Deletes are sent as multi-object delete requests of up to
+ *         delete-batch-size keys by delete-threads threads. The position
+ *         returned by writeChunk is [chunk length (32 bits)|stored length (32
+ *         bits)] so deleteChunk can update the store size without reading the
+ *         object metadata.
+ * 
  */
-public class S3ChunkStore implements AbstractChunkStore {
+public class S3ChunkStore implements AbstractChunkStore, StagedChunkStore {
 	private static AWSCredentials awsCredentials = null;
 	private String name;
 	private S3ServicePool pool = null;
 	private AtomicLong currentLength = new AtomicLong(0);
 	private AtomicLong compressedLength = new AtomicLong(0);
 	private int cacheSize = 10485760 / Main.CHUNK_LENGTH;
+	private StagingUploader uploader = null;
+	private DiskChunkCache diskCache = null;
+	private BatchDeleter deleter = null;
 
 	LoadingCache<String, byte[]> chunks = CacheBuilder.newBuilder()
 			.maximumSize(cacheSize).concurrencyLevel(72)
 			.build(new CacheLoader<String, byte[]>() {
 				public byte[] load(String hashString) throws IOException {
-
+					if (uploader != null) {
+						StagingUploader.StagedObject so = uploader
+								.get(hashString);
+						if (so != null) {
+							try {
+								return decode(so.getData(), so.md);
+							} catch (IOException e) {
+								// uploaded while reading
+								if (uploader.get(hashString) != null)
+									throw e;
+							}
+						}
+					}
+					byte[] cached = diskCache.get(hashString);
+					if (cached != null)
+						return cached;
 					RestS3Service s3Service = null;
 					try {
 						s3Service = pool.borrowObject();
@@ -91,6 +131,7 @@ public class S3ChunkStore implements AbstractChunkStore {
 						else if (lz4compress) {
 							data = CompressionUtils.decompressLz4(data, size);
 						}
+						diskCache.put(hashString, data);
 						return data;
 					} catch (Exception e) {
 						SDFSLogger.getLog()
@@ -103,6 +144,19 @@ public class S3ChunkStore implements AbstractChunkStore {
 				}
 			});
 
+	/**
+	 * Decodes a chunk that is still in staging.
+	 */
+	private static byte[] decode(byte[] data, Map<String, String> md)
+			throws IOException {
+		if (Boolean.parseBoolean(md.get("encrypt")))
+			data = EncryptUtils.decrypt(data);
+		if (Boolean.parseBoolean(md.get("lz4compress")))
+			data = CompressionUtils.decompressLz4(data,
+					Integer.parseInt(md.get("size")));
+		return data;
+	}
+
 	static {
 		try {
 			awsCredentials = new AWSCredentials(Main.cloudAccessKey,
@@ -163,6 +217,16 @@ public class S3ChunkStore implements AbstractChunkStore {
 
 	@Override
 	public void close() {
+		if (this.uploader != null) {
+			if (!this.uploader.flush(Main.writeTimeoutSeconds * 1000L))
+				SDFSLogger.getLog().warn(
+						"timed out waiting for uploads, "
+								+ this.uploader.getQueueDepth()
+								+ " chunks will be uploaded on next mount");
+			this.uploader.close();
+		}
+		this.deleter.close(Main.writeTimeoutSeconds * 1000L);
+		this.diskCache.close();
 		RestS3Service s3Service = null;
 		try {
 
@@ -237,23 +301,34 @@ public class S3ChunkStore implements AbstractChunkStore {
 			throws IOException {
 		String hashString = this.getHashName(hash,
 				Main.chunkStoreEncryptionEnabled);
-		S3Object s3Object = new S3Object(hashString);
-		s3Object.addMetadata("size", Integer.toString(chunk.length));
+		// the chunk may have been removed by gc and written again
+		this.deleter.cancel(hashString);
+		int size = chunk.length;
+		HashMap<String, String> umd = new HashMap<String, String>();
+		umd.put("size", Integer.toString(chunk.length));
 		this.currentLength.addAndGet(chunk.length);
 		if (Main.compress) {
 			chunk = CompressionUtils.compressLz4(chunk);
-			s3Object.addMetadata("lz4compress", "true");
+			umd.put("lz4compress", "true");
 		} else {
-			s3Object.addMetadata("lz4compress", "false");
+			umd.put("lz4compress", "false");
 		}
 		if (Main.chunkStoreEncryptionEnabled) {
 			chunk = EncryptUtils.encrypt(chunk);
-			s3Object.addMetadata("encrypt", "true");
+			umd.put("encrypt", "true");
 		} else {
-			s3Object.addMetadata("encrypt", "false");
+			umd.put("encrypt", "false");
 		}
-		s3Object.addMetadata("compressedsize", Integer.toString(chunk.length));
+		umd.put("compressedsize", Integer.toString(chunk.length));
 		this.compressedLength.addAndGet(chunk.length);
+		if (this.uploader != null) {
+			// blocks while the staging area is full
+			this.uploader.stage(hashString, chunk, umd, null);
+			return ((long) size << 32) | chunk.length;
+		}
+		S3Object s3Object = new S3Object(hashString);
+		for (Map.Entry<String, String> e : umd.entrySet())
+			s3Object.addMetadata(e.getKey(), e.getValue());
 		ByteArrayInputStream s3IS = new ByteArrayInputStream(chunk);
 		s3Object.setDataInputStream(s3IS);
 		s3Object.setContentType("binary/octet-stream");
@@ -262,7 +337,7 @@ public class S3ChunkStore implements AbstractChunkStore {
 		try {
 			s3Service = pool.borrowObject();
 			s3Service.putObject(this.name, s3Object);
-			return 0;
+			return ((long) size << 32) | chunk.length;
 		} catch (Throwable e) {
 			SDFSLogger.getLog().fatal("unable to upload " + hashString, e);
 			throw new IOException(e);
@@ -285,15 +360,35 @@ public class S3ChunkStore implements AbstractChunkStore {
 		RestS3Service s3Service = null;
 		try {
 			this.chunks.invalidate(hashString);
-			s3Service = pool.borrowObject();
-			StorageObject obj = s3Service.getObjectDetails(this.name,
-					hashString);
-			int size = Integer.parseInt((String) obj.getMetadata("size"));
-			int compressedSize = Integer.parseInt((String) obj
-					.getMetadata("compressedsize"));
+			this.diskCache.remove(hashString);
+			if (this.uploader != null) {
+				StagingUploader.StagedObject so = this.uploader
+						.cancel(hashString);
+				if (so != null) {
+					this.currentLength.addAndGet(-1
+							* Integer.parseInt(so.md.get("size")));
+					this.compressedLength.addAndGet(-1
+							* Integer.parseInt(so.md.get("compressedsize")));
+					return;
+				}
+			}
+			int size;
+			int compressedSize;
+			if (start > 0) {
+				size = (int) (start >>> 32);
+				compressedSize = (int) (start & 0xFFFFFFFFL);
+			} else {
+				// written before the sizes were kept in the position
+				s3Service = pool.borrowObject();
+				StorageObject obj = s3Service.getObjectDetails(this.name,
+						hashString);
+				size = Integer.parseInt((String) obj.getMetadata("size"));
+				compressedSize = Integer.parseInt((String) obj
+						.getMetadata("compressedsize"));
+			}
 			this.currentLength.addAndGet(-1 * size);
 			this.compressedLength.addAndGet(-1 * compressedSize);
-			s3Service.deleteObject(this.name, hashString);
+			this.deleter.delete(hashString);
 		} catch (Exception e) {
 			SDFSLogger.getLog()
 					.warn("Unable to delete object " + hashString, e);
@@ -345,6 +440,53 @@ public class S3ChunkStore implements AbstractChunkStore {
 	@Override
 	public void init(Element config) throws IOException {
 		this.name = Main.cloudBucket;
+		boolean async = false;
+		int uploadThreads = Main.dseIOThreads;
+		int maxStaged = 2048;
+		String stagingPath = Main.chunkStore + File.separator + "staging";
+		if (config.hasAttribute("async-upload"))
+			async = Boolean.parseBoolean(config.getAttribute("async-upload"));
+		if (config.hasAttribute("upload-threads"))
+			uploadThreads = Integer.parseInt(config
+					.getAttribute("upload-threads"));
+		if (config.hasAttribute("max-staged-uploads"))
+			maxStaged = Integer.parseInt(config
+					.getAttribute("max-staged-uploads"));
+		if (config.hasAttribute("staging-path"))
+			stagingPath = config.getAttribute("staging-path");
+		this.diskCache = DiskChunkCache.getCache(config);
+		int deleteBatchSize = 1000;
+		int deleteThreads = 8;
+		if (config.hasAttribute("delete-batch-size"))
+			deleteBatchSize = Integer.parseInt(config
+					.getAttribute("delete-batch-size"));
+		if (config.hasAttribute("delete-threads"))
+			deleteThreads = Integer.parseInt(config
+					.getAttribute("delete-threads"));
+		this.deleter = new BatchDeleter(new BatchDeleter.Deleter() {
+			@Override
+			public void delete(List<String> keys) throws IOException {
+				RestS3Service s3Service = null;
+				try {
+					s3Service = pool.borrowObject();
+					ObjectKeyAndVersion[] kv = new ObjectKeyAndVersion[keys
+							.size()];
+					for (int i = 0; i < kv.length; i++)
+						kv[i] = new ObjectKeyAndVersion(keys.get(i));
+					MultipleDeleteResult rs = s3Service.deleteMultipleObjects(
+							name, kv);
+					if (rs.hasErrors())
+						throw new IOException("unable to delete "
+								+ rs.getErrorResults().length + " objects");
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException(e);
+				} finally {
+					pool.returnObject(s3Service);
+				}
+			}
+		}, deleteBatchSize, deleteThreads);
 		try {
 			String bucketLocation = null;
 			if (config.hasAttribute("default-bucket-location")) {
@@ -423,7 +565,17 @@ public class S3ChunkStore implements AbstractChunkStore {
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
+		if (async) {
+			this.uploader = new StagingUploader(new S3ObjectStore(this.name,
+					pool), new File(stagingPath), uploadThreads, maxStaged);
+			this.uploader.recover(null);
+		}
+
+	}
 
+	@Override
+	public StagingUploader getStagingUploader() {
+		return this.uploader;
 	}
 
 	@Override
@@ -462,15 +614,34 @@ public class S3ChunkStore implements AbstractChunkStore {
 				int cl = Integer.parseInt((String) obj[objPos]
 						.getMetadata("compressedsize"));
 				this.compressedLength.addAndGet(cl);
+				chk.setcPos(((long) chk.cLen << 32) | cl);
 			}
 			objPos++;
 			return chk;
 		}
+		while (stagedKeys != null && stagedPos < stagedKeys.size()) {
+			// chunks that have not been uploaded yet
+			String key = stagedKeys.get(stagedPos);
+			stagedPos++;
+			StagingUploader.StagedObject so = uploader.get(key);
+			if (so == null)
+				continue;
+			ChunkData chk = new ChunkData(this.getHashBytes(key,
+					Boolean.parseBoolean(so.md.get("encrypt"))), 0);
+			chk.cLen = Integer.parseInt(so.md.get("size"));
+			int cl = Integer.parseInt(so.md.get("compressedsize"));
+			this.currentLength.addAndGet(chk.cLen);
+			this.compressedLength.addAndGet(cl);
+			chk.setcPos(((long) chk.cLen << 32) | cl);
+			return chk;
+		}
 		return null;
 	}
 
 	StorageObject[] obj = null;
 	int objPos = 0;
+	List<String> stagedKeys = null;
+	int stagedPos = 0;
 	S3Service bs3Service = null;
 	String lastKey = null;
 
@@ -484,6 +655,9 @@ public class S3ChunkStore implements AbstractChunkStore {
 			this.compressedLength.set(0);
 			this.currentLength.set(0);
 			obj = ck.getObjects();
+			if (uploader != null)
+				stagedKeys = uploader.getStagedKeys();
+			stagedPos = 0;
 			this.lastKey = null;
 			objPos = 0;
 		} catch (ServiceException e) {
@@ -537,8 +711,7 @@ public class S3ChunkStore implements AbstractChunkStore {
 
 	@Override
 	public void setCacheSize(long bps) {
-		// TODO Auto-generated method stub
-		
+		this.diskCache.setMaxSize(bps);
 	}
 
 	@Override
@@ -555,14 +728,12 @@ public class S3ChunkStore implements AbstractChunkStore {
 
 	@Override
 	public long getCacheSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return this.diskCache.getSize();
 	}
 
 	@Override
 	public long getMaxCacheSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return this.diskCache.getMaxSize();
 	}
 
 	@Override
@@ -0,0 +1,197 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.AWSS3ServicePool;
+import org.w3c.dom.Element;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ *
+ * @author Sam Silverberg Object store for AWS S3 using the AWS SDK.
+ *
+ */
+public class AWSS3ObjectStore implements ObjectStore {
+	private String name;
+	private AWSS3ServicePool pool = null;
+
+	public AWSS3ObjectStore() {
+
+	}
+
+	/**
+	 * Creates an object store that shares the connection pool of a chunk
+	 * store. init does not need to be called.
+	 *
+	 * @param name
+	 *            the bucket name
+	 * @param pool
+	 *            the pool to borrow clients from
+	 */
+	public AWSS3ObjectStore(String name, AWSS3ServicePool pool) {
+		this.name = name;
+		this.pool = pool;
+	}
+
+	@Override
+	public void init(Element config) throws IOException {
+		this.name = Main.cloudBucket.toLowerCase();
+		AmazonS3Client s3Service = null;
+		try {
+			pool = new AWSS3ServicePool(new BasicAWSCredentials(
+					Main.cloudAccessKey, Main.cloudSecretKey),
+					Main.dseIOThreads);
+			s3Service = pool.borrowObject();
+			if (!s3Service.doesBucketExist(this.name)) {
+				s3Service.createBucket(this.name);
+				SDFSLogger.getLog().info("created new store " + name);
+			}
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (s3Service != null)
+				pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public void putObject(String key, byte[] data, Map<String, String> md)
+			throws IOException {
+		ObjectMetadata omd = new ObjectMetadata();
+		if (md != null) {
+			for (Map.Entry<String, String> e : md.entrySet())
+				omd.addUserMetadata(e.getKey(), e.getValue());
+		}
+		omd.setContentLength(data.length);
+		omd.setContentType("binary/octet-stream");
+		AmazonS3Client s3Service = null;
+		try {
+			s3Service = pool.borrowObject();
+			s3Service.putObject(name, key, new ByteArrayInputStream(data), omd);
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (s3Service != null)
+				pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public byte[] getObject(String key) throws IOException {
+		return this.get(new GetObjectRequest(name, key));
+	}
+
+	@Override
+	public byte[] getObjectRange(String key, long start, int len)
+			throws IOException {
+		GetObjectRequest req = new GetObjectRequest(name, key);
+		req.setRange(start, start + len - 1);
+		return this.get(req);
+	}
+
+	private byte[] get(GetObjectRequest req) throws IOException {
+		AmazonS3Client s3Service = null;
+		try {
+			s3Service = pool.borrowObject();
+			S3Object obj = s3Service.getObject(req);
+			try {
+				byte[] data = new byte[(int) obj.getObjectMetadata()
+						.getContentLength()];
+				DataInputStream in = new DataInputStream(obj.getObjectContent());
+				in.readFully(data);
+				return data;
+			} finally {
+				obj.close();
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (s3Service != null)
+				pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public Map<String, String> getObjectMetadata(String key)
+			throws IOException {
+		AmazonS3Client s3Service = null;
+		try {
+			s3Service = pool.borrowObject();
+			return s3Service.getObjectMetadata(name, key).getUserMetadata();
+		} catch (AmazonS3Exception e) {
+			if (e.getStatusCode() == 404)
+				return null;
+			throw new IOException(e);
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (s3Service != null)
+				pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public void deleteObject(String key) throws IOException {
+		AmazonS3Client s3Service = null;
+		try {
+			s3Service = pool.borrowObject();
+			s3Service.deleteObject(name, key);
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (s3Service != null)
+				pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public List<String> listObjects(String prefix) throws IOException {
+		ArrayList<String> keys = new ArrayList<String>();
+		AmazonS3Client s3Service = null;
+		try {
+			s3Service = pool.borrowObject();
+			ObjectListing ol = s3Service.listObjects(name, prefix);
+			for (;;) {
+				for (S3ObjectSummary sm : ol.getObjectSummaries())
+					keys.add(sm.getKey());
+				if (!ol.isTruncated())
+					break;
+				ol = s3Service.listNextBatchOfObjects(ol);
+			}
+			return keys;
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (s3Service != null)
+				pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			pool.close();
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("error while closing bucket " + this.name,
+					e);
+		}
+	}
+
+}
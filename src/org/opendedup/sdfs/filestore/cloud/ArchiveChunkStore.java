@@ -0,0 +1,795 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bouncycastle.util.Arrays;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.AbstractChunkStore;
+import org.opendedup.sdfs.filestore.ChunkData;
+import org.opendedup.util.CompressionUtils;
+import org.opendedup.util.EncryptUtils;
+import org.w3c.dom.Element;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ *
+ * @author Sam Silverberg The archive chunk store packs chunks into multi-MB
+ *         archive objects instead of storing one object per chunk. Chunks are
+ *         appended to a local journal and acknowledged once the journal has
+ *         been forced to disk. When the journal reaches archive-size it is
+ *         sealed, a footer index is appended and it is handed to a
+ *         {@link StagingUploader} which uploads it in the background as
+ *         archives/[id]. The position returned for a chunk is [archive id (32
+ *         bits)|offset in archive (32 bits)] and reads use a ranged get for
+ *         just that record.
+ *
+ *         The store is configured through the extended-config element:
+ *         object-store (aws, s3, azure, google, file or a class name),
+ *         archive-size (MB), journal-path, upload-threads and max-staged.
+ *         Chunks read from uploaded archives are kept in the shared
+ *         {@link DiskChunkCache}.
+ *
+ *         The number of dead chunks in each archive is checkpointed to
+ *         archives.dead and every delete after the checkpoint is appended to
+ *         archives.dead.[generation].log so counts survive a crash.
+ *
+ */
+public class ArchiveChunkStore implements AbstractChunkStore,
+		StagedChunkStore {
+	private static final String INFO_KEY = "archiveinfo";
+	private String name;
+	private ObjectStore store = null;
+	private File journalDir = null;
+	private int archiveSize = 8 * 1024 * 1024;
+	private AtomicLong lastId = new AtomicLong(0);
+	private AtomicLong currentLength = new AtomicLong(0);
+	private AtomicLong compressedLength = new AtomicLong(0);
+	private ArchiveJournal current = null;
+	private ReentrantLock wlock = new ReentrantLock();
+	private ConcurrentHashMap<Long, ArchiveJournal> sealed = new ConcurrentHashMap<Long, ArchiveJournal>();
+	private ConcurrentHashMap<Long, AtomicInteger> deadChunks = new ConcurrentHashMap<Long, AtomicInteger>();
+	private static final int MAX_DEAD_LOG_RECORDS = 1024 * 1024;
+	private ReentrantLock deadLock = new ReentrantLock();
+	private long deadGen = 0;
+	private FileOutputStream deadLog = null;
+	private int deadLogRecords = 0;
+	private StagingUploader uploader = null;
+	private DiskChunkCache diskCache = null;
+	private int cacheSize = 10485760 / Main.CHUNK_LENGTH;
+	private boolean closed = false;
+
+	LoadingCache<Long, ArchiveFooter> footers = CacheBuilder.newBuilder()
+			.maximumSize(1024).concurrencyLevel(72)
+			.build(new CacheLoader<Long, ArchiveFooter>() {
+				public ArchiveFooter load(Long id) throws IOException {
+					return getRemoteFooter(id.longValue());
+				}
+			});
+
+	LoadingCache<Long, byte[]> chunks = CacheBuilder.newBuilder()
+			.maximumSize(cacheSize).concurrencyLevel(72)
+			.build(new CacheLoader<Long, byte[]>() {
+				public byte[] load(Long pos) throws IOException {
+					return readChunk(pos.longValue());
+				}
+			});
+
+	public ArchiveChunkStore() {
+
+	}
+
+	public static String getArchiveKey(long id) {
+		return "archives/" + id;
+	}
+
+	public static ObjectStore createObjectStore(String type) throws IOException {
+		String cls = type;
+		if (type.equalsIgnoreCase("aws"))
+			cls = AWSS3ObjectStore.class.getName();
+		else if (type.equalsIgnoreCase("s3"))
+			cls = S3ObjectStore.class.getName();
+		else if (type.equalsIgnoreCase("azure"))
+			cls = AzureObjectStore.class.getName();
+		else if (type.equalsIgnoreCase("google"))
+			cls = GoogleObjectStore.class.getName();
+		else if (type.equalsIgnoreCase("file"))
+			cls = FileObjectStore.class.getName();
+		try {
+			return (ObjectStore) Class.forName(cls).newInstance();
+		} catch (Exception e) {
+			throw new IOException("unable to create object store " + type, e);
+		}
+	}
+
+	@Override
+	public void init(Element config) throws IOException {
+		String type = "aws";
+		String jpath = Main.chunkStore + File.separator + "journal";
+		int uploadThreads = 4;
+		int maxStaged = 16;
+		if (config != null) {
+			if (config.hasAttribute("object-store"))
+				type = config.getAttribute("object-store");
+			if (config.hasAttribute("archive-size"))
+				this.archiveSize = Integer.parseInt(config
+						.getAttribute("archive-size")) * 1024 * 1024;
+			if (config.hasAttribute("journal-path"))
+				jpath = config.getAttribute("journal-path");
+			if (config.hasAttribute("upload-threads"))
+				uploadThreads = Integer.parseInt(config
+						.getAttribute("upload-threads"));
+			if (config.hasAttribute("max-staged"))
+				maxStaged = Integer.parseInt(config.getAttribute("max-staged"));
+		}
+		this.name = Main.cloudBucket;
+		this.journalDir = new File(jpath);
+		if (!journalDir.exists())
+			journalDir.mkdirs();
+		this.store = createObjectStore(type);
+		this.store.init(config);
+		this.diskCache = DiskChunkCache.getCache(config);
+		this.loadInfo();
+		this.loadDeadChunks();
+		this.uploader = new StagingUploader(store, new File(journalDir,
+				"staging"), uploadThreads, maxStaged);
+		this.uploader.recover(this.archiveListener);
+		File[] jnls = journalDir.listFiles();
+		ArrayList<ArchiveJournal> recovered = new ArrayList<ArchiveJournal>();
+		for (File f : jnls) {
+			if (!f.getName().endsWith(".jnl"))
+				continue;
+			ArchiveJournal j = ArchiveJournal.recover(f);
+			if (j.id > lastId.get())
+				lastId.set(j.id);
+			if (j.getFooter().getCount() == 0) {
+				j.delete();
+			} else {
+				SDFSLogger.getLog().info(
+						"recovered archive journal " + j.id + " with "
+								+ j.getFooter().getCount() + " chunks");
+				recovered.add(j);
+			}
+		}
+		for (ArchiveJournal j : recovered) {
+			sealed.put(j.id, j);
+			this.sealAndStage(j);
+		}
+		this.current = new ArchiveJournal(journalDir, lastId.incrementAndGet());
+		this.writeInfo(true);
+		SDFSLogger.getLog().info(
+				"archive chunk store " + name + " opened with archive size "
+						+ archiveSize + " next archive is " + current.id);
+	}
+
+	private void loadInfo() throws IOException {
+		Map<String, String> md = store.getObjectMetadata(INFO_KEY);
+		long id = -1;
+		if (md != null && md.containsKey("lastid")) {
+			id = Long.parseLong(md.get("lastid"));
+			long sz = Long.parseLong(md.get("currentsize"));
+			long csz = Long.parseLong(md.get("currentcompressedsize"));
+			if (sz >= 0) {
+				this.currentLength.set(sz);
+				this.compressedLength.set(csz);
+			} else
+				SDFSLogger.getLog().warn(
+						"The archive store did not close correctly len=" + sz);
+		}
+		if (id < 0) {
+			// store did not close cleanly so find the last archive written
+			id = 0;
+			for (String key : store.listObjects("archives/")) {
+				try {
+					long _id = Long.parseLong(key.substring(9));
+					if (_id > id)
+						id = _id;
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		this.lastId.set(id);
+	}
+
+	private void writeInfo(boolean open) throws IOException {
+		HashMap<String, String> md = new HashMap<String, String>();
+		long m = open ? -1 : 1;
+		md.put("lastid", Long.toString(open ? -1 : lastId.get()));
+		md.put("currentsize", Long.toString(m * currentLength.get()));
+		md.put("currentcompressedsize",
+				Long.toString(m * compressedLength.get()));
+		store.putObject(INFO_KEY, new byte[1], md);
+	}
+
+	private File getDeadLog(long gen) {
+		return new File(journalDir, "archives.dead." + gen + ".log");
+	}
+
+	/**
+	 * Reads the last dead chunk checkpoint, replays the deletes logged after
+	 * it and writes a new checkpoint.
+	 */
+	private void loadDeadChunks() throws IOException {
+		File f = new File(journalDir, "archives.dead");
+		if (f.exists()) {
+			DataInputStream in = new DataInputStream(new FileInputStream(f));
+			try {
+				this.deadGen = in.readLong();
+				int sz = in.readInt();
+				for (int i = 0; i < sz; i++) {
+					long id = in.readLong();
+					deadChunks.put(id, new AtomicInteger(in.readInt()));
+				}
+			} finally {
+				in.close();
+			}
+		}
+		File lf = this.getDeadLog(this.deadGen);
+		if (lf.exists()) {
+			DataInputStream in = new DataInputStream(new FileInputStream(lf));
+			int ct = 0;
+			try {
+				// a partial record at the end was never acknowledged
+				for (long i = lf.length() / 8; i > 0; i--) {
+					long id = in.readLong();
+					deadChunks.putIfAbsent(id, new AtomicInteger(0));
+					deadChunks.get(id).incrementAndGet();
+					ct++;
+				}
+			} finally {
+				in.close();
+			}
+			if (ct > 0)
+				SDFSLogger.getLog().info(
+						"replayed " + ct + " dead chunk records");
+		}
+		this.writeDeadChunks();
+		File[] logs = journalDir.listFiles();
+		String cur = this.getDeadLog(this.deadGen).getName();
+		for (File l : logs) {
+			if (l.getName().startsWith("archives.dead.")
+					&& l.getName().endsWith(".log")
+					&& !l.getName().equals(cur))
+				l.delete();
+		}
+	}
+
+	/**
+	 * Checkpoints the dead chunk counts and starts a new log. The checkpoint
+	 * names the log that follows it so a crash at any point replays each
+	 * delete exactly once.
+	 */
+	private void writeDeadChunks() throws IOException {
+		File f = new File(journalDir, "archives.dead");
+		File tf = new File(journalDir, "archives.dead.tmp");
+		deadLock.lock();
+		try {
+			long gen = this.deadGen + 1;
+			FileOutputStream nlog = new FileOutputStream(this.getDeadLog(gen));
+			FileOutputStream fout = new FileOutputStream(tf);
+			DataOutputStream out = new DataOutputStream(fout);
+			try {
+				ArrayList<Map.Entry<Long, AtomicInteger>> al = new ArrayList<Map.Entry<Long, AtomicInteger>>(
+						deadChunks.entrySet());
+				out.writeLong(gen);
+				out.writeInt(al.size());
+				for (Map.Entry<Long, AtomicInteger> e : al) {
+					out.writeLong(e.getKey());
+					out.writeInt(e.getValue().get());
+				}
+				out.flush();
+				fout.getFD().sync();
+			} catch (IOException e) {
+				nlog.close();
+				throw e;
+			} finally {
+				out.close();
+			}
+			Files.move(tf.toPath(), f.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			if (this.deadLog != null)
+				this.deadLog.close();
+			this.getDeadLog(this.deadGen).delete();
+			this.deadLog = nlog;
+			this.deadGen = gen;
+			this.deadLogRecords = 0;
+		} finally {
+			deadLock.unlock();
+		}
+	}
+
+	/**
+	 * Counts a dead chunk in an archive and logs it. Must be called while
+	 * holding deadLock.
+	 *
+	 * @return the number of dead chunks in the archive
+	 */
+	private int addDeadChunk(long id) throws IOException {
+		deadChunks.putIfAbsent(id, new AtomicInteger(0));
+		int dead = deadChunks.get(id).incrementAndGet();
+		deadLog.write(ByteBuffer.allocate(8).putLong(id).array());
+		this.deadLogRecords++;
+		return dead;
+	}
+
+	private ArchiveJournal getJournal(long id) {
+		ArchiveJournal j = this.current;
+		if (j != null && j.id == id)
+			return j;
+		return sealed.get(id);
+	}
+
+	private ArchiveFooter getRemoteFooter(long id) throws IOException {
+		String key = getArchiveKey(id);
+		StagingUploader.StagedObject so = uploader.get(key);
+		if (so != null) {
+			int off = Integer.parseInt(so.md.get("footeroffset"));
+			int len = Integer.parseInt(so.md.get("footerlength"));
+			return ArchiveFooter.fromBytes(so.getRange(off, len));
+		}
+		Map<String, String> md = store.getObjectMetadata(key);
+		if (md == null)
+			throw new IOException("archive " + key + " does not exist");
+		int off = Integer.parseInt(md.get("footeroffset"));
+		int len = Integer.parseInt(md.get("footerlength"));
+		return ArchiveFooter.fromBytes(store.getObjectRange(key, off, len));
+	}
+
+	private byte[] readChunk(long pos) throws IOException {
+		long id = pos >>> 32;
+		int off = (int) (pos & 0xFFFFFFFFL);
+		byte[] b = null;
+		boolean remote = false;
+		ArchiveJournal j = this.getJournal(id);
+		if (j != null) {
+			try {
+				b = j.read(off);
+			} catch (IOException e) {
+				// the journal was uploaded and removed while reading
+				if (!j.isClosed())
+					throw e;
+			}
+		}
+		if (b == null) {
+			ArchiveFooter ft;
+			try {
+				ft = footers.get(id);
+			} catch (ExecutionException e) {
+				throw new IOException(e);
+			}
+			int idx = ft.find(off);
+			if (idx < 0)
+				throw new IOException("no chunk at offset " + off
+						+ " in archive " + id);
+			String key = getArchiveKey(id);
+			StagingUploader.StagedObject so = uploader.get(key);
+			if (so != null) {
+				try {
+					b = so.getRange(off, ft.getLength(idx));
+				} catch (IOException e) {
+					// the archive was uploaded while reading
+					if (uploader.get(key) != null)
+						throw e;
+				}
+			}
+			if (b == null) {
+				byte[] cached = diskCache.get(Long.toString(pos));
+				if (cached != null)
+					return cached;
+				b = store.getObjectRange(key, off, ft.getLength(idx));
+				remote = true;
+			}
+		}
+		ArchiveRecord rec = ArchiveRecord.parse(ByteBuffer.wrap(b));
+		byte[] data = rec.data;
+		if ((rec.flags & ArchiveRecord.ENCRYPT) == ArchiveRecord.ENCRYPT)
+			data = EncryptUtils.decrypt(data);
+		if ((rec.flags & ArchiveRecord.LZ4) == ArchiveRecord.LZ4)
+			data = CompressionUtils.decompressLz4(data, rec.size);
+		if (remote)
+			diskCache.put(Long.toString(pos), data);
+		return data;
+	}
+
+	@Override
+	public long writeChunk(byte[] hash, byte[] chunk, int len)
+			throws IOException {
+		if (this.closed)
+			throw new IOException("ChunkStore is closed");
+		int size = chunk.length;
+		byte flags = 0;
+		if (Main.compress) {
+			chunk = CompressionUtils.compressLz4(chunk);
+			flags |= ArchiveRecord.LZ4;
+		}
+		if (Main.chunkStoreEncryptionEnabled) {
+			chunk = EncryptUtils.encrypt(chunk);
+			flags |= ArchiveRecord.ENCRYPT;
+		}
+		ArchiveRecord rec = new ArchiveRecord(hash, chunk, size, flags);
+		ArchiveJournal j;
+		int off;
+		ArchiveJournal full = null;
+		wlock.lock();
+		try {
+			if (current.length() > 0
+					&& ((long) current.length() + rec.length()) > archiveSize)
+				full = this.roll();
+			j = current;
+			off = j.append(rec);
+		} finally {
+			wlock.unlock();
+		}
+		// the chunk is acknowledged only once the journal is on disk
+		j.commit(off + rec.length());
+		long id = j.id;
+		this.currentLength.addAndGet(size);
+		this.compressedLength.addAndGet(chunk.length);
+		if (full != null)
+			this.sealAndStage(full);
+		return (id << 32) | (off & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Replaces the current journal with a new one. Must be called while
+	 * holding wlock.
+	 *
+	 * @return the journal that was replaced
+	 */
+	private ArchiveJournal roll() throws IOException {
+		ArchiveJournal j = this.current;
+		sealed.put(j.id, j);
+		this.current = new ArchiveJournal(journalDir, lastId.incrementAndGet());
+		return j;
+	}
+
+	/**
+	 * Adds the footer to a full journal and moves it to the staging area. This
+	 * runs on the writer that filled the journal so a full staging area
+	 * pushes back on writers.
+	 */
+	private void sealAndStage(ArchiveJournal j) throws IOException {
+		byte[] b = j.seal();
+		ArchiveFooter ft = j.getFooter();
+		HashMap<String, String> md = new HashMap<String, String>();
+		md.put("chunks", Integer.toString(ft.getCount()));
+		md.put("footeroffset", Integer.toString(j.length()));
+		md.put("footerlength",
+				Integer.toString(b.length - j.length() - ArchiveFooter.TRAILER));
+		uploader.stage(getArchiveKey(j.id), b, md, this.archiveListener);
+		footers.put(j.id, ft);
+		sealed.remove(j.id);
+		j.delete();
+	}
+
+	private StagingUploader.UploadListener archiveListener = new StagingUploader.UploadListener() {
+		@Override
+		public void uploaded(String key) {
+			long id = Long.parseLong(key.substring(9));
+			AtomicInteger dead = deadChunks.get(id);
+			if (dead == null)
+				return;
+			try {
+				if (dead.get() >= footers.get(id).getCount())
+					deleteArchive(id);
+			} catch (ExecutionException e) {
+				SDFSLogger.getLog().warn("unable to read footer for " + key, e);
+			}
+		}
+	};
+
+	@Override
+	public StagingUploader getStagingUploader() {
+		return this.uploader;
+	}
+
+	@Override
+	public byte[] getChunk(byte[] hash, long start, int len)
+			throws IOException {
+		try {
+			byte[] _bz = this.chunks.get(start);
+			return Arrays.clone(_bz);
+		} catch (ExecutionException e) {
+			SDFSLogger.getLog().error("Unable to get block at " + start, e);
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void deleteChunk(byte[] hash, long start, int len)
+			throws IOException {
+		long id = start >>> 32;
+		int off = (int) (start & 0xFFFFFFFFL);
+		this.chunks.invalidate(start);
+		this.diskCache.remove(Long.toString(start));
+		ArchiveJournal j = this.getJournal(id);
+		ArchiveFooter ft;
+		try {
+			ft = j != null ? j.getFooter() : footers.get(id);
+		} catch (ExecutionException e) {
+			SDFSLogger.getLog().warn("Unable to delete chunk at " + start, e);
+			return;
+		}
+		int idx = ft.find(off);
+		if (idx < 0) {
+			SDFSLogger.getLog().warn(
+					"no chunk at offset " + off + " in archive " + id);
+			return;
+		}
+		this.currentLength.addAndGet(-1 * ft.getSize(idx));
+		this.compressedLength.addAndGet(-1
+				* ArchiveRecord.storedLength(ft.getLength(idx), hash.length));
+		int dead;
+		boolean checkpoint;
+		deadLock.lock();
+		try {
+			dead = this.addDeadChunk(id);
+			checkpoint = this.deadLogRecords >= MAX_DEAD_LOG_RECORDS;
+		} finally {
+			deadLock.unlock();
+		}
+		if (checkpoint)
+			this.writeDeadChunks();
+		if (j == null && dead >= ft.getCount())
+			this.deleteArchive(id);
+	}
+
+	private void deleteArchive(long id) {
+		try {
+			if (uploader.cancel(getArchiveKey(id)) == null)
+				store.deleteObject(getArchiveKey(id));
+			deadChunks.remove(id);
+			footers.invalidate(id);
+			if (SDFSLogger.isDebug())
+				SDFSLogger.getLog().debug("deleted archive " + id);
+		} catch (IOException e) {
+			SDFSLogger.getLog().warn("Unable to delete archive " + id, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		ArchiveJournal full = null;
+		wlock.lock();
+		try {
+			this.closed = true;
+			if (current.getFooter().getCount() > 0)
+				full = this.roll();
+			else
+				current.delete();
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("error while sealing archive", e);
+		} finally {
+			wlock.unlock();
+		}
+		try {
+			if (full != null)
+				this.sealAndStage(full);
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn(
+					"error while staging archive, it will be recovered on next mount",
+					e);
+		}
+		if (!uploader.flush(Main.writeTimeoutSeconds * 1000L))
+			SDFSLogger.getLog().warn(
+					"timed out waiting for archives to upload, "
+							+ uploader.getQueueDepth()
+							+ " will be uploaded on next mount");
+		uploader.close();
+		diskCache.close();
+		try {
+			this.writeDeadChunks();
+			this.deadLog.close();
+			this.writeInfo(false);
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("error while closing bucket " + this.name,
+					e);
+		}
+		store.close();
+	}
+
+	@Override
+	public void sync() throws IOException {
+		this.current.sync();
+		deadLock.lock();
+		try {
+			this.deadLog.getChannel().force(false);
+		} finally {
+			deadLock.unlock();
+		}
+	}
+
+	@Override
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public void setName(String name) {
+
+	}
+
+	@Override
+	public long size() {
+		return this.currentLength.get();
+	}
+
+	@Override
+	public long compressedSize() {
+		return this.compressedLength.get();
+	}
+
+	@Override
+	public long maxSize() {
+		return Main.chunkStoreAllocationSize;
+	}
+
+	@Override
+	public long bytesRead() {
+		return 0;
+	}
+
+	@Override
+	public long bytesWritten() {
+		return 0;
+	}
+
+	@Override
+	public long getFreeBlocks() {
+		return 0;
+	}
+
+	@Override
+	public void deleteDuplicate(byte[] hash, long start, int len)
+			throws IOException {
+		this.deleteChunk(hash, start, len);
+	}
+
+	private List<String> iterKeys = null;
+	private List<ArchiveJournal> iterJournals = null;
+	private int iterPos = 0;
+	private ByteBuffer iterBuf = null;
+	private long iterId = 0;
+	private int iterEnd = 0;
+
+	@Override
+	public void iterationInit() throws IOException {
+		this.sync();
+		TreeSet<String> keys = new TreeSet<String>(
+				store.listObjects("archives/"));
+		for (String key : uploader.getStagedKeys())
+			keys.add(key);
+		this.iterKeys = new ArrayList<String>(keys);
+		ArrayList<ArchiveJournal> jnls = new ArrayList<ArchiveJournal>(
+				sealed.values());
+		jnls.add(this.current);
+		this.iterJournals = jnls;
+		this.iterPos = 0;
+		this.iterBuf = null;
+		this.currentLength.set(0);
+		this.compressedLength.set(0);
+	}
+
+	@Override
+	public ChunkData getNextChunck() throws IOException {
+		while (iterBuf == null || iterBuf.position() >= iterEnd) {
+			byte[] b;
+			String key;
+			if (iterPos < iterKeys.size()) {
+				key = iterKeys.get(iterPos);
+				iterId = Long.parseLong(key.substring(9));
+				StagingUploader.StagedObject so = uploader.get(key);
+				b = null;
+				if (so != null) {
+					try {
+						b = so.getData();
+					} catch (IOException e) {
+					}
+				}
+				if (b == null)
+					b = store.getObject(key);
+			} else if (iterPos < iterKeys.size() + iterJournals.size()) {
+				ArchiveJournal j = iterJournals.get(iterPos - iterKeys.size());
+				key = "journal " + j.id;
+				iterId = j.id;
+				try {
+					b = j.seal();
+				} catch (IOException e) {
+					// uploaded while iterating
+					iterPos++;
+					continue;
+				}
+			} else
+				return null;
+			iterPos++;
+			ByteBuffer buf = ByteBuffer.wrap(b);
+			if (b.length < ArchiveFooter.TRAILER
+					|| buf.getInt(b.length - 4) != ArchiveFooter.MAGIC) {
+				SDFSLogger.getLog().warn("archive " + key + " is corrupt");
+				continue;
+			}
+			iterEnd = buf.getInt(b.length - ArchiveFooter.TRAILER);
+			iterBuf = buf;
+		}
+		int off = iterBuf.position();
+		ArchiveRecord rec = ArchiveRecord.parse(iterBuf);
+		ChunkData chk = new ChunkData(rec.hash, (iterId << 32)
+				| (off & 0xFFFFFFFFL));
+		chk.cLen = rec.size;
+		this.currentLength.addAndGet(rec.size);
+		this.compressedLength.addAndGet(rec.data.length);
+		return chk;
+	}
+
+	@Override
+	public void setReadSpeed(int bps) {
+		// TODO Auto-generated method stub
+
+	}
+
+	@Override
+	public void setWriteSpeed(int bps) {
+		// TODO Auto-generated method stub
+
+	}
+
+	@Override
+	public void setCacheSize(long bps) {
+		this.diskCache.setMaxSize(bps);
+	}
+
+	@Override
+	public int getReadSpeed() {
+		// TODO Auto-generated method stub
+		return 0;
+	}
+
+	@Override
+	public int getWriteSpeed() {
+		// TODO Auto-generated method stub
+		return 0;
+	}
+
+	@Override
+	public long getCacheSize() {
+		return this.diskCache.getSize();
+	}
+
+	@Override
+	public long getMaxCacheSize() {
+		return this.diskCache.getMaxSize();
+	}
+
+	@Override
+	public String restoreBlock(long id, byte[] hash) {
+		return null;
+	}
+
+	@Override
+	public boolean blockRestored(String id) {
+		return true;
+	}
+
+}
@@ -0,0 +1,100 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ *
+ * @author Sam Silverberg The index at the end of an archive object. It lists
+ *         the offset, record length and chunk length of every record so a
+ *         chunk can be fetched with a single ranged get. Footer layout is as
+ *         follows: [record count (4 bytes)|[offset (4 bytes)|record length (4
+ *         bytes)|chunk length (4 bytes)]...]. Archives end with an 8 byte
+ *         trailer: [footer offset (4 bytes)|magic (4 bytes)]
+ *
+ */
+public class ArchiveFooter {
+	public static final int MAGIC = 0x53444641;
+	public static final int TRAILER = 8;
+	private int count = 0;
+	private int[] offsets;
+	private int[] lengths;
+	private int[] sizes;
+
+	public ArchiveFooter() {
+		this(1024);
+	}
+
+	private ArchiveFooter(int capacity) {
+		offsets = new int[capacity];
+		lengths = new int[capacity];
+		sizes = new int[capacity];
+	}
+
+	public synchronized void add(int offset, int length, int size) {
+		if (count == offsets.length) {
+			int nl = offsets.length * 2;
+			offsets = Arrays.copyOf(offsets, nl);
+			lengths = Arrays.copyOf(lengths, nl);
+			sizes = Arrays.copyOf(sizes, nl);
+		}
+		offsets[count] = offset;
+		lengths[count] = length;
+		sizes[count] = size;
+		count++;
+	}
+
+	/**
+	 *
+	 * @param offset
+	 *            the offset of a record within the archive
+	 * @return the index of the record or -1 if there is no record at offset
+	 */
+	public synchronized int find(int offset) {
+		int idx = Arrays.binarySearch(offsets, 0, count, offset);
+		if (idx < 0)
+			return -1;
+		return idx;
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	public synchronized int getOffset(int idx) {
+		return offsets[idx];
+	}
+
+	public synchronized int getLength(int idx) {
+		return lengths[idx];
+	}
+
+	public synchronized int getSize(int idx) {
+		return sizes[idx];
+	}
+
+	public synchronized byte[] toBytes() {
+		ByteBuffer buf = ByteBuffer.wrap(new byte[4 + (count * 12)]);
+		buf.putInt(count);
+		for (int i = 0; i < count; i++) {
+			buf.putInt(offsets[i]);
+			buf.putInt(lengths[i]);
+			buf.putInt(sizes[i]);
+		}
+		return buf.array();
+	}
+
+	public static ArchiveFooter fromBytes(byte[] b) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(b);
+		int ct = buf.getInt();
+		if (ct < 0 || buf.remaining() < ct * 12)
+			throw new IOException("corrupt archive footer");
+		ArchiveFooter ft = new ArchiveFooter(Math.max(ct, 1));
+		for (int i = 0; i < ct; i++) {
+			ft.add(buf.getInt(), buf.getInt(), buf.getInt());
+		}
+		return ft;
+	}
+
+}
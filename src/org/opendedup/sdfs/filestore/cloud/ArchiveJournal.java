@@ -0,0 +1,202 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+import org.opendedup.logging.SDFSLogger;
+
+/**
+ *
+ * @author Sam Silverberg The local journal for an archive that has not been
+ *         uploaded yet. Records are appended to [id].jnl in exactly the layout
+ *         they will have in the archive object so the body can be uploaded
+ *         as-is once the footer is added. Chunks are served from the journal
+ *         until the archive is uploaded. Appends are made durable by commit,
+ *         which forces the journal once for every writer waiting on it.
+ *
+ */
+public class ArchiveJournal {
+	public final long id;
+	private final File f;
+	private RandomAccessFile raf = null;
+	private FileChannel ch = null;
+	private ArchiveFooter footer = new ArchiveFooter();
+	private volatile int length = 0;
+	private volatile int synced = 0;
+	private final Object syncLock = new Object();
+	private volatile boolean closed = false;
+
+	public ArchiveJournal(File dir, long id) throws IOException {
+		this.id = id;
+		this.f = new File(dir, id + ".jnl");
+		this.raf = new RandomAccessFile(f, "rw");
+		this.ch = raf.getChannel();
+	}
+
+	/**
+	 * Opens an existing journal and rebuilds its footer. A partially written
+	 * record at the end of the journal is truncated.
+	 *
+	 * @param f
+	 *            the journal file
+	 * @return the recovered journal
+	 * @throws IOException
+	 */
+	public static ArchiveJournal recover(File f) throws IOException {
+		String nm = f.getName();
+		long id = Long.parseLong(nm.substring(0, nm.length() - 4));
+		ArchiveJournal j = new ArchiveJournal(f.getParentFile(), id);
+		long sz = j.ch.size();
+		ByteBuffer hdr = ByteBuffer.allocate(ArchiveRecord.HEADER);
+		long pos = 0;
+		while (pos + ArchiveRecord.HEADER <= sz) {
+			hdr.clear();
+			j.ch.read(hdr, pos);
+			hdr.position(0);
+			int clen = hdr.getInt();
+			int size = hdr.getInt();
+			hdr.get();
+			int hl = hdr.getShort();
+			int rl = ArchiveRecord.HEADER + hl + clen;
+			if (clen < 0 || hl < 0 || pos + rl > sz)
+				break;
+			j.footer.add((int) pos, rl, size);
+			pos += rl;
+		}
+		if (pos < sz) {
+			SDFSLogger.getLog().warn(
+					"truncating journal " + f.getPath() + " from " + sz
+							+ " to " + pos);
+			j.ch.truncate(pos);
+		}
+		j.length = (int) pos;
+		j.synced = (int) pos;
+		return j;
+	}
+
+	/**
+	 * Appends a record. The record is not durable until commit has been
+	 * called with an end at or past it.
+	 *
+	 * @param rec
+	 *            the record to append
+	 * @return the offset of the record within the archive
+	 * @throws IOException
+	 */
+	public synchronized int append(ArchiveRecord rec) throws IOException {
+		if (closed)
+			throw new IOException("journal " + id + " is closed");
+		ByteBuffer buf = ByteBuffer.wrap(rec.toBytes());
+		int off = this.length;
+		while (buf.hasRemaining())
+			ch.write(buf, off + buf.position());
+		footer.add(off, buf.capacity(), rec.size);
+		this.length += buf.capacity();
+		return off;
+	}
+
+	/**
+	 *
+	 * @param offset
+	 *            the offset of a record
+	 * @return the raw record bytes
+	 * @throws IOException
+	 */
+	public byte[] read(int offset) throws IOException {
+		int idx = footer.find(offset);
+		if (idx < 0)
+			throw new IOException("no record at offset " + offset
+					+ " in journal " + id);
+		ByteBuffer buf = ByteBuffer.allocate(footer.getLength(idx));
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, offset + buf.position()) < 0)
+				throw new IOException("unable to read record at " + offset
+						+ " in journal " + id);
+		}
+		return buf.array();
+	}
+
+	/**
+	 *
+	 * @return the complete archive object, body followed by footer and
+	 *         trailer
+	 * @throws IOException
+	 */
+	public synchronized byte[] seal() throws IOException {
+		byte[] ft = footer.toBytes();
+		ByteBuffer buf = ByteBuffer.allocate(length + ft.length
+				+ ArchiveFooter.TRAILER);
+		buf.limit(length);
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, buf.position()) < 0)
+				throw new IOException("journal " + id + " is truncated");
+		}
+		buf.limit(buf.capacity());
+		buf.put(ft);
+		buf.putInt(length);
+		buf.putInt(ArchiveFooter.MAGIC);
+		return buf.array();
+	}
+
+	public int length() {
+		return this.length;
+	}
+
+	public ArchiveFooter getFooter() {
+		return this.footer;
+	}
+
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * Forces the journal to disk up to at least end. Writers that arrive
+	 * while a force is running wait for it and return without forcing again
+	 * if it covered their records. A journal that has been sealed and closed
+	 * has nothing to commit since its records are in the staged archive.
+	 *
+	 * @param end
+	 *            the end offset of the last record that must be durable
+	 * @throws IOException
+	 */
+	public void commit(int end) throws IOException {
+		if (synced >= end)
+			return;
+		synchronized (syncLock) {
+			if (synced >= end || closed)
+				return;
+			int l = this.length;
+			try {
+				ch.force(false);
+			} catch (ClosedChannelException e) {
+				if (closed)
+					return;
+				throw e;
+			}
+			synced = l;
+		}
+	}
+
+	public void sync() throws IOException {
+		this.commit(this.length);
+	}
+
+	public synchronized void close() {
+		this.closed = true;
+		try {
+			raf.close();
+		} catch (Exception e) {
+		}
+	}
+
+	public synchronized void delete() {
+		this.close();
+		f.delete();
+	}
+
+}
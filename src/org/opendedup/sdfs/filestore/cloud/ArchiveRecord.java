@@ -0,0 +1,73 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author Sam Silverberg A single chunk inside an archive object. Record
+ *         layout is as follows: [stored length (4 bytes)|chunk length (4
+ *         bytes)|flags (1 byte)|hash length (2 bytes)|hash|stored data]
+ *
+ */
+public class ArchiveRecord {
+	public static final byte LZ4 = 1;
+	public static final byte ENCRYPT = 2;
+	public static final int HEADER = 4 + 4 + 1 + 2;
+	public final byte[] hash;
+	public final byte[] data;
+	public final int size;
+	public final byte flags;
+
+	public ArchiveRecord(byte[] hash, byte[] data, int size, byte flags) {
+		this.hash = hash;
+		this.data = data;
+		this.size = size;
+		this.flags = flags;
+	}
+
+	public int length() {
+		return HEADER + hash.length + data.length;
+	}
+
+	public static int storedLength(int recordLength, int hashLength) {
+		return recordLength - HEADER - hashLength;
+	}
+
+	public byte[] toBytes() {
+		ByteBuffer buf = ByteBuffer.wrap(new byte[this.length()]);
+		buf.putInt(data.length);
+		buf.putInt(size);
+		buf.put(flags);
+		buf.putShort((short) hash.length);
+		buf.put(hash);
+		buf.put(data);
+		return buf.array();
+	}
+
+	/**
+	 * Parses the record at the current position of buf and advances past it.
+	 *
+	 * @param buf
+	 *            a buffer positioned at the start of a record
+	 * @return the record
+	 * @throws IOException
+	 *             if the record is truncated
+	 */
+	public static ArchiveRecord parse(ByteBuffer buf) throws IOException {
+		if (buf.remaining() < HEADER)
+			throw new IOException("truncated archive record");
+		int clen = buf.getInt();
+		int size = buf.getInt();
+		byte flags = buf.get();
+		int hl = buf.getShort();
+		if (clen < 0 || hl < 0 || buf.remaining() < hl + clen)
+			throw new IOException("truncated archive record");
+		byte[] hash = new byte[hl];
+		buf.get(hash);
+		byte[] data = new byte[clen];
+		buf.get(data);
+		return new ArchiveRecord(hash, data, size, flags);
+	}
+
+}
@@ -0,0 +1,185 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.MAzureServicePool;
+import org.w3c.dom.Element;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+
+/**
+ *
+ * @author Sam Silverberg Object store for Azure blob storage.
+ *
+ */
+public class AzureObjectStore implements ObjectStore {
+	private String name;
+	private MAzureServicePool pool = null;
+
+	public AzureObjectStore() {
+
+	}
+
+	/**
+	 * Creates an object store that shares the connection pool of a chunk
+	 * store. init does not need to be called.
+	 *
+	 * @param name
+	 *            the container name
+	 * @param pool
+	 *            the pool to borrow containers from
+	 */
+	public AzureObjectStore(String name, MAzureServicePool pool) {
+		this.name = name;
+		this.pool = pool;
+	}
+
+	@Override
+	public void init(Element config) throws IOException {
+		this.name = Main.cloudBucket.toLowerCase();
+		CloudBlobContainer container = null;
+		try {
+			String storageConnectionString = "DefaultEndpointsProtocol=http;"
+					+ "AccountName=" + Main.cloudAccessKey + ";"
+					+ "AccountKey=" + Main.cloudSecretKey;
+			CloudStorageAccount account = CloudStorageAccount
+					.parse(storageConnectionString);
+			pool = new MAzureServicePool(account, Main.dseIOThreads, this.name);
+			container = pool.borrowObject();
+			container.createIfNotExists();
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (container != null)
+				pool.returnObject(container);
+		}
+	}
+
+	@Override
+	public void putObject(String key, byte[] data, Map<String, String> md)
+			throws IOException {
+		CloudBlobContainer container = null;
+		try {
+			container = pool.borrowObject();
+			CloudBlockBlob blob = container.getBlockBlobReference(key);
+			HashMap<String, String> metaData = new HashMap<String, String>();
+			if (md != null)
+				metaData.putAll(md);
+			blob.setMetadata(metaData);
+			blob.uploadFromByteArray(data, 0, data.length);
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (container != null)
+				pool.returnObject(container);
+		}
+	}
+
+	@Override
+	public byte[] getObject(String key) throws IOException {
+		CloudBlobContainer container = null;
+		try {
+			container = pool.borrowObject();
+			CloudBlockBlob blob = container.getBlockBlobReference(key);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			blob.download(out);
+			return out.toByteArray();
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (container != null)
+				pool.returnObject(container);
+		}
+	}
+
+	@Override
+	public byte[] getObjectRange(String key, long start, int len)
+			throws IOException {
+		CloudBlobContainer container = null;
+		try {
+			container = pool.borrowObject();
+			CloudBlockBlob blob = container.getBlockBlobReference(key);
+			byte[] data = new byte[len];
+			blob.downloadRangeToByteArray(start, Long.valueOf(len), data, 0);
+			return data;
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (container != null)
+				pool.returnObject(container);
+		}
+	}
+
+	@Override
+	public Map<String, String> getObjectMetadata(String key)
+			throws IOException {
+		CloudBlobContainer container = null;
+		try {
+			container = pool.borrowObject();
+			CloudBlockBlob blob = container.getBlockBlobReference(key);
+			if (!blob.exists())
+				return null;
+			blob.downloadAttributes();
+			return blob.getMetadata();
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (container != null)
+				pool.returnObject(container);
+		}
+	}
+
+	@Override
+	public void deleteObject(String key) throws IOException {
+		CloudBlobContainer container = null;
+		try {
+			container = pool.borrowObject();
+			container.getBlockBlobReference(key).deleteIfExists();
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (container != null)
+				pool.returnObject(container);
+		}
+	}
+
+	@Override
+	public List<String> listObjects(String prefix) throws IOException {
+		ArrayList<String> keys = new ArrayList<String>();
+		CloudBlobContainer container = null;
+		try {
+			container = pool.borrowObject();
+			for (ListBlobItem item : container.listBlobs(prefix, true)) {
+				if (item instanceof CloudBlockBlob)
+					keys.add(((CloudBlockBlob) item).getName());
+			}
+			return keys;
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (container != null)
+				pool.returnObject(container);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			pool.close();
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("error while closing bucket " + this.name,
+					e);
+		}
+	}
+
+}
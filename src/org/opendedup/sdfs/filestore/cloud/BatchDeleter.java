@@ -0,0 +1,242 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.logging.SDFSLogger;
+
+/**
+ *
+ * @author Sam Silverberg Queues object deletes and issues them in batches so
+ *         a garbage collection run does not make one sequential request per
+ *         chunk. Keys are collected until batch-size keys are waiting or no
+ *         key has been added for a while and each batch is handed to a pool of
+ *         delete-threads threads. When every thread is busy and the batch
+ *         queue is full the caller runs the batch itself, which keeps the
+ *         number of outstanding requests bounded.
+ *
+ *         A key that is written again before its delete is sent must be
+ *         cancelled with {@link #cancel(String)} so the new object is not
+ *         removed. cancel is called on every chunk write so it only takes a
+ *         lock when the key is part of a batch that is being sent.
+ *
+ */
+public class BatchDeleter {
+	public interface Deleter {
+		/**
+		 * Deletes a batch of objects. Objects that do not exist are ignored.
+		 */
+		public abstract void delete(List<String> keys) throws IOException;
+	}
+
+	private static final long IDLE_FLUSH = 5000;
+	private static final int RETRIES = 3;
+	private final Deleter deleter;
+	private final int batchSize;
+	private final ThreadPoolExecutor executor;
+	private final ConcurrentHashMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+	private final AtomicInteger pendingCount = new AtomicInteger(0);
+	// the batch each key that is being sent belongs to
+	private final ConcurrentHashMap<String, CountDownLatch> inFlight = new ConcurrentHashMap<String, CountDownLatch>();
+	private volatile long lastAdd = System.currentTimeMillis();
+	private int outstanding = 0;
+	private final AtomicLong deleted = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final Thread flusher;
+	private volatile boolean closed = false;
+
+	/**
+	 *
+	 * @param deleter
+	 *            issues the delete requests
+	 * @param batchSize
+	 *            the maximum number of keys in a request
+	 * @param threads
+	 *            the maximum number of concurrent requests
+	 */
+	public BatchDeleter(Deleter deleter, int batchSize, int threads) {
+		this.deleter = deleter;
+		this.batchSize = batchSize;
+		this.executor = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		this.flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e) {
+						break;
+					}
+					boolean idle = pendingCount.get() > 0
+							&& System.currentTimeMillis() - lastAdd > IDLE_FLUSH;
+					if (idle)
+						submit();
+				}
+			}
+		}, "batch-delete-flush");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Queues a key to be deleted.
+	 *
+	 * @param key
+	 *            the object key
+	 */
+	public void delete(String key) {
+		lastAdd = System.currentTimeMillis();
+		if (pending.putIfAbsent(key, Boolean.TRUE) == null
+				&& pendingCount.incrementAndGet() >= batchSize)
+			this.submit();
+	}
+
+	/**
+	 * Removes a key from the delete queue. If the key is part of a batch that
+	 * is being deleted this waits for the batch to finish.
+	 *
+	 * @param key
+	 *            the object key
+	 */
+	public void cancel(String key) {
+		if (pending.remove(key) != null) {
+			pendingCount.decrementAndGet();
+			return;
+		}
+		// submit marks a key in flight before it takes it from pending so a
+		// key that is not pending here is either in flight or not queued
+		CountDownLatch l = inFlight.get(key);
+		if (l != null) {
+			try {
+				l.await();
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	private void submit() {
+		final CountDownLatch done = new CountDownLatch(1);
+		final List<String> batch = new ArrayList<String>();
+		for (String key : pending.keySet()) {
+			// a key queued again while an earlier delete of it is being sent
+			// waits for the next batch
+			if (inFlight.putIfAbsent(key, done) != null)
+				continue;
+			if (pending.remove(key) != null) {
+				pendingCount.decrementAndGet();
+				batch.add(key);
+			} else {
+				// cancelled or taken by another batch
+				inFlight.remove(key, done);
+			}
+		}
+		if (batch.size() == 0) {
+			done.countDown();
+			return;
+		}
+		synchronized (this) {
+			outstanding++;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				runBatch(batch, done);
+			}
+		});
+	}
+
+	private void runBatch(List<String> batch, CountDownLatch done) {
+		try {
+			for (int i = 1; i <= RETRIES; i++) {
+				try {
+					deleter.delete(batch);
+					deleted.addAndGet(batch.size());
+					if (SDFSLogger.isDebug())
+						SDFSLogger.getLog().debug(
+								"deleted batch of " + batch.size() + " objects");
+					return;
+				} catch (Exception e) {
+					if (i == RETRIES) {
+						failed.addAndGet(batch.size());
+						SDFSLogger.getLog().warn(
+								"unable to delete batch of " + batch.size()
+										+ " objects", e);
+					} else {
+						try {
+							Thread.sleep(1000 * i);
+						} catch (InterruptedException e1) {
+						}
+					}
+				}
+			}
+		} finally {
+			for (String key : batch)
+				inFlight.remove(key, done);
+			done.countDown();
+			synchronized (this) {
+				outstanding--;
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Sends all queued keys and waits for every batch to finish.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds
+	 * @return true if all batches finished
+	 */
+	public boolean flush(long timeout) {
+		this.submit();
+		long end = System.currentTimeMillis() + timeout;
+		synchronized (this) {
+			while (outstanding > 0 && System.currentTimeMillis() < end) {
+				try {
+					this.wait(100);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			return outstanding == 0;
+		}
+	}
+
+	public int getPending() {
+		return pendingCount.get();
+	}
+
+	public long getDeleted() {
+		return deleted.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Sends the remaining deletes and stops the delete threads.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds
+	 */
+	public void close(long timeout) {
+		if (!this.flush(timeout))
+			SDFSLogger.getLog().warn(
+					"timed out waiting for deletes to finish");
+		this.closed = true;
+		this.flusher.interrupt();
+		this.executor.shutdown();
+	}
+
+}
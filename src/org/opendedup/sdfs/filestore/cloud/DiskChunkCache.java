@@ -0,0 +1,383 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.util.EncryptUtils;
+import org.opendedup.util.StringUtils;
+import org.w3c.dom.Element;
+
+/**
+ *
+ * @author Sam Silverberg Disk backed read cache shared by the cloud chunk
+ *         stores. Chunks fetched from the cloud are kept in local-cache-path
+ *         up to local-cache-size bytes and the least recently used chunks are
+ *         evicted first. The cache is disabled when local-cache-size is not
+ *         set or is 0.
+ *
+ *         Each chunk is a file named after the hex encoded key and is written
+ *         to a temporary file and renamed into place so a crash never leaves a
+ *         partial entry. Entry layout is as follows: [crc32 (4 bytes)|data].
+ *         On a clean close the LRU order is written to cache.idx. The index is
+ *         removed once it has been loaded so after a crash the cache directory
+ *         is scanned instead and entries are ordered by modification time.
+ *         Entries are encrypted when chunk store encryption is enabled.
+ *
+ */
+public class DiskChunkCache {
+	private static final String INDEX = "cache.idx";
+	private static DiskChunkCache cache = null;
+	private final File dir;
+	private long maxSize;
+	private long size = 0;
+	private final LinkedHashMap<String, Integer> lru = new LinkedHashMap<String, Integer>(
+			1024, 0.75f, true);
+	private final AtomicLong tmpId = new AtomicLong(0);
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private boolean closed = false;
+
+	/**
+	 * Returns the cache shared by all cloud chunk stores and opens it the
+	 * first time it is called.
+	 *
+	 * @param config
+	 *            the extended-config element of the chunk store, may be null
+	 * @return the shared cache
+	 * @throws IOException
+	 */
+	public static synchronized DiskChunkCache getCache(Element config)
+			throws IOException {
+		if (cache == null) {
+			String path = Main.chunkStore + File.separator + "cache";
+			long sz = 0;
+			if (config != null) {
+				if (config.hasAttribute("local-cache-path"))
+					path = config.getAttribute("local-cache-path");
+				if (config.hasAttribute("local-cache-size"))
+					sz = parseSize(config.getAttribute("local-cache-size"));
+			}
+			cache = new DiskChunkCache(new File(path), sz);
+		}
+		return cache;
+	}
+
+	private static long parseSize(String sz) throws IOException {
+		// sizes written back by Config are formatted like "1,024 MB" or "0 B"
+		sz = sz.replace(",", "").trim();
+		if (sz.endsWith("B") && !Character.isLetter(sz.charAt(sz.length() - 2))) {
+			return Long.parseLong(sz.substring(0, sz.length() - 1).trim());
+		}
+		return StringUtils.parseSize(sz);
+	}
+
+	public DiskChunkCache(File dir, long maxSize) throws IOException {
+		this.dir = dir;
+		this.maxSize = maxSize;
+		if (!dir.exists())
+			dir.mkdirs();
+		File idx = new File(dir, INDEX);
+		if (idx.exists()) {
+			try {
+				this.loadIndex(idx);
+			} catch (IOException e) {
+				SDFSLogger.getLog().warn(
+						"unable to read cache index, scanning " + dir.getPath(),
+						e);
+				this.lru.clear();
+				this.size = 0;
+				this.scan();
+			}
+			idx.delete();
+		} else {
+			this.scan();
+		}
+		this.evict();
+		SDFSLogger.getLog().info(
+				"local chunk cache " + dir.getPath() + " opened with "
+						+ lru.size() + " chunks size=" + size + " max-size="
+						+ maxSize);
+	}
+
+	private void loadIndex(File idx) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(idx));
+		try {
+			int ct = in.readInt();
+			for (int i = 0; i < ct; i++) {
+				String key = in.readUTF();
+				int len = in.readInt();
+				if (this.getFile(key).length() == len + 4) {
+					lru.put(key, len);
+					size += len;
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Rebuilds the LRU order from the files in the cache directory after an
+	 * unclean shutdown.
+	 */
+	private void scan() {
+		ArrayList<File> files = new ArrayList<File>();
+		File[] subs = dir.listFiles();
+		if (subs == null)
+			return;
+		for (File sub : subs) {
+			if (!sub.isDirectory())
+				continue;
+			File[] fls = sub.listFiles();
+			if (fls == null)
+				continue;
+			for (File f : fls) {
+				if (f.getName().endsWith(".tmp"))
+					f.delete();
+				else
+					files.add(f);
+			}
+		}
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return d < 0 ? -1 : (d > 0 ? 1 : 0);
+			}
+		});
+		for (File f : files) {
+			try {
+				String key = new String(StringUtils.getHexBytes(f.getName()),
+						"UTF-8");
+				int len = (int) f.length() - 4;
+				if (len < 0) {
+					f.delete();
+					continue;
+				}
+				lru.put(key, len);
+				size += len;
+			} catch (Exception e) {
+				f.delete();
+			}
+		}
+	}
+
+	private File getFile(String key) throws IOException {
+		String nm = StringUtils.getHexString(key.getBytes("UTF-8"));
+		String sub = nm.length() > 2 ? nm.substring(nm.length() - 2) : "00";
+		return new File(dir, sub + File.separator + nm);
+	}
+
+	/**
+	 *
+	 * @param key
+	 *            the chunk key
+	 * @return the cached chunk or null if it is not cached
+	 */
+	public byte[] get(String key) {
+		synchronized (this) {
+			if (lru.get(key) == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+		}
+		try {
+			File f = this.getFile(key);
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			byte[] b;
+			int crc;
+			try {
+				crc = raf.readInt();
+				b = new byte[(int) raf.length() - 4];
+				raf.readFully(b);
+			} finally {
+				raf.close();
+			}
+			CRC32 ck = new CRC32();
+			ck.update(b);
+			if ((int) ck.getValue() != crc) {
+				SDFSLogger.getLog().warn(
+						"cached chunk " + key + " is corrupt, removing it");
+				this.remove(key);
+				misses.incrementAndGet();
+				return null;
+			}
+			if (Main.chunkStoreEncryptionEnabled)
+				b = EncryptUtils.decrypt(b);
+			hits.incrementAndGet();
+			return b;
+		} catch (IOException e) {
+			// evicted while reading
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Adds a chunk to the cache and evicts the least recently used chunks if
+	 * the cache is full.
+	 *
+	 * @param key
+	 *            the chunk key
+	 * @param data
+	 *            the chunk
+	 */
+	public void put(String key, byte[] data) {
+		if (this.maxSize <= 0 || this.closed)
+			return;
+		try {
+			if (Main.chunkStoreEncryptionEnabled)
+				data = EncryptUtils.encrypt(data);
+			if (data.length > maxSize)
+				return;
+			File f = this.getFile(key);
+			File sub = f.getParentFile();
+			if (!sub.exists())
+				sub.mkdirs();
+			File tf = new File(sub, tmpId.incrementAndGet() + ".tmp");
+			CRC32 ck = new CRC32();
+			ck.update(data);
+			ByteBuffer hdr = ByteBuffer.allocate(4);
+			hdr.putInt((int) ck.getValue());
+			FileOutputStream out = new FileOutputStream(tf);
+			try {
+				out.write(hdr.array());
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			if (!tf.renameTo(f)) {
+				tf.delete();
+				return;
+			}
+			synchronized (this) {
+				Integer old = lru.put(key, data.length);
+				if (old != null)
+					size -= old;
+				size += data.length;
+			}
+			this.evict();
+		} catch (IOException e) {
+			SDFSLogger.getLog().warn("unable to cache chunk " + key, e);
+		}
+	}
+
+	/**
+	 * Removes a chunk from the cache.
+	 *
+	 * @param key
+	 *            the chunk key
+	 */
+	public void remove(String key) {
+		synchronized (this) {
+			Integer old = lru.remove(key);
+			if (old == null)
+				return;
+			size -= old;
+		}
+		try {
+			this.getFile(key).delete();
+		} catch (IOException e) {
+		}
+	}
+
+	private void evict() {
+		ArrayList<String> evicted = new ArrayList<String>();
+		synchronized (this) {
+			Iterator<Map.Entry<String, Integer>> iter = lru.entrySet()
+					.iterator();
+			while (size > maxSize && iter.hasNext()) {
+				Map.Entry<String, Integer> e = iter.next();
+				size -= e.getValue();
+				evicted.add(e.getKey());
+				iter.remove();
+			}
+		}
+		for (String key : evicted) {
+			try {
+				this.getFile(key).delete();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Sets the maximum size of the cache. Setting it to 0 disables and empties
+	 * the cache.
+	 *
+	 * @param sz
+	 *            the maximum size in bytes
+	 */
+	public void setMaxSize(long sz) {
+		this.maxSize = sz;
+		this.evict();
+		SDFSLogger.getLog().info("local chunk cache max-size set to " + sz);
+	}
+
+	public long getMaxSize() {
+		return this.maxSize;
+	}
+
+	public synchronized long getSize() {
+		return this.size;
+	}
+
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Writes the LRU order to the index so the next start does not need to
+	 * scan the cache directory.
+	 */
+	public synchronized void close() {
+		if (this.closed)
+			return;
+		this.closed = true;
+		File tf = new File(dir, INDEX + ".tmp");
+		try {
+			FileOutputStream fout = new FileOutputStream(tf);
+			DataOutputStream out = new DataOutputStream(fout);
+			try {
+				out.writeInt(lru.size());
+				for (Map.Entry<String, Integer> e : lru.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeInt(e.getValue());
+				}
+				out.flush();
+				fout.getFD().sync();
+			} finally {
+				out.close();
+			}
+			tf.renameTo(new File(dir, INDEX));
+		} catch (IOException e) {
+			SDFSLogger.getLog().warn("unable to write cache index", e);
+			tf.delete();
+		}
+		synchronized (DiskChunkCache.class) {
+			if (cache == this)
+				cache = null;
+		}
+	}
+
+}
@@ -0,0 +1,167 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.w3c.dom.Element;
+
+/**
+ *
+ * @author Sam Silverberg An object store backed by a local directory. Each
+ *         object is a file named by its key and its metadata is kept in a
+ *         properties file under .metadata. Puts are written to a temp file and
+ *         renamed so readers never see a partial object. This is used to test
+ *         the packing chunk store without a cloud account and can also be
+ *         pointed at an NFS share.
+ *
+ */
+public class FileObjectStore implements ObjectStore {
+	private File root = null;
+	private File mdRoot = null;
+
+	@Override
+	public void init(Element config) throws IOException {
+		String path = Main.chunkStore + File.separator + "objects";
+		if (config != null && config.hasAttribute("object-store-path"))
+			path = config.getAttribute("object-store-path");
+		this.root = new File(path);
+		this.mdRoot = new File(root, ".metadata");
+		if (!mdRoot.exists())
+			mdRoot.mkdirs();
+		SDFSLogger.getLog().info(
+				"using local object store at " + root.getPath());
+	}
+
+	@Override
+	public void putObject(String key, byte[] data, Map<String, String> md)
+			throws IOException {
+		File f = new File(root, key);
+		File mf = new File(mdRoot, key);
+		if (!f.getParentFile().exists())
+			f.getParentFile().mkdirs();
+		if (!mf.getParentFile().exists())
+			mf.getParentFile().mkdirs();
+		Properties props = new Properties();
+		if (md != null)
+			props.putAll(md);
+		File tmf = new File(mf.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmf);
+		try {
+			props.store(out, null);
+		} finally {
+			out.close();
+		}
+		File tf = new File(f.getPath() + ".tmp");
+		out = new FileOutputStream(tf);
+		try {
+			out.write(data);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(tmf.toPath(), mf.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		Files.move(tf.toPath(), f.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	@Override
+	public byte[] getObject(String key) throws IOException {
+		File f = new File(root, key);
+		if (!f.exists())
+			throw new IOException("object " + key + " does not exist");
+		return Files.readAllBytes(f.toPath());
+	}
+
+	@Override
+	public byte[] getObjectRange(String key, long start, int len)
+			throws IOException {
+		File f = new File(root, key);
+		if (!f.exists())
+			throw new IOException("object " + key + " does not exist");
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate(len);
+			while (buf.hasRemaining()) {
+				if (ch.read(buf, start + buf.position()) < 0)
+					throw new IOException("range " + start + ":" + len
+							+ " is past the end of " + key);
+			}
+			return buf.array();
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Override
+	public Map<String, String> getObjectMetadata(String key)
+			throws IOException {
+		File f = new File(root, key);
+		File mf = new File(mdRoot, key);
+		if (!f.exists())
+			return null;
+		HashMap<String, String> md = new HashMap<String, String>();
+		if (mf.exists()) {
+			Properties props = new Properties();
+			FileInputStream in = new FileInputStream(mf);
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+			for (String name : props.stringPropertyNames())
+				md.put(name, props.getProperty(name));
+		}
+		return md;
+	}
+
+	@Override
+	public void deleteObject(String key) throws IOException {
+		new File(mdRoot, key).delete();
+		new File(root, key).delete();
+	}
+
+	@Override
+	public List<String> listObjects(String prefix) throws IOException {
+		ArrayList<String> keys = new ArrayList<String>();
+		this.list(root, "", prefix, keys);
+		return keys;
+	}
+
+	private void list(File dir, String base, String prefix,
+			ArrayList<String> keys) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			String key = base + f.getName();
+			if (f.isDirectory()) {
+				if (!f.equals(mdRoot))
+					this.list(f, key + "/", prefix, keys);
+			} else if (!key.endsWith(".tmp")
+					&& (prefix == null || key.startsWith(prefix))) {
+				keys.add(key);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+
+}
@@ -0,0 +1,160 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.impl.rest.httpclient.GoogleStorageService;
+import org.jets3t.service.model.GSObject;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.security.GSCredentials;
+import org.opendedup.sdfs.Main;
+import org.w3c.dom.Element;
+
+/**
+ *
+ * @author Sam Silverberg Object store for Google Cloud Storage using jets3t.
+ *
+ */
+public class GoogleObjectStore implements ObjectStore {
+	private String name;
+	private GoogleStorageService gsService;
+
+	public GoogleObjectStore() {
+
+	}
+
+	/**
+	 * Creates an object store that shares the storage service of a chunk
+	 * store. init does not need to be called.
+	 *
+	 * @param name
+	 *            the bucket name
+	 * @param gsService
+	 *            the service to send requests with
+	 */
+	public GoogleObjectStore(String name, GoogleStorageService gsService) {
+		this.name = name;
+		this.gsService = gsService;
+	}
+
+	@Override
+	public void init(Element config) throws IOException {
+		this.name = Main.cloudBucket;
+		try {
+			gsService = new GoogleStorageService(new GSCredentials(
+					Main.cloudAccessKey, Main.cloudSecretKey));
+			gsService.getOrCreateBucket(this.name);
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void putObject(String key, byte[] data, Map<String, String> md)
+			throws IOException {
+		GSObject gsObject = new GSObject(key);
+		if (md != null) {
+			for (Map.Entry<String, String> e : md.entrySet())
+				gsObject.addMetadata(e.getKey(), e.getValue());
+		}
+		gsObject.setDataInputStream(new ByteArrayInputStream(data));
+		gsObject.setContentType("binary/octet-stream");
+		gsObject.setContentLength(data.length);
+		try {
+			gsService.putObject(this.name, gsObject);
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public byte[] getObject(String key) throws IOException {
+		return this.get(key, null, null);
+	}
+
+	@Override
+	public byte[] getObjectRange(String key, long start, int len)
+			throws IOException {
+		return this.get(key, Long.valueOf(start),
+				Long.valueOf(start + len - 1));
+	}
+
+	private byte[] get(String key, Long start, Long end) throws IOException {
+		try {
+			StorageObject obj = gsService.getObject(this.name, key, null,
+					null, null, null, start, end);
+			try {
+				byte[] data = new byte[(int) obj.getContentLength()];
+				DataInputStream in = new DataInputStream(
+						obj.getDataInputStream());
+				in.readFully(data);
+				return data;
+			} finally {
+				obj.closeDataInputStream();
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public Map<String, String> getObjectMetadata(String key)
+			throws IOException {
+		try {
+			if (!gsService.isObjectInBucket(this.name, key))
+				return null;
+			StorageObject obj = gsService.getObjectDetails(this.name, key);
+			HashMap<String, String> md = new HashMap<String, String>();
+			for (Map.Entry<String, Object> e : obj.getUserMetadataMap()
+					.entrySet())
+				md.put(e.getKey(), (String) e.getValue());
+			return md;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void deleteObject(String key) throws IOException {
+		try {
+			gsService.deleteObject(this.name, key);
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public List<String> listObjects(String prefix) throws IOException {
+		ArrayList<String> keys = new ArrayList<String>();
+		try {
+			String lastKey = null;
+			do {
+				StorageObjectsChunk ck = gsService.listObjectsChunked(
+						this.name, prefix, null, 1000, lastKey);
+				for (StorageObject obj : ck.getObjects())
+					keys.add(obj.getKey());
+				lastKey = ck.getPriorLastKey();
+			} while (lastKey != null);
+			return keys;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			gsService.shutdown();
+		} catch (Exception e) {
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Element;
+
+/**
+ *
+ * @author Sam Silverberg A minimal view of a cloud object store (bucket or
+ *         container) used by the packing chunk store. Implementations exist
+ *         for AWS S3, jets3t S3, Azure, Google and a local directory that
+ *         stands in for an object store when testing.
+ *
+ */
+public interface ObjectStore {
+
+	public abstract void init(Element config) throws IOException;
+
+	/**
+	 * Uploads an object, replacing any object with the same key.
+	 *
+	 * @param key
+	 *            the object key
+	 * @param data
+	 *            the object body
+	 * @param md
+	 *            user metadata to attach to the object
+	 * @throws IOException
+	 */
+	public abstract void putObject(String key, byte[] data,
+			Map<String, String> md) throws IOException;
+
+	public abstract byte[] getObject(String key) throws IOException;
+
+	/**
+	 * Downloads part of an object with a ranged request.
+	 *
+	 * @param key
+	 *            the object key
+	 * @param start
+	 *            the first byte to read
+	 * @param len
+	 *            the number of bytes to read
+	 * @return the requested bytes
+	 * @throws IOException
+	 */
+	public abstract byte[] getObjectRange(String key, long start, int len)
+			throws IOException;
+
+	/**
+	 *
+	 * @param key
+	 *            the object key
+	 * @return the user metadata of the object or null if it does not exist
+	 * @throws IOException
+	 */
+	public abstract Map<String, String> getObjectMetadata(String key)
+			throws IOException;
+
+	public abstract void deleteObject(String key) throws IOException;
+
+	public abstract List<String> listObjects(String prefix) throws IOException;
+
+	public abstract void close();
+
+}
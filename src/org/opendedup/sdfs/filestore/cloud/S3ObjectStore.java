@@ -0,0 +1,208 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.security.AWSCredentials;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.S3ServicePool;
+import org.w3c.dom.Element;
+
+/**
+ *
+ * @author Sam Silverberg Object store for S3 compatible storage using jets3t.
+ *
+ */
+public class S3ObjectStore implements ObjectStore {
+	private String name;
+	private S3ServicePool pool = null;
+
+	public S3ObjectStore() {
+
+	}
+
+	/**
+	 * Creates an object store that shares the connection pool of a chunk
+	 * store. init does not need to be called.
+	 *
+	 * @param name
+	 *            the bucket name
+	 * @param pool
+	 *            the pool to borrow clients from
+	 */
+	public S3ObjectStore(String name, S3ServicePool pool) {
+		this.name = name;
+		this.pool = pool;
+	}
+
+	@Override
+	public void init(Element config) throws IOException {
+		this.name = Main.cloudBucket;
+		RestS3Service s3Service = null;
+		try {
+			String bucketLocation = null;
+			if (config != null
+					&& config.hasAttribute("default-bucket-location")) {
+				bucketLocation = config.getAttribute("default-bucket-location");
+			}
+			pool = new S3ServicePool(new AWSCredentials(Main.cloudAccessKey,
+					Main.cloudSecretKey), Main.dseIOThreads);
+			s3Service = pool.borrowObject();
+			if (s3Service.getBucket(this.name) == null) {
+				if (bucketLocation == null)
+					s3Service.createBucket(this.name);
+				else
+					s3Service.createBucket(this.name, bucketLocation);
+				SDFSLogger.getLog().info("created new store " + name);
+			}
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (s3Service != null)
+				pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public void putObject(String key, byte[] data, Map<String, String> md)
+			throws IOException {
+		S3Object s3Object = new S3Object(key);
+		if (md != null) {
+			for (Map.Entry<String, String> e : md.entrySet())
+				s3Object.addMetadata(e.getKey(), e.getValue());
+		}
+		s3Object.setDataInputStream(new ByteArrayInputStream(data));
+		s3Object.setContentType("binary/octet-stream");
+		s3Object.setContentLength(data.length);
+		RestS3Service s3Service = null;
+		try {
+			s3Service = pool.borrowObject();
+			s3Service.putObject(this.name, s3Object);
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (s3Service != null)
+				pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public byte[] getObject(String key) throws IOException {
+		return this.get(key, null, null);
+	}
+
+	@Override
+	public byte[] getObjectRange(String key, long start, int len)
+			throws IOException {
+		return this.get(key, Long.valueOf(start),
+				Long.valueOf(start + len - 1));
+	}
+
+	private byte[] get(String key, Long start, Long end) throws IOException {
+		RestS3Service s3Service = null;
+		try {
+			s3Service = pool.borrowObject();
+			S3Object obj = s3Service.getObject(this.name, key, null, null,
+					null, null, start, end);
+			try {
+				byte[] data = new byte[(int) obj.getContentLength()];
+				DataInputStream in = new DataInputStream(
+						obj.getDataInputStream());
+				in.readFully(data);
+				return data;
+			} finally {
+				obj.closeDataInputStream();
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (s3Service != null)
+				pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public Map<String, String> getObjectMetadata(String key)
+			throws IOException {
+		RestS3Service s3Service = null;
+		try {
+			s3Service = pool.borrowObject();
+			if (!s3Service.isObjectInBucket(this.name, key))
+				return null;
+			StorageObject obj = s3Service.getObjectDetails(this.name, key);
+			HashMap<String, String> md = new HashMap<String, String>();
+			for (Map.Entry<String, Object> e : obj.getUserMetadataMap()
+					.entrySet())
+				md.put(e.getKey(), (String) e.getValue());
+			return md;
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (s3Service != null)
+				pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public void deleteObject(String key) throws IOException {
+		RestS3Service s3Service = null;
+		try {
+			s3Service = pool.borrowObject();
+			s3Service.deleteObject(this.name, key);
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			if (s3Service != null)
+				pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public List<String> listObjects(String prefix) throws IOException {
+		ArrayList<String> keys = new ArrayList<String>();
+		RestS3Service s3Service = null;
+		try {
+			s3Service = pool.borrowObject();
+			String lastKey = null;
+			do {
+				StorageObjectsChunk ck = s3Service.listObjectsChunked(
+						this.name, prefix, null, 1000, lastKey);
+				for (StorageObject obj : ck.getObjects())
+					keys.add(obj.getKey());
+				lastKey = ck.getPriorLastKey();
+			} while (lastKey != null);
+			return keys;
+		} catch (ServiceException e) {
+			throw new IOException(e);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} finally {
+			if (s3Service != null)
+				pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			pool.close();
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("error while closing bucket " + this.name,
+					e);
+		}
+	}
+
+}
@@ -0,0 +1,16 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+/**
+ *
+ * @author Sam Silverberg Implemented by chunk stores that upload through a
+ *         {@link StagingUploader} so its queue depth and upload bandwidth can
+ *         be reported.
+ *
+ */
+public interface StagedChunkStore {
+	/**
+	 *
+	 * @return the staging uploader or null if uploads are synchronous
+	 */
+	public abstract StagingUploader getStagingUploader();
+}
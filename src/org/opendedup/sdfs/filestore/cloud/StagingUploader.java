@@ -0,0 +1,441 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.logging.SDFSLogger;
+
+/**
+ *
+ * @author Sam Silverberg Write-back staging area for cloud uploads. Objects
+ *         are written to a file in the staging directory and acknowledged
+ *         before they are uploaded. A fixed number of upload threads drain the
+ *         staging queue so at most max-in-flight uploads run at once, and
+ *         failed uploads are retried with exponential backoff until they
+ *         succeed. When max-staged objects are waiting, stage blocks the
+ *         caller, which pushes back on the writers. Staged objects stay
+ *         readable until they are uploaded and are restaged on the next start
+ *         if the volume goes down first.
+ *
+ *         Staged file layout is as follows: [key (utf)|metadata count (4
+ *         bytes)|[name (utf)|value (utf)]...|data length (4 bytes)|data]
+ *
+ */
+public class StagingUploader {
+	public interface UploadListener {
+		/**
+		 * Called after an object has been uploaded and removed from staging.
+		 */
+		public abstract void uploaded(String key);
+	}
+
+	private static final long MIN_BACKOFF = 500;
+	private static final long MAX_BACKOFF = 60 * 1000;
+	private final ObjectStore store;
+	private final File stagingDir;
+	private final int maxInFlight;
+	private final Semaphore stagedPermits;
+	private final LinkedBlockingQueue<StagedObject> queue = new LinkedBlockingQueue<StagedObject>();
+	private final ConcurrentHashMap<String, StagedObject> staged = new ConcurrentHashMap<String, StagedObject>();
+	// notified whenever staging becomes empty
+	private final Object drained = new Object();
+	private final Thread[] workers;
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+	private final AtomicLong bytesUploaded = new AtomicLong(0);
+	private final AtomicLong objectsUploaded = new AtomicLong(0);
+	private final AtomicLong failedUploads = new AtomicLong(0);
+	private long sampleTime = System.currentTimeMillis();
+	private long sampleBytes = 0;
+	private long bandwidth = 0;
+	private volatile boolean closed = false;
+
+	public static class StagedObject {
+		public final String key;
+		public final Map<String, String> md;
+		public final int length;
+		final File f;
+		final UploadListener listener;
+		volatile boolean cancelled = false;
+		private final int dataOffset;
+
+		StagedObject(String key, Map<String, String> md, int length,
+				int dataOffset, File f, UploadListener listener) {
+			this.key = key;
+			this.md = md;
+			this.length = length;
+			this.dataOffset = dataOffset;
+			this.f = f;
+			this.listener = listener;
+		}
+
+		/**
+		 *
+		 * @return the object body
+		 * @throws IOException
+		 */
+		public byte[] getData() throws IOException {
+			return this.getRange(0, length);
+		}
+
+		public byte[] getRange(long start, int len) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			try {
+				FileChannel ch = raf.getChannel();
+				ByteBuffer buf = ByteBuffer.allocate(len);
+				while (buf.hasRemaining()) {
+					if (ch.read(buf, dataOffset + start + buf.position()) < 0)
+						throw new IOException("staged object " + key
+								+ " is truncated");
+				}
+				return buf.array();
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param store
+	 *            the object store to upload to
+	 * @param stagingDir
+	 *            the local directory objects are staged in
+	 * @param maxInFlight
+	 *            the maximum number of concurrent uploads
+	 * @param maxStaged
+	 *            the maximum number of objects waiting to be uploaded before
+	 *            stage blocks
+	 */
+	public StagingUploader(ObjectStore store, File stagingDir,
+			int maxInFlight, int maxStaged) {
+		this.store = store;
+		this.stagingDir = stagingDir;
+		if (!stagingDir.exists())
+			stagingDir.mkdirs();
+		this.maxInFlight = maxInFlight;
+		this.stagedPermits = new Semaphore(maxStaged);
+		this.workers = new Thread[maxInFlight];
+		for (int i = 0; i < maxInFlight; i++) {
+			workers[i] = new Thread(new Worker(), "upload-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		SDFSLogger.getLog().info(
+				"staging uploads in " + stagingDir.getPath()
+						+ " max-in-flight=" + maxInFlight + " max-staged="
+						+ maxStaged);
+	}
+
+	private File getStagedFile(String key) {
+		return new File(stagingDir, key.replace('/', '_') + ".stg");
+	}
+
+	/**
+	 * Writes an object to staging and queues it for upload. Blocks while the
+	 * staging area is full.
+	 *
+	 * @param key
+	 *            the object key
+	 * @param data
+	 *            the object body
+	 * @param md
+	 *            user metadata for the object
+	 * @param listener
+	 *            called once the object is uploaded, may be null
+	 * @throws IOException
+	 */
+	public void stage(String key, byte[] data, Map<String, String> md,
+			UploadListener listener) throws IOException {
+		if (closed)
+			throw new IOException("staging area is closed");
+		try {
+			stagedPermits.acquire();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bos);
+			out.writeUTF(key);
+			out.writeInt(md.size());
+			for (Map.Entry<String, String> e : md.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeUTF(e.getValue());
+			}
+			out.writeInt(data.length);
+			out.flush();
+			int dataOffset = bos.size();
+			File f = this.getStagedFile(key);
+			FileOutputStream fout = new FileOutputStream(f);
+			try {
+				fout.write(bos.toByteArray());
+				fout.write(data);
+				fout.getFD().sync();
+			} finally {
+				fout.close();
+			}
+			StagedObject so = new StagedObject(key, md, data.length,
+					dataOffset, f, listener);
+			StagedObject old = staged.put(key, so);
+			if (old != null)
+				old.cancelled = true;
+			queue.add(so);
+		} catch (IOException e) {
+			stagedPermits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Queues every object left in the staging directory by a previous run.
+	 *
+	 * @param listener
+	 *            called once each object is uploaded, may be null
+	 * @return the number of objects restaged
+	 */
+	public int recover(UploadListener listener) {
+		File[] files = stagingDir.listFiles();
+		int ct = 0;
+		if (files == null)
+			return ct;
+		for (File f : files) {
+			if (!f.getName().endsWith(".stg"))
+				continue;
+			try {
+				DataInputStream in = new DataInputStream(new FileInputStream(
+						f));
+				try {
+					String key = in.readUTF();
+					int sz = in.readInt();
+					HashMap<String, String> md = new HashMap<String, String>();
+					for (int i = 0; i < sz; i++)
+						md.put(in.readUTF(), in.readUTF());
+					int len = in.readInt();
+					int dataOffset = (int) (f.length() - len);
+					if (dataOffset < 0)
+						throw new IOException("staged file is truncated");
+					stagedPermits.acquireUninterruptibly();
+					StagedObject so = new StagedObject(key, md, len,
+							dataOffset, f, listener);
+					staged.put(key, so);
+					queue.add(so);
+					ct++;
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				SDFSLogger.getLog().error(
+						"unable to recover staged file " + f.getPath(), e);
+			}
+		}
+		if (ct > 0)
+			SDFSLogger.getLog().info("restaged " + ct + " uploads");
+		return ct;
+	}
+
+	/**
+	 *
+	 * @param key
+	 *            the object key
+	 * @return the staged object or null if it is not staged
+	 */
+	public StagedObject get(String key) {
+		return staged.get(key);
+	}
+
+	/**
+	 *
+	 * @return the keys of all objects waiting to be uploaded
+	 */
+	public List<String> getStagedKeys() {
+		return new ArrayList<String>(staged.keySet());
+	}
+
+	/**
+	 * Removes an object from staging. If the object is being uploaded at the
+	 * time it is deleted from the object store once the upload finishes.
+	 *
+	 * @param key
+	 *            the object key
+	 * @return the staged object or null if it was not staged
+	 */
+	public StagedObject cancel(String key) {
+		StagedObject so = staged.remove(key);
+		if (so != null) {
+			so.cancelled = true;
+			this.signalDrained();
+		}
+		return so;
+	}
+
+	private void signalDrained() {
+		if (staged.isEmpty()) {
+			synchronized (drained) {
+				drained.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits for every staged object to be uploaded.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds
+	 * @return true if staging is empty
+	 */
+	public boolean flush(long timeout) {
+		long end = System.currentTimeMillis() + timeout;
+		synchronized (drained) {
+			long wait = timeout;
+			while (!staged.isEmpty() && wait > 0) {
+				try {
+					drained.wait(wait);
+				} catch (InterruptedException e) {
+					break;
+				}
+				wait = end - System.currentTimeMillis();
+			}
+		}
+		return staged.isEmpty();
+	}
+
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			while (!closed) {
+				StagedObject so = null;
+				try {
+					so = queue.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					break;
+				}
+				if (so == null)
+					continue;
+				inFlight.incrementAndGet();
+				try {
+					upload(so);
+				} finally {
+					inFlight.decrementAndGet();
+				}
+			}
+		}
+	}
+
+	private void upload(StagedObject so) {
+		int tries = 0;
+		while (!so.cancelled) {
+			try {
+				store.putObject(so.key, so.getData(), so.md);
+				bytesUploaded.addAndGet(so.length);
+				objectsUploaded.incrementAndGet();
+				break;
+			} catch (Exception e) {
+				tries++;
+				failedUploads.incrementAndGet();
+				long backoff = Math.min(MAX_BACKOFF,
+						MIN_BACKOFF << Math.min(tries, 16));
+				SDFSLogger.getLog().warn(
+						"unable to upload " + so.key + " try " + tries
+								+ " retrying in " + backoff + " ms", e);
+				if (closed)
+					return;
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException e1) {
+					return;
+				}
+			}
+		}
+		if (so.cancelled) {
+			// deleted or replaced while staged. A deleted object may have been
+			// uploaded before it was cancelled so remove it from the store.
+			if (staged.get(so.key) == null) {
+				try {
+					store.deleteObject(so.key);
+				} catch (IOException e) {
+				}
+				so.f.delete();
+			}
+		} else {
+			staged.remove(so.key, so);
+			so.f.delete();
+			this.signalDrained();
+			if (so.listener != null)
+				so.listener.uploaded(so.key);
+		}
+		stagedPermits.release();
+	}
+
+	public int getQueueDepth() {
+		return staged.size();
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public int getMaxInFlight() {
+		return this.maxInFlight;
+	}
+
+	public long getBytesUploaded() {
+		return bytesUploaded.get();
+	}
+
+	public long getObjectsUploaded() {
+		return objectsUploaded.get();
+	}
+
+	public long getFailedUploads() {
+		return failedUploads.get();
+	}
+
+	/**
+	 *
+	 * @return the upload rate in bytes per second since this was last called,
+	 *         sampled at most once a second
+	 */
+	public synchronized long getUploadBandwidth() {
+		long now = System.currentTimeMillis();
+		if (now - sampleTime >= 1000) {
+			long b = bytesUploaded.get();
+			bandwidth = ((b - sampleBytes) * 1000) / (now - sampleTime);
+			sampleBytes = b;
+			sampleTime = now;
+		}
+		return bandwidth;
+	}
+
+	/**
+	 * Stops the upload threads. Objects that have not been uploaded stay in
+	 * the staging directory and are restaged by recover.
+	 */
+	public void close() {
+		this.closed = true;
+		for (Thread th : workers) {
+			try {
+				th.interrupt();
+			} catch (Exception e) {
+			}
+		}
+	}
+
+}
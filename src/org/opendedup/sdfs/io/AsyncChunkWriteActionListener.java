@@ -1,5 +1,7 @@
 package org.opendedup.sdfs.io;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opendedup.collections.DataArchivedException;
@@ -10,6 +12,7 @@ public abstract class AsyncChunkWriteActionListener {
 	AtomicInteger exdn = new AtomicInteger(0);
 	DataArchivedException dar = null;
 	int sz = 0;
+	private CountDownLatch latch = new CountDownLatch(0);
 
 	public abstract void commandException(Finger result, Throwable e);
 
@@ -18,15 +21,24 @@ public abstract class AsyncChunkWriteActionListener {
 	public abstract void commandArchiveException(DataArchivedException e);
 
 	public int incrementandGetDN() {
-		return dn.incrementAndGet();
+		int _dn = dn.incrementAndGet();
+		latch.countDown();
+		return _dn;
 	}
 
 	public int getDN() {
 		return dn.get();
 	}
 
+	/**
+	 * Records a failed write and releases anyone waiting in await since the
+	 * write can no longer complete.
+	 */
 	public int incrementAndGetDNEX() {
-		return exdn.incrementAndGet();
+		int _ex = exdn.incrementAndGet();
+		while (latch.getCount() > 0)
+			latch.countDown();
+		return _ex;
 	}
 
 	public int getDNEX() {
@@ -39,6 +51,19 @@ public abstract class AsyncChunkWriteActionListener {
 
 	public void setMaxSize(int sz) {
 		this.sz = sz;
+		this.latch = new CountDownLatch(sz);
+	}
+
+	/**
+	 * Waits for all writes to complete or for the first one to fail.
+	 *
+	 * @param ms
+	 *            the maximum time to wait in milliseconds
+	 * @return true if nothing is left to wait for
+	 * @throws InterruptedException
+	 */
+	public boolean await(long ms) throws InterruptedException {
+		return latch.await(ms, TimeUnit.MILLISECONDS);
 	}
 
 }
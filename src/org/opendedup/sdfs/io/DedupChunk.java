@@ -1,7 +1,7 @@
 package org.opendedup.sdfs.io;
 
 import java.io.IOException;
-
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -48,6 +48,11 @@ public class DedupChunk implements java.io.Serializable, DedupChunkInterface {
 		throw new IOException("not implemented");
 	}
 
+	@Override
+	public void read(ByteBuffer dst, int start, int len) throws IOException {
+		throw new IOException("not implemented");
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -1,6 +1,7 @@
 package org.opendedup.sdfs.io;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import org.opendedup.collections.DataArchivedException;
@@ -25,6 +26,12 @@ public interface DedupChunkInterface {
 
 	public abstract byte[] getReadChunk(int start,int end) throws IOException,BufferClosedException,DataArchivedException;
 
+	/**
+	 * Copies part of the chunk into dst at its position.
+	 */
+	public abstract void read(ByteBuffer dst, int start, int len)
+			throws IOException, BufferClosedException, DataArchivedException;
+
 	public List<HashLocPair> getFingers();
 	/**
 	 * 
@@ -37,6 +37,17 @@ public class DedupFileChannel {
 	private int flags = -1;
 	EventBus eventBus = new EventBus();
 	private String id = RandomGUID.getGuid();
+	// sequential write detection, see Main.streamWriteThreshold
+	private final Object streamLock = new Object();
+	private long streamEnd = -1;
+	private long streamBytes = 0;
+	private boolean streaming = false;
+	private WritableCacheBuffer streamBuffer = null;
+	// sequential read detection, see Main.readAheadChunks
+	private final Object readAheadLock = new Object();
+	private long readEnd = -1;
+	private int readAheadWindow = 0;
+	private long readAheadEnd = 0;
 
 	/**
 	 * Instantiates the DedupFileChannel
@@ -194,6 +205,12 @@ public class DedupFileChannel {
 	 * @throws FileClosedException
 	 */
 	public void force(boolean metaData) throws IOException, FileClosedException {
+		if (df.syncIntents()) {
+			// logged writes are replayed on mount if they are not stored
+			if (df.getMetaFile().getDev() != null)
+				df.getMetaFile().sync();
+			return;
+		}
 		Lock l = df.getReadLock();
 		l.lock();
 		try {
@@ -256,6 +273,7 @@ public class DedupFileChannel {
 		try {
 			buf.position(pos);
 			this.writtenTo = true;
+			boolean stream = this.trackStream(offset, len);
 			long _cp = offset;
 			// ByteBuffer buf = ByteBuffer.wrap(bbuf, pos, len);
 			int bytesLeft = len;
@@ -273,7 +291,7 @@ public class DedupFileChannel {
 				// this
 				// loop
 
-				int _len = Main.CHUNK_LENGTH - startPos;
+				int _len = df.getChunkLength() - startPos;
 				if (bytesLeft < _len)
 					_len = bytesLeft;
 				/*
@@ -292,10 +310,13 @@ public class DedupFileChannel {
 				}
 				while (writeBuffer == null) {
 					try {
-						writeBuffer = df.getWriteBuffer(filePos);
-							writeBuffer.write(b, startPos);
+						if (stream)
+							writeBuffer = this.getStreamBuffer(filePos);
+						if (writeBuffer == null)
+							writeBuffer = df.getWriteBuffer(filePos);
+						writeBuffer.write(b, startPos);
 						
-						if (_len != Main.CHUNK_LENGTH && propigate
+						if (_len != df.getChunkLength() && propigate
 								&& df.getMetaFile().getDev() != null) {
 							eventBus.post(new BlockDeviceSmallWriteEvent(df
 									.getMetaFile().getDev(),
@@ -307,6 +328,7 @@ public class DedupFileChannel {
 					} catch (BufferClosedException e) {
 						if (SDFSLogger.isDebug())
 							SDFSLogger.getLog().debug("trying to write again");
+						this.dropStreamBuffer(writeBuffer);
 						writeBuffer = null;
 					}
 				}
@@ -354,6 +376,109 @@ public class DedupFileChannel {
 		}
 	}
 
+	/**
+	 * Tracks whether this channel is writing in sequence.
+	 * 
+	 * @return true if the write should go through the stream buffer
+	 */
+	private boolean trackStream(long offset, int len) {
+		synchronized (this.streamLock) {
+			if (offset == this.streamEnd)
+				this.streamBytes += len;
+			else
+				this.streamBytes = len;
+			this.streamEnd = offset + len;
+			boolean st = Main.streamWriteThreshold > 0
+					&& this.streamBytes >= Main.streamWriteThreshold
+					&& !Main.volume.isClustered();
+			if (this.streaming && !st)
+				this.endStream();
+			this.streaming = st;
+			return st;
+		}
+	}
+
+	/**
+	 * Returns the buffer this stream is writing to. The buffer of the last
+	 * chunk is queued as soon as the stream moves past it.
+	 * 
+	 * @return the buffer or null if the write buffer cache has to be used
+	 */
+	private WritableCacheBuffer getStreamBuffer(long filePos)
+			throws IOException, FileClosedException {
+		synchronized (this.streamLock) {
+			if (this.streamBuffer != null) {
+				if (this.streamBuffer.getFilePosition() == filePos)
+					return this.streamBuffer;
+				this.streamBuffer.flushStream();
+			}
+			this.streamBuffer = df.getStreamBuffer(filePos);
+			return this.streamBuffer;
+		}
+	}
+
+	/**
+	 * Tracks whether this channel is reading in sequence and queues the
+	 * chunks past the read to be fetched. The window doubles on every read
+	 * that follows the last one, up to Main.readAheadChunks, and is halved by
+	 * reads that do not.
+	 * 
+	 * @return true if the read follows the last one
+	 */
+	private boolean readAhead(long offset, int len) {
+		long start;
+		long end;
+		boolean sequential;
+		synchronized (this.readAheadLock) {
+			sequential = offset == this.readEnd;
+			this.readEnd = offset + len;
+			if (Main.readAheadChunks <= 0 || Main.volume.isClustered())
+				return sequential;
+			if (sequential) {
+				if (this.readAheadWindow == 0)
+					this.readAheadWindow = 1;
+				else
+					this.readAheadWindow = Math.min(this.readAheadWindow * 2,
+							Main.readAheadChunks);
+			} else {
+				this.readAheadWindow = this.readAheadWindow / 2;
+				this.readAheadEnd = 0;
+			}
+			if (this.readAheadWindow == 0)
+				return sequential;
+			int cl = df.getChunkLength();
+			start = df.getChuckPosition(offset + len - 1) + cl;
+			end = start + ((long) this.readAheadWindow * cl);
+			if (this.readAheadEnd > start)
+				start = this.readAheadEnd;
+			if (end > df.getMetaFile().length())
+				end = df.getMetaFile().length();
+			if (start >= end)
+				return sequential;
+			this.readAheadEnd = end;
+		}
+		df.readAhead(start, end);
+		return sequential;
+	}
+
+	private void dropStreamBuffer(DedupChunkInterface writeBuffer) {
+		synchronized (this.streamLock) {
+			if (writeBuffer != null && writeBuffer == this.streamBuffer)
+				this.streamBuffer = null;
+		}
+	}
+
+	private void endStream() {
+		synchronized (this.streamLock) {
+			if (this.streamBuffer != null) {
+				this.streamBuffer.flushStream();
+				this.streamBuffer = null;
+			}
+			this.streaming = false;
+			this.streamBytes = 0;
+		}
+	}
+
 	/**
 	 * Closes the byte array
 	 * 
@@ -371,7 +496,7 @@ public class DedupFileChannel {
 							"close " + df.getMetaFile().getPath() + " flag="
 									+ flags);
 				if (!this.isClosed()) {
-
+					this.endStream();
 					try {
 						if (this.writtenTo && Main.safeSync) {
 							df.writeCache();
@@ -408,7 +533,7 @@ public class DedupFileChannel {
 			l = df.getReadLock();
 			l.lock();
 			if (!this.isClosed()) {
-
+				this.endStream();
 				try {
 					if (this.writtenTo && Main.safeSync) {
 						df.writeCache();
@@ -470,12 +595,22 @@ public class DedupFileChannel {
 				bytesLeft = (int) (df.getMetaFile().length() - currentLocation);
 			}
 			int read = 0;
+			boolean sequential = this.readAhead(currentLocation, bytesLeft);
 			while (bytesLeft > 0) {
 				DedupChunkInterface readBuffer = null;
 				int startPos = 0;
-				byte[] _rb = null;
 				try {
-					while (readBuffer == null) {
+					// chunks without a write buffer are read straight into buf
+					int _rl = df.read(currentLocation, buf, bytesLeft,
+							sequential);
+					if (_rl >= 0) {
+						df.getMetaFile().getIOMonitor()
+								.addBytesRead(_rl, true);
+						currentLocation = currentLocation + _rl;
+						bytesLeft = bytesLeft - _rl;
+						read = read + _rl;
+					}
+					while (_rl < 0 && readBuffer == null) {
 						readBuffer = df.getWriteBuffer(currentLocation);
 						try {
 							startPos = (int) (currentLocation - readBuffer
@@ -483,9 +618,7 @@ public class DedupFileChannel {
 							int _len = readBuffer.getLength() - startPos;
 							if (bytesLeft < _len)
 								_len = bytesLeft;
-							_rb = readBuffer.getReadChunk(startPos, _len);
-							
-							buf.put(_rb);
+							readBuffer.read(buf, startPos, _len);
 							df.getMetaFile().getIOMonitor()
 									.addBytesRead(_len, true);
 							currentLocation = currentLocation + _len;
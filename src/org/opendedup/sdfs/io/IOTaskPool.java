@@ -0,0 +1,113 @@
+package org.opendedup.sdfs.io;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+
+/**
+ *
+ * @author Sam Silverberg Runs the per chunk tasks that block on DSE or cloud
+ *         I/O, shard reads and chunk writes, when io-tasks is set. Every task
+ *         gets a thread as soon as it is submitted, threads are only kept
+ *         while there is work, and a semaphore bounds the number of tasks in
+ *         flight. Submitting blocks while io-tasks tasks are running. This
+ *         lets hundreds of chunk fetches wait on remote I/O at once without
+ *         sizing the write thread pools for it.
+ *
+ *         When io-tasks is 0 tasks are run by the executor passed to submit.
+ *
+ */
+public class IOTaskPool {
+	private static final Semaphore permits = new Semaphore(Math.max(
+			Main.ioTasks, 1));
+	private static ThreadPoolExecutor executor = null;
+	private static final int NOT_STARTED = 0;
+	private static final int RUNNING = 1;
+	private static final int DONE = 2;
+
+	static {
+		if (Main.ioTasks > 0) {
+			executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30,
+					TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+					new ThreadFactory() {
+						private final AtomicInteger n = new AtomicInteger(0);
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread th = new Thread(r, "io-task-"
+									+ n.incrementAndGet());
+							th.setDaemon(true);
+							return th;
+						}
+					});
+			SDFSLogger.getLog().info(
+					"io task pool started with io-tasks=" + Main.ioTasks);
+		}
+	}
+
+	/**
+	 *
+	 * @return true if blocking I/O tasks run in the io task pool
+	 */
+	public static boolean isEnabled() {
+		return executor != null;
+	}
+
+	/**
+	 * Submits a task that blocks on I/O.
+	 *
+	 * @param r
+	 *            the task
+	 * @param fallback
+	 *            the executor used when the io task pool is disabled
+	 * @return the future of the task. Cancelling it before it starts frees
+	 *         its slot. A task cancelled while it runs keeps its slot until
+	 *         it returns.
+	 */
+	public static Future<?> submit(Runnable r, ExecutorService fallback) {
+		if (executor == null)
+			return fallback.submit(r);
+		permits.acquireUninterruptibly();
+		// the permit is held until the task stops running, even if it is
+		// cancelled while it is blocked on I/O
+		final AtomicInteger state = new AtomicInteger(NOT_STARTED);
+		final Runnable _r = r;
+		FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+			@Override
+			public void run() {
+				if (!state.compareAndSet(NOT_STARTED, RUNNING))
+					return;
+				try {
+					_r.run();
+				} finally {
+					state.set(DONE);
+					permits.release();
+				}
+			}
+		}, null) {
+			@Override
+			protected void done() {
+				// cancelled before it ran
+				if (state.compareAndSet(NOT_STARTED, DONE))
+					permits.release();
+			}
+		};
+		try {
+			executor.execute(task);
+		} catch (RuntimeException e) {
+			task.cancel(false);
+			throw e;
+		}
+		return task;
+	}
+
+}
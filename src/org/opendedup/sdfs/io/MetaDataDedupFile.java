@@ -1,19 +1,23 @@
 package org.opendedup.sdfs.io;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.UUID;
@@ -22,6 +26,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.opendedup.collections.HashtableFullException;
+import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.filestore.DedupFileStore;
@@ -81,6 +86,16 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 	private BlockDev blkdev = null;
 	private boolean dirty = false;
 	private long attributes = 0;
+	// logical chunk size of the file, 0 is the volume chunk size
+	private int chunkSize = 0;
+	private static final String CHUNK_SIZE_ATTR = "sdfs.chunksize";
+	private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+	// first bytes of metadata in the compact format. Serialized objects start
+	// with 0xACED so the two formats cannot be confused.
+	private static final int COMPACT_MAGIC = 0x53444d46;
+	private static final byte COMPACT_VERSION = 1;
+	// magic, version, 4 longs, flags and 4 ints
+	private static final int COMPACT_FIXED_LEN = 4 + 1 + 32 + 2 + 16;
 
 	public static void registerListener(Object obj) {
 		eventBus.register(obj);
@@ -102,6 +117,90 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 		return dedup;
 	}
 
+	/**
+	 * 
+	 * @return the logical chunk size of the file, or for a directory the
+	 *         chunk size new files in it are created with.
+	 */
+	public int getChunkSize() {
+		if (this.directory)
+			return getDirChunkSize(new File(this.path));
+		return this.chunkSize > 0 ? this.chunkSize : Main.CHUNK_LENGTH;
+	}
+
+	/**
+	 * Sets the logical chunk size of a file that has not been written to or
+	 * of the files created in a directory from now on. Only variable length
+	 * dedup supports chunk sizes other than the volume chunk size. The map
+	 * records of a file with a larger chunk size hold more fingers, so large
+	 * files need fewer records, buffers and index operations. Stored chunks
+	 * are still at most the volume chunk size.
+	 * 
+	 * @param size
+	 *            the chunk size. 0 resets it to the volume chunk size.
+	 * @throws IOException
+	 */
+	public void setChunkSize(int size) throws IOException {
+		if (size == Main.CHUNK_LENGTH)
+			size = 0;
+		if (size != 0) {
+			if (HashFunctionPool.max_hash_cluster == 1)
+				throw new IOException(
+						"chunk sizes can only be set on variable length volumes");
+			if (size < 0 || size > MAX_CHUNK_SIZE || size % 4096 != 0)
+				throw new IOException("chunk size [" + size
+						+ "] must be a multiple of 4096 and not larger than "
+						+ MAX_CHUNK_SIZE);
+		}
+		if (this.directory) {
+			try {
+				UserDefinedFileAttributeView v = Files.getFileAttributeView(
+						Paths.get(this.path),
+						UserDefinedFileAttributeView.class);
+				if (size == 0)
+					v.delete(CHUNK_SIZE_ATTR);
+				else
+					v.write(CHUNK_SIZE_ATTR, ByteBuffer.wrap(Integer
+							.toString(size).getBytes()));
+			} catch (IOException e) {
+				if (size != 0)
+					throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+			return;
+		}
+		this.writeLock.lock();
+		try {
+			if (this.length > 0 || this.dfGuid != null)
+				throw new IOException("chunk size of " + this.path
+						+ " cannot be changed once it has been written to");
+			this.chunkSize = size;
+			this.dirty = true;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	private static int getDirChunkSize(File dir) {
+		try {
+			UserDefinedFileAttributeView v = Files.getFileAttributeView(
+					dir.toPath(), UserDefinedFileAttributeView.class);
+			if (v == null || !v.list().contains(CHUNK_SIZE_ATTR))
+				return Main.CHUNK_LENGTH;
+			ByteBuffer b = ByteBuffer.allocate(v.size(CHUNK_SIZE_ATTR));
+			v.read(CHUNK_SIZE_ATTR, b);
+			int size = Integer.parseInt(new String(b.array()));
+			if (size > 0 && size <= MAX_CHUNK_SIZE)
+				return size;
+		} catch (Exception e) {
+			if (SDFSLogger.isDebug())
+				SDFSLogger.getLog().debug(
+						"unable to read chunk size of " + dir, e);
+		}
+		return Main.CHUNK_LENGTH;
+	}
+
 	public int getMode() throws IOException {
 		if (mode == -1) {
 			Path p = Paths.get(this.path);
@@ -383,8 +482,14 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 		} else {
 			ObjectInputStream in = null;
 			try {
-				in = new ObjectInputStream(new FileInputStream(path));
-				mf = (MetaDataDedupFile) in.readObject();
+				byte[] b = Files.readAllBytes(p);
+				if (b.length >= COMPACT_FIXED_LEN
+						&& ByteBuffer.wrap(b).getInt() == COMPACT_MAGIC) {
+					mf = fromCompactBytes(b);
+				} else {
+					in = new ObjectInputStream(new ByteArrayInputStream(b));
+					mf = (MetaDataDedupFile) in.readObject();
+				}
 				mf.path = path;
 				if (SDFSLogger.isDebug())
 					SDFSLogger.getLog().debug(
@@ -561,6 +666,7 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 			_mf.permissions = this.permissions;
 			_mf.dedup = this.dedup;
 			_mf.attributes = this.attributes;
+			_mf.chunkSize = this.chunkSize;
 			this.getGUID();
 			if (!this.dedup) {
 				try {
@@ -765,6 +871,12 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 			this.permissions = Main.defaultFilePermissions;
 			this.lastModified = System.currentTimeMillis();
 			this.dedup = Main.dedupFiles;
+			if (HashFunctionPool.max_hash_cluster > 1
+					&& f.getParentFile() != null) {
+				int cs = getDirChunkSize(f.getParentFile());
+				if (cs != Main.CHUNK_LENGTH)
+					this.chunkSize = cs;
+			}
 			this.setLength(0, false, true);
 			this.dirty = true;
 			this.sync();
@@ -799,11 +911,16 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 					if (f.getParentFile() == null
 							|| !f.getParentFile().exists())
 						f.getParentFile().mkdirs();
-					out = new ObjectOutputStream(
-							new FileOutputStream(this.path));
-					out.writeObject(this);
-					out.flush();
-					out.close();
+					if (Main.compactMetaData) {
+						if (!this.isSymlink())
+							Files.write(f.toPath(), this.toCompactBytes());
+					} else {
+						out = new ObjectOutputStream(new FileOutputStream(
+								this.path));
+						out.writeObject(this);
+						out.flush();
+						out.close();
+					}
 					eventBus.post(new MFileWritten(this));
 					this.dirty = false;
 				} catch (Exception e) {
@@ -1316,6 +1433,9 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 				if (in.available() > 0) {
 					this.mode = in.readInt();
 				}
+				if (in.available() > 0) {
+					this.chunkSize = in.readInt();
+				}
 				/*
 				 * if(in.available() > 0) { int vlen = in.readInt(); byte[] vb =
 				 * new byte[vlen]; in.readFully(vb); this.backingFile = new
@@ -1380,6 +1500,7 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 			out.write(vb);
 			out.writeLong(attributes);
 			out.writeInt(this.mode);
+			out.writeInt(this.chunkSize);
 			/*
 			 * if(this.backingFile == null) out.writeInt(0); else { byte [] bb =
 			 * this.backingFile.getBytes(); out.writeInt(bb.length);
@@ -1390,6 +1511,141 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 		}
 	}
 
+	/**
+	 * Encodes the file in the compact format. The fixed section holds the
+	 * magic, the format version, length, mtime, atime, attributes, the flags,
+	 * owner, group, mode and chunk size at fixed offsets. The variable section
+	 * holds the guid, the dedup file guid, the volume version, the IOMonitor
+	 * and the extended attributes, each prefixed with its length.
+	 * 
+	 * @return the encoded file
+	 * @throws IOException
+	 */
+	private byte[] toCompactBytes() throws IOException {
+		this.writeLock.lock();
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+			DataOutputStream out = new DataOutputStream(bos);
+			out.writeInt(COMPACT_MAGIC);
+			out.writeByte(COMPACT_VERSION);
+			out.writeLong(length);
+			out.writeLong(lastModified);
+			out.writeLong(lastAccessed);
+			out.writeLong(attributes);
+			int flags = 0;
+			if (execute)
+				flags |= 1;
+			if (read)
+				flags |= 1 << 1;
+			if (write)
+				flags |= 1 << 2;
+			if (hidden)
+				flags |= 1 << 3;
+			if (ownerWriteOnly)
+				flags |= 1 << 4;
+			if (ownerExecOnly)
+				flags |= 1 << 5;
+			if (ownerReadOnly)
+				flags |= 1 << 6;
+			if (vmdk)
+				flags |= 1 << 7;
+			if (dedup)
+				flags |= 1 << 8;
+			out.writeShort(flags);
+			out.writeInt(owner_id);
+			out.writeInt(group_id);
+			out.writeInt(mode);
+			out.writeInt(chunkSize);
+			writeCompactBytes(out, this.guid.getBytes());
+			writeCompactBytes(out,
+					this.dfGuid == null ? null : this.dfGuid.getBytes());
+			writeCompactBytes(out, this.version.getBytes());
+			writeCompactBytes(out,
+					this.monitor == null ? null : this.monitor.toByteArray());
+			out.writeInt(this.extendedAttrs.size());
+			for (String key : this.extendedAttrs.keySet()) {
+				writeCompactBytes(out, key.getBytes());
+				String value = this.extendedAttrs.get(key);
+				writeCompactBytes(out, value == null ? null : value.getBytes());
+			}
+			out.flush();
+			return bos.toByteArray();
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	private static void writeCompactBytes(DataOutputStream out, byte[] b)
+			throws IOException {
+		if (b == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(b.length);
+			out.write(b);
+		}
+	}
+
+	private static byte[] readCompactBytes(ByteBuffer buf) {
+		int len = buf.getInt();
+		if (len == -1)
+			return null;
+		byte[] b = new byte[len];
+		buf.get(b);
+		return b;
+	}
+
+	/**
+	 * Decodes a file written in the compact format.
+	 * 
+	 * @param b
+	 *            the encoded file
+	 * @return the file without its path set
+	 * @throws IOException
+	 */
+	private static MetaDataDedupFile fromCompactBytes(byte[] b)
+			throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(b);
+		buf.getInt();
+		byte v = buf.get();
+		if (v > COMPACT_VERSION)
+			throw new IOException("unsupported metadata version " + v);
+		MetaDataDedupFile mf = new MetaDataDedupFile();
+		mf.length = buf.getLong();
+		mf.lastModified = buf.getLong();
+		mf.lastAccessed = buf.getLong();
+		mf.attributes = buf.getLong();
+		int flags = buf.getShort();
+		mf.execute = (flags & 1) != 0;
+		mf.read = (flags & (1 << 1)) != 0;
+		mf.write = (flags & (1 << 2)) != 0;
+		mf.hidden = (flags & (1 << 3)) != 0;
+		mf.ownerWriteOnly = (flags & (1 << 4)) != 0;
+		mf.ownerExecOnly = (flags & (1 << 5)) != 0;
+		mf.ownerReadOnly = (flags & (1 << 6)) != 0;
+		mf.vmdk = (flags & (1 << 7)) != 0;
+		mf.dedup = (flags & (1 << 8)) != 0;
+		mf.owner_id = buf.getInt();
+		mf.group_id = buf.getInt();
+		mf.mode = buf.getInt();
+		mf.chunkSize = buf.getInt();
+		mf.guid = new String(readCompactBytes(buf));
+		byte[] dfb = readCompactBytes(buf);
+		mf.dfGuid = dfb == null ? null : new String(dfb);
+		mf.version = new String(readCompactBytes(buf));
+		byte[] mb = readCompactBytes(buf);
+		if (mb != null) {
+			mf.monitor = new IOMonitor(mf);
+			mf.monitor.fromByteArray(mb);
+		}
+		int xl = buf.getInt();
+		for (int i = 0; i < xl; i++) {
+			String key = new String(readCompactBytes(buf));
+			byte[] vb = readCompactBytes(buf);
+			mf.extendedAttrs.put(key, vb == null ? null : new String(vb));
+		}
+		return mf;
+	}
+
 	public Element toXML(Document doc) throws ParserConfigurationException,
 			DOMException, IOException {
 		Element root = doc.createElement("file-info");
@@ -1412,6 +1668,8 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 			root.setAttribute("dedup-map-guid", this.getDfGuid());
 			root.setAttribute("dedup", Boolean.toString(this.isDedup()));
 			root.setAttribute("vmdk", Boolean.toString(this.isVmdk()));
+			root.setAttribute("chunk-size",
+					Integer.toString(this.getChunkSize()));
 			if (symlink) {
 				root.setAttribute("symlink", Boolean.toString(this.isSymlink()));
 				root.setAttribute("symlink-path", this.getSymlinkPath());
@@ -0,0 +1,158 @@
+package org.opendedup.sdfs.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+
+/**
+ *
+ * @author Sam Silverberg Background dedup of the chunks that files have
+ *         staged while post-process-dedup is set. Files take turns and each
+ *         turn runs a batch of staged chunks of the file through the write
+ *         pipeline, which replaces them in the file map with their hashes.
+ *
+ *         The deduper backs off while files are being staged or the write
+ *         pipeline has work queued. Under constant load it still runs one
+ *         batch every ten idle periods so staging cannot grow without bound.
+ *         Files with staged chunks left by an earlier mount are picked up the
+ *         next time they are opened.
+ *
+ */
+public class PostProcessDeduper implements Runnable {
+	private static final int BATCH_SIZE = 64;
+	private static PostProcessDeduper deduper = null;
+	private final Map<String, MetaDataDedupFile> files = new ConcurrentHashMap<String, MetaDataDedupFile>();
+	private final Thread th;
+	private volatile long lastStaged = 0;
+	private volatile boolean closed = false;
+
+	/**
+	 * Starts the deduper. Must be called before the volume is mounted.
+	 */
+	public static synchronized void init() {
+		if (deduper == null)
+			deduper = new PostProcessDeduper();
+	}
+
+	/**
+	 * Stops the deduper. Chunks that are still staged stay in their files'
+	 * staging stores.
+	 */
+	public static synchronized void close() {
+		if (deduper != null) {
+			deduper.shutdown();
+			deduper = null;
+		}
+	}
+
+	/**
+	 *
+	 * @return true if files can stage chunks
+	 */
+	public static boolean isRunning() {
+		return deduper != null;
+	}
+
+	/**
+	 * Called when a file stages a chunk or is opened with staged chunks.
+	 *
+	 * @param df
+	 *            the file
+	 * @param write
+	 *            true if a chunk was just staged
+	 */
+	static void staged(SparseDedupFile df, boolean write) {
+		PostProcessDeduper d = deduper;
+		if (d == null)
+			return;
+		if (write)
+			d.lastStaged = System.currentTimeMillis();
+		if (d.files.put(df.getGUID(), df.getMetaFile()) == null) {
+			synchronized (d) {
+				d.notifyAll();
+			}
+		}
+	}
+
+	private PostProcessDeduper() {
+		this.th = new Thread(this, "post-process-dedup");
+		this.th.setDaemon(true);
+		this.th.start();
+		SDFSLogger.getLog().info(
+				"post process dedup started with idle-time="
+						+ Main.postProcessIdleTime);
+	}
+
+	private boolean isBusy() {
+		return System.currentTimeMillis() - this.lastStaged < Main.postProcessIdleTime
+				|| SparseDedupFile.pool.getQueueDepth() > 0;
+	}
+
+	@Override
+	public void run() {
+		long lastRun = System.currentTimeMillis();
+		while (!this.closed) {
+			try {
+				synchronized (this) {
+					while (this.files.isEmpty() && !this.closed)
+						this.wait();
+				}
+				if (this.isBusy()
+						&& System.currentTimeMillis() - lastRun < Main.postProcessIdleTime * 10) {
+					Thread.sleep(100);
+					continue;
+				}
+				ArrayList<String> guids = new ArrayList<String>(
+						this.files.keySet());
+				for (String guid : guids) {
+					if (this.closed)
+						break;
+					this.ingest(guid);
+				}
+				lastRun = System.currentTimeMillis();
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				SDFSLogger.getLog().warn("post process dedup failed", e);
+			}
+		}
+	}
+
+	private void ingest(String guid) {
+		MetaDataDedupFile mf = this.files.get(guid);
+		if (mf == null)
+			return;
+		try {
+			if (!new File(mf.getPath()).exists()
+					|| !guid.equals(mf.getDfGuid())) {
+				// deleted or replaced
+				this.files.remove(guid);
+				return;
+			}
+			SparseDedupFile df = (SparseDedupFile) mf.getDedupFile();
+			if (df.ingestStaged(BATCH_SIZE) == 0) {
+				this.files.remove(guid, mf);
+				// staged again while the batch was running
+				if (df.hasStaged())
+					this.files.put(guid, mf);
+			}
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn(
+					"unable to dedup staged chunks of " + mf.getPath(), e);
+		}
+	}
+
+	private void shutdown() {
+		this.closed = true;
+		this.th.interrupt();
+		try {
+			this.th.join(60000);
+		} catch (InterruptedException e) {
+		}
+	}
+
+}
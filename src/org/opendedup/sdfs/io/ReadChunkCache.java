@@ -0,0 +1,101 @@
+package org.opendedup.sdfs.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ *
+ * @author Sam Silverberg Chunks read from the DSE for files that have no write
+ *         buffer for them. The cached data is never changed so it is shared by
+ *         all readers of a chunk. The cache holds up to read-cache-size bytes
+ *         for all open files and drops the least recently used chunks first.
+ *
+ *         Entries are keyed by an epoch and a chunk position. A file gets a
+ *         new epoch when it is opened and when it changes in a way that is not
+ *         a write to a single chunk, such as a truncate, so its old entries
+ *         are never read again and are dropped as the cache fills.
+ *
+ */
+public class ReadChunkCache {
+	private static final AtomicLong epochs = new AtomicLong(0);
+	private static Cache<Key, byte[]> chunks = null;
+
+	static {
+		if (Main.readCacheSize > 0) {
+			chunks = CacheBuilder.newBuilder()
+					.maximumWeight(Main.readCacheSize)
+					.weigher(new Weigher<Key, byte[]>() {
+						@Override
+						public int weigh(Key k, byte[] b) {
+							return b.length;
+						}
+					}).concurrencyLevel(Main.writeThreads).build();
+			SDFSLogger.getLog().info(
+					"read chunk cache size is " + Main.readCacheSize);
+		}
+	}
+
+	private static final class Key {
+		private final long epoch;
+		private final long pos;
+
+		private Key(long epoch, long pos) {
+			this.epoch = epoch;
+			this.pos = pos;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = this.epoch * 31 + this.pos;
+			return (int) (h ^ (h >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return k.epoch == this.epoch && k.pos == this.pos;
+		}
+	}
+
+	public static boolean isEnabled() {
+		return chunks != null;
+	}
+
+	/**
+	 *
+	 * @return an epoch that has not been used by any file
+	 */
+	static long newEpoch() {
+		return epochs.incrementAndGet();
+	}
+
+	static byte[] get(long epoch, long pos) {
+		if (chunks == null)
+			return null;
+		return chunks.getIfPresent(new Key(epoch, pos));
+	}
+
+	static boolean contains(long epoch, long pos) {
+		return chunks != null
+				&& chunks.asMap().containsKey(new Key(epoch, pos));
+	}
+
+	static void put(long epoch, long pos, byte[] b) {
+		if (chunks != null)
+			chunks.put(new Key(epoch, pos), b);
+	}
+
+	static void invalidate(long epoch, long pos) {
+		if (chunks != null)
+			chunks.invalidate(new Key(epoch, pos));
+	}
+
+}
@@ -141,8 +141,20 @@ public class SparseDataChunk implements Externalizable {
 
 	public static void insertHashLocPair(List<HashLocPair> ar, HashLocPair p)
 			throws IOException {
+		insertHashLocPair(ar, p, Main.CHUNK_LENGTH);
+	}
+
+	/**
+	 * Inserts a finger into the fingers of a chunk, replacing the data it
+	 * overlaps.
+	 * 
+	 * @param chunkLength
+	 *            the chunk size of the file
+	 */
+	public static void insertHashLocPair(List<HashLocPair> ar, HashLocPair p,
+			int chunkLength) throws IOException {
 		int ep = p.pos + p.nlen;
-		if (ep > Main.CHUNK_LENGTH)
+		if (ep > chunkLength)
 			throw new IOException("Overflow ep=" + ep);
 		ArrayList<HashLocPair> rm = null;
 		ArrayList<HashLocPair> am = null;
@@ -259,15 +271,8 @@ public class SparseDataChunk implements Externalizable {
 				buf.putInt(buf.capacity());
 				buf.putInt(this.ar.size());
 				Collections.sort(this.ar);
-				if (ar.size() > (LongByteArrayMap.MAX_ELEMENTS_PER_AR)) {
-					SDFSLogger.getLog().error(
-							"Buffer overflow ar size = " + ar.size()
-									+ " max size = "
-									+ (LongByteArrayMap.MAX_ELEMENTS_PER_AR));
-					throw new IOException("Buffer overflow ar size = "
-							+ ar.size() + " max size = "
-							+ (LongByteArrayMap.MAX_ELEMENTS_PER_AR));
-				}
+				// the map checks the record fits since record sizes depend on
+				// the chunk size of the file
 				this.len = 0;
 				for (HashLocPair p : ar) {
 					if (p.hashloc[0] == 1)
@@ -4,16 +4,24 @@ import java.io.File;
 
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -69,6 +77,16 @@ public class SparseDedupFile implements DedupFile {
 	private static int maxWriteBuffers = ((Main.maxWriteBuffers * 1024 * 1024) / Main.CHUNK_LENGTH) + 1;
 	private transient final ConcurrentHashMap<Long, DedupChunkInterface> flushingBuffers = new ConcurrentHashMap<Long, DedupChunkInterface>(
 			1024, .75f, Main.writeThreads * 3);
+	// buffers written to since they were last stored, ordered by position
+	private transient final ConcurrentSkipListMap<Long, WritableCacheBuffer> dirtyBuffers = new ConcurrentSkipListMap<Long, WritableCacheBuffer>();
+	// writes since the last sync that could not be added to the intent log
+	private final AtomicInteger unloggedWrites = new AtomicInteger(0);
+	// buffers held by streaming channels instead of the write buffer cache
+	private transient final ConcurrentHashMap<Long, WritableCacheBuffer> streamBuffers = new ConcurrentHashMap<Long, WritableCacheBuffer>();
+	// chunks written but not deduped yet when post-process-dedup is set
+	private transient StagingStore staging = null;
+	// the logical chunk size of this file, set from the file map when opened
+	private int chunkLength = Main.CHUNK_LENGTH;
 	private static transient BlockingQueue<Runnable> worksQueue = new LinkedBlockingQueue<Runnable>(
 			HashFunctionPool.max_hash_cluster);
 	private static transient RejectedExecutionHandler executionHandler = new BlockPolicy();
@@ -76,6 +94,20 @@ public class SparseDedupFile implements DedupFile {
 	protected static transient ThreadPoolExecutor executor = new ThreadPoolExecutor(
 			Main.writeThreads, Main.writeThreads, 10, TimeUnit.SECONDS,
 			worksQueue, executionHandler);
+	// fetches chunks ahead of sequential reads, see DedupFileChannel
+	private static transient ThreadPoolExecutor readAheadPool = new ThreadPoolExecutor(
+			Main.writeThreads, Main.writeThreads, 10, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(1024));
+	static {
+		readAheadPool.allowCoreThreadTimeOut(true);
+	}
+	// read chunk cache epoch of this file, see ReadChunkCache
+	private volatile long readEpoch = ReadChunkCache.newEpoch();
+	// bumped whenever a chunk may have changed so stale reads are not cached
+	private final AtomicLong readGeneration = new AtomicLong(0);
+	// chunks queued or being fetched by readAheadPool
+	private transient final Set<Long> readAheads = Collections
+			.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
 	private boolean dirty = false;
 	protected boolean toOccured = false;
 	protected boolean errOccured = false;
@@ -111,6 +143,10 @@ public class SparseDedupFile implements DedupFile {
 					}
 					DedupChunkInterface writeBuffer = null;
 					writeBuffer = flushingBuffers.remove(key);
+					if (writeBuffer == null) {
+						// taken over from a streaming channel
+						writeBuffer = streamBuffers.remove(key);
+					}
 					if (writeBuffer == null) {
 						writeBuffer = marshalWriteBuffer(key);
 					}
@@ -120,6 +156,30 @@ public class SparseDedupFile implements DedupFile {
 				}
 
 			});
+	private static final long STREAM_IDLE_TIME = 10 * 1000;
+	static {
+		// queues the buffers of streams that stopped writing, the way the
+		// write buffer cache expires buffers that are no longer accessed
+		Thread th = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (;;) {
+					try {
+						Thread.sleep(STREAM_IDLE_TIME / 2);
+					} catch (InterruptedException e) {
+						break;
+					}
+					for (DedupFile df : DedupFileStore.getArray()) {
+						if (df instanceof SparseDedupFile)
+							((SparseDedupFile) df)
+									.flushStreamBuffers(STREAM_IDLE_TIME);
+					}
+				}
+			}
+		}, "stream-buffer-expire");
+		th.setDaemon(true);
+		th.start();
+	}
 
 	private boolean closed = true;
 	static {
@@ -142,6 +202,7 @@ public class SparseDedupFile implements DedupFile {
 		} else {
 			this.GUID = mf.getDfGuid();
 		}
+		this.chunkLength = mf.getChunkSize();
 		if (SDFSLogger.isDebug()) {
 			SDFSLogger.getLog().debug(
 					"dedup file opened for " + mf.getPath() + " df="
@@ -156,6 +217,7 @@ public class SparseDedupFile implements DedupFile {
 			throw new FileClosedException("file already closed");
 		}
 		long chunkPos = getChuckPosition(key);
+		this.invalidateReadChunk(chunkPos);
 		DedupChunkInterface writeBuffer = null;
 		writeBuffer = flushingBuffers.remove(chunkPos);
 		if (writeBuffer == null) {
@@ -187,6 +249,7 @@ public class SparseDedupFile implements DedupFile {
 		SparseDedupFile _df = null;
 		try {
 			ch = this.getChannel(-1);
+			this.ingestAllStaged();
 			this.sync(true);
 			_df = new SparseDedupFile(snapmf);
 			File _directory = new File(Main.dedupDBStore + File.separator
@@ -236,6 +299,7 @@ public class SparseDedupFile implements DedupFile {
 		try {
 			ch = this.getChannel(-1);
 			this.writeCache();
+			this.ingestAllStaged();
 			this.sync(true);
 			bdb.copy(dest.getPath() + File.separator + this.GUID + ".map");
 		} catch (Exception e) {
@@ -270,6 +334,15 @@ public class SparseDedupFile implements DedupFile {
 		this.syncLock.lock();
 		try {
 			this.deleted = true;
+			WriteIntentLog il = WriteIntentLog.getLog();
+			if (il != null) {
+				try {
+					il.delete(this);
+				} catch (IOException e) {
+					SDFSLogger.getLog().warn(
+							"unable to log delete of " + mf.getPath(), e);
+				}
+			}
 			this.forceClose();
 			String filePath = Main.dedupDBStore + File.separator
 					+ this.GUID.substring(0, 2) + File.separator + this.GUID;
@@ -297,40 +370,237 @@ public class SparseDedupFile implements DedupFile {
 	}
 
 	public int writeCache() throws IOException, HashtableFullException {
+		if (SDFSLogger.isDebug())
+			SDFSLogger.getLog().debug(
+					"Flushing Cache of for " + mf.getPath() + " of size "
+							+ this.writeBuffers.size());
+		this.flushStreamBuffers(0);
+		this.writeBuffers.invalidateAll();
+		ArrayList<WritableCacheBuffer> wbs = new ArrayList<WritableCacheBuffer>();
+		for (DedupChunkInterface ck : this.flushingBuffers.values()) {
+			if (ck instanceof WritableCacheBuffer)
+				wbs.add((WritableCacheBuffer) ck);
+		}
+		if (this.waitForFlush(wbs))
+			return wbs.size();
+		return -1;
+	}
+
+	/**
+	 * Flushes the buffers that have been written to and waits for them to be
+	 * stored. Buffers that were only read are left in the cache.
+	 * 
+	 * @return the number of buffers flushed or -1 if interrupted
+	 */
+	public int writeDirty() {
+		ArrayList<WritableCacheBuffer> wbs = new ArrayList<WritableCacheBuffer>(
+				this.dirtyBuffers.values());
+		ArrayList<Long> keys = new ArrayList<Long>(wbs.size());
+		for (WritableCacheBuffer wb : wbs)
+			keys.add(wb.getFilePosition());
+		this.flushStreamBuffers(0);
+		// the removal listener queues each buffer in position order
+		this.writeBuffers.invalidateAll(keys);
+		if (this.waitForFlush(wbs))
+			return wbs.size();
+		return -1;
+	}
+
+	private boolean waitForFlush(List<WritableCacheBuffer> wbs) {
+		long tm = System.currentTimeMillis();
 		try {
-			if (SDFSLogger.isDebug())
-				SDFSLogger.getLog().debug(
-						"Flushing Cache of for " + mf.getPath() + " of size "
-								+ this.writeBuffers.size());
-			this.writeBuffers.invalidateAll();
-			int z = this.flushingBuffers.size();
-			int i = 0;
-			int x = 1;
-			for (;;) {
-				i++;
-				if (this.flushingBuffers.size() == 0)
-					return z;
-				try {
-					Thread.sleep(1);
-				} catch (InterruptedException e) {
-					SDFSLogger.getLog().warn("interrupted");
-					break;
-				}
-				if (i > 30000) {
-					int sec = (i / 1000) * x;
-					SDFSLogger
-							.getLog()
-							.warn("WriteCache has take over [" + sec
-									+ "] seconds. There are still "
+			for (WritableCacheBuffer wb : wbs) {
+				while (!wb.awaitFlush(30000)) {
+					int sec = (int) ((System.currentTimeMillis() - tm) / 1000);
+					SDFSLogger.getLog().warn(
+							"WriteCache has take over [" + sec
+									+ "] seconds. Waiting for buffer at "
+									+ wb.getFilePosition() + ". There are still "
 									+ this.flushingBuffers.size() + " in flush");
-					i = 0;
-					x++;
 				}
 			}
-		} finally {
+			return true;
+		} catch (InterruptedException e) {
+			SDFSLogger.getLog().warn("interrupted");
+			return false;
+		}
+	}
 
+	/**
+	 * Opens a buffer for a streaming channel outside of the write buffer
+	 * cache. The buffer stays visible to other writers and readers, the cache
+	 * takes it over if the position is loaded.
+	 * 
+	 * @param position
+	 *            the position of the chunk
+	 * @return the buffer or null if the chunk is already cached or being
+	 *         flushed and the cache has to be used
+	 * @throws IOException
+	 * @throws FileClosedException
+	 */
+	WritableCacheBuffer getStreamBuffer(long position) throws IOException,
+			FileClosedException {
+		if (this.closed) {
+			throw new FileClosedException("file already closed");
 		}
-		return -1;
+		if (this.toOccured) {
+			throw new IOException("timeout occured");
+		}
+		if (this.errOccured) {
+			throw new IOException("write error occured");
+		}
+		if (!storageConnected)
+			throw new IOException("storage offline");
+		long chunkPos = this.getChuckPosition(position);
+		if (this.writeBuffers.getIfPresent(chunkPos) != null
+				|| this.flushingBuffers.containsKey(chunkPos)
+				|| this.streamBuffers.containsKey(chunkPos))
+			return null;
+		WritableCacheBuffer wb = (WritableCacheBuffer) this
+				.marshalWriteBuffer(chunkPos);
+		wb.open();
+		if (this.streamBuffers.putIfAbsent(chunkPos, wb) != null) {
+			wb.discard();
+			return null;
+		}
+		if (this.writeBuffers.getIfPresent(chunkPos) != null) {
+			// cached in the meantime, unless the cache took this one
+			if (this.streamBuffers.remove(chunkPos, wb))
+				wb.discard();
+			return null;
+		}
+		return wb;
+	}
+
+	boolean isStreamOwner(WritableCacheBuffer wb) {
+		return this.streamBuffers.get(wb.getFilePosition()) == wb;
+	}
+
+	void removeStreamBuffer(WritableCacheBuffer wb) {
+		this.streamBuffers.remove(wb.getFilePosition(), wb);
+	}
+
+	/**
+	 * Queues the buffers held by streaming channels that have not been
+	 * written to for idle milliseconds.
+	 */
+	void flushStreamBuffers(long idle) {
+		long now = System.currentTimeMillis();
+		for (WritableCacheBuffer wb : this.streamBuffers.values()) {
+			if (now - wb.getLastWrite() >= idle)
+				wb.flushStream();
+		}
+	}
+
+	void markDirty(WritableCacheBuffer wb) {
+		this.dirtyBuffers.put(wb.getFilePosition(), wb);
+	}
+
+	void clearDirty(WritableCacheBuffer wb) {
+		this.dirtyBuffers.remove(wb.getFilePosition(), wb);
+	}
+
+	void addUnloggedWrite() {
+		this.unloggedWrites.incrementAndGet();
+	}
+
+	/**
+	 * Syncs the write intent log if every write to this file since the last
+	 * sync was added to it.
+	 * 
+	 * @return true if the writes are durable, false if the file must be
+	 *         synced
+	 * @throws IOException
+	 */
+	public boolean syncIntents() throws IOException {
+		WriteIntentLog il = WriteIntentLog.getLog();
+		if (il == null || this.unloggedWrites.get() > 0)
+			return false;
+		il.sync();
+		return true;
+	}
+
+	/**
+	 * 
+	 * @return true if flushed buffers are staged and deduped later, which is
+	 *         also done while the file bypasses inline dedup
+	 */
+	boolean isPostProcess() {
+		return (Main.postProcessDedup || this.mf.getIOMonitor()
+				.isInlineDedupBypassed()) && this.staging != null
+				&& PostProcessDeduper.isRunning()
+				&& !Main.volume.isClustered();
+	}
+
+	void stage(long pos, byte[] b) throws IOException {
+		this.staging.write(pos, b);
+		this.invalidateReadChunk(pos);
+		PostProcessDeduper.staged(this, true);
+	}
+
+	/**
+	 * Called once a buffer has been deduped and its map entry is newer than
+	 * the staged copy.
+	 */
+	void unstage(long pos) {
+		StagingStore st = this.staging;
+		if (st != null)
+			st.remove(pos);
+	}
+
+	void syncStaging() throws IOException {
+		StagingStore st = this.staging;
+		if (st != null)
+			st.sync();
+	}
+
+	public boolean hasStaged() {
+		StagingStore st = this.staging;
+		return st != null && st.size() > 0;
+	}
+
+	/**
+	 * Runs staged chunks through the write pipeline and waits for them to be
+	 * stored.
+	 * 
+	 * @param max
+	 *            the maximum number of chunks to dedup
+	 * @return the number of chunks that are still staged
+	 * @throws IOException
+	 */
+	public int ingestStaged(int max) throws IOException {
+		DedupFileChannel ch = this.getChannel(-1);
+		try {
+			StagingStore st = this.staging;
+			if (st == null || Main.volume.isClustered())
+				return 0;
+			List<Long> positions = st.getPositions(max);
+			ArrayList<WritableCacheBuffer> wbs = new ArrayList<WritableCacheBuffer>(
+					positions.size());
+			ArrayList<Long> keys = new ArrayList<Long>(positions.size());
+			for (Long pos : positions) {
+				WritableCacheBuffer wb = (WritableCacheBuffer) this
+						.getWriteBuffer(pos);
+				if (wb.ingest()) {
+					wbs.add(wb);
+					keys.add(pos);
+				}
+			}
+			// the removal listener queues each buffer
+			this.writeBuffers.invalidateAll(keys);
+			if (!this.waitForFlush(wbs))
+				throw new IOException("interrupted");
+			if (this.errOccured)
+				throw new IOException("write error occured");
+			return st.size();
+		} finally {
+			this.unRegisterChannel(ch, -1);
+		}
+	}
+
+	private void ingestAllStaged() throws IOException {
+		while (this.ingestStaged(1024) > 0)
+			;
 	}
 
 	public void setMetaDataDedupFile(MetaDataDedupFile mf) {
@@ -345,16 +615,37 @@ public class SparseDedupFile implements DedupFile {
 		}
 		if (writeBuffer == null)
 			return;
+		// unlogged writes must be fenced in the intent log before they are
+		// stored
+		writeBuffer.syncFence();
 		if (writeBuffer.isDirty()) {
 			this.dirty = true;
 			try {
-
+				boolean hole;
+				if (writeBuffer.isBatchProcessed())
+					hole = writeBuffer.getFingers().size() == 0
+							&& writeBuffer.isZero();
+				else
+					hole = writeBuffer.isZero();
+				if (hole) {
+					this.writeHole(writeBuffer);
+					return;
+				}
 				int dups = 0;
 				if (writeBuffer.isBatchProcessed()) {
-					for (HashLocPair p : writeBuffer.getFingers()) {
-						if (!writeBuffer.isBatchwritten())
-							p.hashloc = HCServiceProxy.writeChunk(p.hash,
-									p.data, p.hashloc);
+					if (Main.chunkStoreLocal) {
+						HCServiceProxy.batchWriteHash(writeBuffer.getFingers());
+						for (HashLocPair p : writeBuffer.getFingers()) {
+							if (p.hashloc[0] == 1)
+								dups += p.len;
+						}
+						writeBuffer.setDoop(dups);
+					} else {
+						for (HashLocPair p : writeBuffer.getFingers()) {
+							if (!writeBuffer.isBatchwritten())
+								p.hashloc = HCServiceProxy.writeChunk(p.hash,
+										p.data, p.hashloc);
+						}
 					}
 				} else {
 					if (HashFunctionPool.max_hash_cluster == 1) {
@@ -377,6 +668,8 @@ public class SparseDedupFile implements DedupFile {
 						if (p.hashloc[0] == 1)
 							dups = writeBuffer.capacity();
 						p.len = b.length;
+						p.nlen = b.length;
+						p.offset = 0;
 						p.pos = 0;
 						if (writeBuffer.getFingers().size() == 0)
 							writeBuffer.getFingers().add(p);
@@ -397,85 +690,74 @@ public class SparseDedupFile implements DedupFile {
 								@Override
 								public void commandException(Finger result,
 										Throwable e) {
-									int _dn = this.incrementandGetDN();
-									this.incrementAndGetDNEX();
 									SDFSLogger.getLog().error(
 											"Error while getting hash", e);
-									if (_dn >= this.getMaxSz()) {
-										synchronized (this) {
-											this.notifyAll();
-										}
-									}
+									this.incrementAndGetDNEX();
 								}
 
 								@Override
 								public void commandResponse(Finger result) {
-									int _dn = this.incrementandGetDN();
-									if (_dn >= this.getMaxSz()) {
-										synchronized (this) {
-											this.notifyAll();
-										}
-									}
+									this.incrementandGetDN();
 								}
 
 								@Override
 								public void commandArchiveException(
 										DataArchivedException e) {
-									this.incrementAndGetDNEX();
-									this.dar = e;
 									SDFSLogger.getLog().error(
 											"Data has been archived", e);
-									this.incrementandGetDN();
-
-									synchronized (this) {
-										this.notifyAll();
-									}
-
+									this.dar = e;
+									this.incrementAndGetDNEX();
 								}
 
 							};
 							l.setMaxSize(fs.size());
+							ArrayList<Future<?>> futures = new ArrayList<Future<?>>(
+									fs.size());
 							for (Finger f : fs) {
 								f.l = l;
 								f.dedup = mf.isDedup();
-								executor.execute(f);
+								futures.add(IOTaskPool.submit(f, executor));
 							}
 							int wl = 0;
 							int tm = 1000;
 
 							int al = 0;
-							while (l.getDN() < fs.size() && l.getDNEX() == 0) {
-								if (al == 30) {
-									int nt = wl / 1000;
-									SDFSLogger
-											.getLog()
-											.debug("Slow io, waited ["
-													+ nt
-													+ "] seconds for all writes to complete.");
-									al = 0;
-								}
-								if (Main.writeTimeoutSeconds > 0
-										&& wl > (Main.writeTimeoutSeconds * tm)) {
-									int nt = wl / 1000;
-									this.toOccured = true;
-									throw new IOException(
-											"Write Timed Out after ["
-													+ nt
-													+ "] seconds. Expected ["
-													+ fs.size()
-													+ "] block writes but only ["
-													+ l.getDN()
-													+ "] were completed");
-								}
-								if (l.dar != null) {
-									throw l.dar;
-								}
-
-								synchronized (l) {
-									l.wait(tm);
+							try {
+								while (!l.await(tm)) {
+									wl += tm;
+									al++;
+									if (al == 30) {
+										int nt = wl / 1000;
+										SDFSLogger
+												.getLog()
+												.debug("Slow io, waited ["
+														+ nt
+														+ "] seconds for all writes to complete.");
+										al = 0;
+									}
+									if (Main.writeTimeoutSeconds > 0
+											&& wl > (Main.writeTimeoutSeconds * tm)) {
+										int nt = wl / 1000;
+										this.toOccured = true;
+										throw new IOException(
+												"Write Timed Out after ["
+														+ nt
+														+ "] seconds. Expected ["
+														+ fs.size()
+														+ "] block writes but only ["
+														+ l.getDN()
+														+ "] were completed");
+									}
 								}
-								al++;
-								wl += tm;
+							} finally {
+								if (l.getDN() < fs.size())
+									WritableCacheBuffer.cancel(futures);
+							}
+							if (l.dar != null)
+								throw l.dar;
+							if (l.getDNEX() > 0) {
+								this.errOccured = true;
+								throw new IOException("Write Failed");
 							}
 							if (l.getDN() < fs.size()) {
 								this.toOccured = true;
@@ -484,12 +766,6 @@ public class SparseDedupFile implements DedupFile {
 												+ fs.size() + "] but got ["
 												+ l.getDN() + "]");
 							}
-							if (l.dar != null)
-								throw l.dar;
-							if (l.getDNEX() > 0) {
-								this.errOccured = true;
-								throw new IOException("Write Failed");
-							}
 							// SDFSLogger.getLog().info("broke data up into " +
 							// fs.size() + " chunks");
 							int _pos = 0;
@@ -533,6 +809,10 @@ public class SparseDedupFile implements DedupFile {
 				 * IOException( "unable to write chunk hash location at 1 = " +
 				 * hashloc[1]);
 				 */
+				// duplicates are only counted when the chunk store is local
+				if (Main.chunkStoreLocal)
+					mf.getIOMonitor().addDedupSample(writeBuffer.capacity(),
+							dups);
 				mf.getIOMonitor().addVirtualBytesWritten(
 						writeBuffer.capacity(), true);
 				if(writeBuffer.isNewChunk()) {
@@ -567,6 +847,27 @@ public class SparseDedupFile implements DedupFile {
 
 	}
 
+	/**
+	 * Stores a block of zeros as a free record in the map. Nothing is hashed or
+	 * written to the chunk store and reads of the block return zeros without
+	 * a lookup.
+	 */
+	private void writeHole(WritableCacheBuffer writeBuffer) throws IOException {
+		mf.getIOMonitor().addVirtualBytesWritten(writeBuffer.capacity(), true);
+		if (!writeBuffer.isNewChunk()) {
+			mf.getIOMonitor().addActualBytesWritten(
+					-(writeBuffer.capacity() - writeBuffer.getPrevDoop()), true);
+			mf.getIOMonitor().addDulicateData(-writeBuffer.getPrevDoop(), true);
+		}
+		writeBuffer.setAR(new ArrayList<HashLocPair>());
+		writeBuffer.setDoop(0);
+		// a chunk that was never mapped already reads as zeros
+		if (!writeBuffer.isNewChunk())
+			bdb.remove(writeBuffer.getFilePosition());
+		writeBuffer.setNewChunk(true);
+		writeBuffer.setPrevDoop(0);
+	}
+
 	@Override
 	public void updateMap(DedupChunkInterface writeBuffer, int doop)
 			throws FileClosedException, IOException {
@@ -600,6 +901,9 @@ public class SparseDedupFile implements DedupFile {
 				}
 			}
 			bdb.put(filePosition, chunk.getBytes());
+			// the chunk is mapped now if the buffer is flushed again
+			writeBuffer.setNewChunk(false);
+			writeBuffer.setPrevDoop(doop);
 		} catch (Exception e) {
 			SDFSLogger.getLog().fatal(
 					"unable to write " + writeBuffer.getFilePosition()
@@ -636,10 +940,10 @@ public class SparseDedupFile implements DedupFile {
 			pck = new SparseDataChunk();
 		else
 			pck = new SparseDataChunk(b, this.bdb.getVersion());
-		if (pos + Main.CHUNK_LENGTH > mf.length())
+		if (pos + this.chunkLength > mf.length())
 			pck.len = (int) (mf.length() - pos);
 		else
-			pck.len = Main.CHUNK_LENGTH;
+			pck.len = this.chunkLength;
 		return pck;
 	}
 
@@ -657,7 +961,7 @@ public class SparseDedupFile implements DedupFile {
 		long place = this.getChuckPosition(pos);
 		if (place != pos)
 			throw new IOException("Chunk request position request [" + pos
-					+ "] does not align with block size [" + Main.CHUNK_LENGTH
+					+ "] does not align with block size [" + this.chunkLength
 					+ "] place = " + place);
 		writeBuffers.invalidate(place);
 		int z = 0;
@@ -671,11 +975,12 @@ public class SparseDedupFile implements DedupFile {
 			if (z > 6000)
 				throw new IOException("Waiting for flush timed out");
 		}
-		if (buf.getFingers().size() > LongByteArrayMap.MAX_ELEMENTS_PER_AR)
+		if (buf.getFingers().size() > this.getMaxFingers())
 			SDFSLogger.getLog().error(
 					 buf.getFingers().size() + " > "
-							+ LongByteArrayMap.MAX_ELEMENTS_PER_AR);
+							+ this.getMaxFingers());
 		bdb.put(pos, buf.getBytes());
+		this.invalidateReadChunk(pos);
 		long epos = pos + buf.len;
 		if (epos > mf.length())
 			mf.setLength(epos, false);
@@ -713,6 +1018,269 @@ public class SparseDedupFile implements DedupFile {
 		}
 	}
 
+	/**
+	 * Queues a chunk to be read into the read chunk cache ahead of a
+	 * sequential read, or into the write buffer cache if the read chunk cache
+	 * is disabled. Chunks that are cached, held by a write buffer or already
+	 * queued are skipped and so is the chunk if the read ahead queue is full.
+	 * 
+	 * @param position
+	 *            the position of the chunk in the file
+	 */
+	public void readAhead(long position) {
+		final long chunkPos = this.getChuckPosition(position);
+		if (this.closed || chunkPos >= mf.length()
+				|| ReadChunkCache.contains(this.readEpoch, chunkPos)
+				|| this.hasBuffer(chunkPos) || !this.readAheads.add(chunkPos))
+			return;
+		try {
+			readAheadPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (ReadChunkCache.isEnabled())
+							getReadChunk(chunkPos);
+						else {
+							DedupChunkInterface ck = getWriteBuffer(chunkPos);
+							if (ck instanceof WritableCacheBuffer)
+								((WritableCacheBuffer) ck).prefetch();
+						}
+					} catch (Exception e) {
+						if (SDFSLogger.isDebug())
+							SDFSLogger.getLog().debug(
+									"unable to read ahead " + mf.getPath()
+											+ " at " + chunkPos, e);
+					} finally {
+						readAheads.remove(chunkPos);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.readAheads.remove(chunkPos);
+		}
+	}
+
+	/**
+	 * Queues the chunks of a read ahead window. With restore-read-ahead set the
+	 * window is read as one restore that fetches its chunks in chunk store
+	 * order, otherwise each chunk is queued on its own.
+	 * 
+	 * @param start
+	 *            the position of the first chunk
+	 * @param end
+	 *            the end of the window
+	 */
+	public void readAhead(long start, long end) {
+		if (!Main.restoreReadAhead || !ReadChunkCache.isEnabled()) {
+			for (long pos = this.getChuckPosition(start); pos < end; pos += this.chunkLength)
+				this.readAhead(pos);
+			return;
+		}
+		final ArrayList<Long> positions = new ArrayList<Long>();
+		for (long pos = this.getChuckPosition(start); pos < end
+				&& pos < mf.length(); pos += this.chunkLength) {
+			if (!this.closed
+					&& !ReadChunkCache.contains(this.readEpoch, pos)
+					&& !this.hasBuffer(pos) && this.readAheads.add(pos))
+				positions.add(pos);
+		}
+		if (positions.isEmpty())
+			return;
+		try {
+			readAheadPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						restoreChunks(positions);
+					} catch (Exception e) {
+						if (SDFSLogger.isDebug())
+							SDFSLogger.getLog().debug(
+									"unable to read ahead " + mf.getPath()
+											+ " at " + positions.get(0), e);
+					} finally {
+						readAheads.removeAll(positions);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.readAheads.removeAll(positions);
+		}
+	}
+
+	/**
+	 * Reads chunks into the read chunk cache with
+	 * WritableCacheBuffer.readChunks.
+	 */
+	private void restoreChunks(List<Long> positions) throws IOException,
+			FileClosedException, DataArchivedException, InterruptedException {
+		this.checkReadable();
+		long epoch = this.readEpoch;
+		long gen = this.readGeneration.get();
+		ArrayList<Long> ps = new ArrayList<Long>(positions.size());
+		ArrayList<List<HashLocPair>> ars = new ArrayList<List<HashLocPair>>(
+				positions.size());
+		for (Long pos : positions) {
+			byte[] v = this.bdb.get(pos);
+			if (v == null)
+				continue;
+			ars.add(new SparseDataChunk(v, this.bdb.getVersion())
+					.getFingers());
+			ps.add(pos);
+		}
+		byte[][] chunks = WritableCacheBuffer.readChunks(ars, this.chunkLength);
+		for (int i = 0; i < chunks.length; i++) {
+			// not cached if a write may have changed the chunk meanwhile
+			if (this.readGeneration.get() == gen && this.readEpoch == epoch
+					&& !this.hasBuffer(ps.get(i)))
+				ReadChunkCache.put(epoch, ps.get(i), chunks[i]);
+		}
+	}
+
+	/**
+	 * Returns the data of a chunk for a read without creating a write buffer.
+	 * The data comes from the read chunk cache or is read from the DSE and
+	 * cached. It must not be changed.
+	 * 
+	 * @param position
+	 *            a position in the file
+	 * @return the data of the chunk or null if the chunk is held by a write
+	 *         buffer, or staged, and has to be read through getWriteBuffer
+	 * @throws IOException
+	 * @throws FileClosedException
+	 * @throws DataArchivedException
+	 */
+	public byte[] getReadChunk(long position) throws IOException,
+			FileClosedException, DataArchivedException {
+		this.checkReadable();
+		if (!ReadChunkCache.isEnabled() || Main.volume.isClustered())
+			return null;
+		long chunkPos = this.getChuckPosition(position);
+		long epoch = this.readEpoch;
+		long gen = this.readGeneration.get();
+		if (this.hasBuffer(chunkPos))
+			return null;
+		byte[] b = ReadChunkCache.get(epoch, chunkPos);
+		if (b != null)
+			return b;
+		byte[] v = this.bdb.get(chunkPos);
+		if (v == null)
+			return new byte[this.chunkLength];
+		SparseDataChunk pck = new SparseDataChunk(v, this.bdb.getVersion());
+		try {
+			b = WritableCacheBuffer.readChunk(pck.getFingers(),
+					this.chunkLength);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		// not cached if a write may have changed the chunk meanwhile
+		if (this.readGeneration.get() == gen && this.readEpoch == epoch
+				&& !this.hasBuffer(chunkPos))
+			ReadChunkCache.put(epoch, chunkPos, b);
+		return b;
+	}
+
+	/**
+	 * Reads from a chunk that has no write buffer straight into dst. Whole
+	 * chunks are read through the read chunk cache. Small reads that are not
+	 * part of a sequential read and miss the cache only fetch the sub-chunks
+	 * they overlap and are not cached.
+	 * 
+	 * @param position
+	 *            the position in the file to read from
+	 * @param dst
+	 *            the buffer to read into at its position
+	 * @param len
+	 *            the number of bytes wanted. Reads stop at the end of the
+	 *            chunk.
+	 * @param sequential
+	 *            true if the read follows the last read of the channel
+	 * @return the number of bytes read or -1 if the chunk is held by a write
+	 *         buffer, or staged, and has to be read through getWriteBuffer
+	 * @throws IOException
+	 * @throws FileClosedException
+	 * @throws DataArchivedException
+	 */
+	public int read(long position, ByteBuffer dst, int len, boolean sequential)
+			throws IOException, FileClosedException, DataArchivedException {
+		this.checkReadable();
+		if (Main.volume.isClustered())
+			return -1;
+		long chunkPos = this.getChuckPosition(position);
+		int start = (int) (position - chunkPos);
+		int n = Math.min(len, this.chunkLength - start);
+		if (this.hasBuffer(chunkPos))
+			return -1;
+		byte[] b = ReadChunkCache.get(this.readEpoch, chunkPos);
+		if (b == null
+				&& (sequential || HashFunctionPool.max_hash_cluster == 1 || n > this.chunkLength / 2)) {
+			b = this.getReadChunk(chunkPos);
+			if (b == null)
+				return -1;
+		}
+		if (b != null) {
+			dst.put(b, start, n);
+			return n;
+		}
+		byte[] v = this.bdb.get(chunkPos);
+		if (v == null) {
+			dst.put(new byte[n]);
+			return n;
+		}
+		SparseDataChunk pck = new SparseDataChunk(v, this.bdb.getVersion());
+		try {
+			WritableCacheBuffer.readRange(pck.getFingers(), start, n, dst);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		return n;
+	}
+
+	private void checkReadable() throws IOException, FileClosedException {
+		if (this.closed) {
+			throw new FileClosedException("file already closed");
+		}
+		if (this.toOccured) {
+			throw new IOException("timeout occured");
+		}
+		if (this.errOccured) {
+			throw new IOException("write error occured");
+		}
+		if (!storageConnected)
+			throw new IOException("storage offline");
+	}
+
+	/**
+	 * 
+	 * @return true if the latest data of the chunk is not in the file map
+	 *         or may be about to change
+	 */
+	private boolean hasBuffer(long chunkPos) {
+		StagingStore st = this.staging;
+		return this.writeBuffers.getIfPresent(chunkPos) != null
+				|| this.flushingBuffers.containsKey(chunkPos)
+				|| this.streamBuffers.containsKey(chunkPos)
+				|| (st != null && st.contains(chunkPos));
+	}
+
+	/**
+	 * Drops a chunk from the read chunk cache. Must be called before a write
+	 * buffer is created for the chunk or after its map entry has been changed
+	 * some other way.
+	 */
+	void invalidateReadChunk(long chunkPos) {
+		this.readGeneration.incrementAndGet();
+		ReadChunkCache.invalidate(this.readEpoch, chunkPos);
+	}
+
+	/**
+	 * Drops all the chunks of this file from the read chunk cache. Must be
+	 * called after the file map has been changed.
+	 */
+	private void invalidateReadChunks() {
+		this.readGeneration.incrementAndGet();
+		this.readEpoch = ReadChunkCache.newEpoch();
+	}
+
 	private DedupChunkInterface marshalWriteBuffer(long chunkPos)
 			throws IOException, FileClosedException {
 		DedupChunk ck = null;
@@ -731,6 +1299,9 @@ public class SparseDedupFile implements DedupFile {
 				if (this.reconstructed)
 					writeBuffer.setReconstructed(true);
 			}
+			StagingStore st = this.staging;
+			if (st != null && st.contains(chunkPos))
+				writeBuffer.loadStaged(st.read(chunkPos));
 			// need to fix this
 
 			return writeBuffer;
@@ -791,16 +1362,23 @@ public class SparseDedupFile implements DedupFile {
 					tm = System.currentTimeMillis();
 				long wsz = this.writeBuffers.size();
 				int fsz = this.flushingBuffers.size();
-				this.writeCache();
+				int ul = this.unloggedWrites.get();
+				int dsz = this.writeDirty();
+				if (this.errOccured)
+					throw new IOException("write error occured");
+				this.unloggedWrites.addAndGet(-ul);
 				if (SDFSLogger.isDebug())
 					wt = System.currentTimeMillis() - tm;
+				this.syncStaging();
 				this.bdb.sync();
+				if (this.staging != null)
+					this.staging.commitRemovals();
 				if (SDFSLogger.isDebug())
 					st = System.currentTimeMillis() - tm - wt;
 				if (SDFSLogger.isDebug())
 					SDFSLogger.getLog().debug(
-							"Sync wb=[" + wsz + "] fb=[" + fsz
-									+ "] write fush [" + wt + "] bd sync ["
+							"Sync wb=[" + wsz + "] fb=[" + fsz + "] dirty=["
+									+ dsz + "] write fush [" + wt + "] bd sync ["
 									+ st + "]");
 				HCServiceProxy.sync();
 			}
@@ -998,9 +1576,21 @@ public class SparseDedupFile implements DedupFile {
 							"unable to flush " + this.databasePath, e);
 				}
 				try {
+					this.syncStaging();
 					this.bdb.sync();
+					this.staging.commitRemovals();
 				} catch (Exception e) {
 				}
+				if (this.staging != null) {
+					try {
+						this.staging.close();
+					} catch (Exception e) {
+						SDFSLogger.getLog().warn(
+								"unable to close staging for " + mf.getPath(),
+								e);
+					}
+					this.staging = null;
+				}
 				try {
 					this.bdb.close();
 				} catch (Exception e) {
@@ -1131,9 +1721,18 @@ public class SparseDedupFile implements DedupFile {
 				if (mf.getDev() != null) {
 					this.bdb = new BlockDevSocket(mf.getDev(),
 							this.databasePath);
-				} else
-					this.bdb = new LongByteArrayMap(this.databasePath);
-
+				} else {
+					LongByteArrayMap m = new LongByteArrayMap(
+							this.databasePath, mf.getChunkSize());
+					// the map header wins over the meta file
+					this.chunkLength = m.getChunkSize();
+					this.bdb = m;
+				}
+				this.staging = new StagingStore(this.databaseDirPath,
+						this.GUID, this.chunkLength);
+				if (this.staging.size() > 0)
+					PostProcessDeduper.staged(this, false);
+				this.readEpoch = ReadChunkCache.newEpoch();
 				this.closed = false;
 			}
 			DedupFileStore.addOpenDedupFiles(this);
@@ -1183,7 +1782,7 @@ public class SparseDedupFile implements DedupFile {
 				// ByteString data = pck.getData();
 				// boolean dataEmpty = !pck.isLocalData();
 				// if (dataEmpty) {
-				ck = new DedupChunk(place, Main.CHUNK_LENGTH, false,
+				ck = new DedupChunk(place, this.chunkLength, false,
 						pck.getFingers(), pck.isRecontructed());
 				// } else {
 				// byte dk[] = chunkStore.get(place);
@@ -1228,7 +1827,9 @@ public class SparseDedupFile implements DedupFile {
 		long place = this.getChuckPosition(location);
 		try {
 			this.writeCache();
+			this.unstage(place);
 			this.bdb.remove(place);
+			this.invalidateReadChunk(place);
 		} catch (Exception e) {
 			SDFSLogger.getLog().warn(
 					"unable to remove chunk at position " + place, e);
@@ -1253,7 +1854,13 @@ public class SparseDedupFile implements DedupFile {
 			if (size == 0) {
 				this.mf.getIOMonitor().clearAllCounters(true);
 			}
+			WriteIntentLog il = WriteIntentLog.getLog();
+			if (il != null)
+				il.truncate(this, size);
+			if (this.staging != null)
+				this.staging.truncate(size);
 			this.bdb.truncate(size);
+			this.invalidateReadChunks();
 		} catch (Exception e) {
 			SDFSLogger.getLog().warn("unable to truncate to " + size, e);
 			throw new IOException(e);
@@ -1263,7 +1870,7 @@ public class SparseDedupFile implements DedupFile {
 	}
 
 	private DedupChunk createNewChunk(long location) {
-		DedupChunk ck = new DedupChunk(location, Main.CHUNK_LENGTH, true,
+		DedupChunk ck = new DedupChunk(location, this.chunkLength, true,
 				new ArrayList<HashLocPair>(), false);
 		return ck;
 	}
@@ -1275,11 +1882,29 @@ public class SparseDedupFile implements DedupFile {
 	 */
 	@Override
 	public long getChuckPosition(long location) {
-		long place = location / Main.CHUNK_LENGTH;
-		place = place * Main.CHUNK_LENGTH;
+		long place = location / this.chunkLength;
+		place = place * this.chunkLength;
 		return place;
 	}
 
+	/**
+	 * 
+	 * @return the logical chunk size of this file. It is Main.CHUNK_LENGTH
+	 *         unless another chunk size was set on the file before it was
+	 *         written.
+	 */
+	public int getChunkLength() {
+		return this.chunkLength;
+	}
+
+	/**
+	 * 
+	 * @return the number of fingers a map record of this file holds
+	 */
+	public int getMaxFingers() {
+		return LongByteArrayMap.getMaxElements(this.chunkLength);
+	}
+
 	@Override
 	public boolean isAbsolute() {
 		return true;
@@ -1312,7 +1937,10 @@ public class SparseDedupFile implements DedupFile {
 
 	@Override
 	public void trim(long start, int len) throws IOException {
+		if (this.staging != null)
+			this.staging.trim(start, len);
 		this.bdb.trim(start, len);
+		this.invalidateReadChunks();
 	}
 
 	ReentrantReadWriteLock globalLock = new ReentrantReadWriteLock();
@@ -0,0 +1,245 @@
+package org.opendedup.sdfs.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.opendedup.logging.SDFSLogger;
+
+/**
+ *
+ * @author Sam Silverberg Raw copies of the chunks of a file that have been
+ *         written but not deduped yet. Used when post-process-dedup is set.
+ *         The data file [guid].stg holds each staged chunk at its position in
+ *         the file and is sparse. The index file [guid].sti holds one byte per
+ *         chunk that is 1 while the chunk is staged.
+ *
+ *         A chunk that has been deduped is removed from the store right away
+ *         but its index byte is only cleared by commitRemovals, which must be
+ *         called once the file map has been synced. Until then a crash leaves
+ *         the chunk staged and it is deduped again. Both files are truncated
+ *         once nothing is staged.
+ *
+ */
+public class StagingStore {
+	private static final byte[] STAGED = new byte[] { 1 };
+	private static final byte[] NOT_STAGED = new byte[] { 0 };
+	private final File dataFile;
+	private final File indexFile;
+	private final int chunkLength;
+	private FileChannel data = null;
+	private FileChannel index = null;
+	private final ConcurrentSkipListSet<Long> staged = new ConcurrentSkipListSet<Long>();
+	// deduped chunks whose index bytes have not been cleared
+	private final ConcurrentSkipListSet<Long> removed = new ConcurrentSkipListSet<Long>();
+
+	/**
+	 * Opens the staging store of a file. The files are only created once a
+	 * chunk is staged.
+	 *
+	 * @param dir
+	 *            the directory of the file map
+	 * @param guid
+	 *            the guid of the dedup file
+	 * @param chunkLength
+	 *            the chunk size of the file
+	 * @throws IOException
+	 */
+	public StagingStore(String dir, String guid, int chunkLength)
+			throws IOException {
+		this.chunkLength = chunkLength;
+		this.dataFile = new File(dir + File.separator + guid + ".stg");
+		this.indexFile = new File(dir + File.separator + guid + ".sti");
+		if (this.indexFile.exists() && this.indexFile.length() > 0) {
+			this.open();
+			this.load();
+			if (this.staged.size() > 0)
+				SDFSLogger.getLog().info(
+						"found " + this.staged.size()
+								+ " staged chunks in " + this.dataFile);
+		}
+	}
+
+	private void open() throws IOException {
+		if (this.data == null) {
+			this.data = new RandomAccessFile(this.dataFile, "rw").getChannel();
+			this.index = new RandomAccessFile(this.indexFile, "rw")
+					.getChannel();
+		}
+	}
+
+	private void load() throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+		long i = 0;
+		while (this.index.read(b, i) > 0) {
+			b.flip();
+			while (b.hasRemaining()) {
+				if (b.get() == 1)
+					this.staged.add(i * this.chunkLength);
+				i++;
+			}
+			b.clear();
+		}
+	}
+
+	private static void write(FileChannel ch, byte[] b, int len, long pos)
+			throws IOException {
+		ByteBuffer bf = ByteBuffer.wrap(b, 0, len);
+		while (bf.hasRemaining())
+			pos += ch.write(bf, pos);
+	}
+
+	/**
+	 * Stages a chunk.
+	 *
+	 * @param pos
+	 *            the position of the chunk in the file
+	 * @param b
+	 *            the data of the chunk
+	 * @throws IOException
+	 */
+	public synchronized void write(long pos, byte[] b) throws IOException {
+		this.open();
+		write(this.data, b, b.length, pos);
+		// the index byte is still set if the removal was not committed
+		if (!this.staged.contains(pos) && !this.removed.remove(pos))
+			write(this.index, STAGED, 1, pos / this.chunkLength);
+		this.staged.add(pos);
+	}
+
+	/**
+	 * Reads a staged chunk.
+	 *
+	 * @param pos
+	 *            the position of the chunk in the file
+	 * @return the data of the chunk
+	 * @throws IOException
+	 */
+	public byte[] read(long pos) throws IOException {
+		byte[] b = new byte[this.chunkLength];
+		ByteBuffer bf = ByteBuffer.wrap(b);
+		long p = pos;
+		while (bf.hasRemaining()) {
+			int r = this.data.read(bf, p);
+			if (r < 0)
+				break;
+			p += r;
+		}
+		return b;
+	}
+
+	public boolean contains(long pos) {
+		return this.staged.contains(pos);
+	}
+
+	public int size() {
+		return this.staged.size();
+	}
+
+	/**
+	 *
+	 * @param max
+	 *            the maximum number of positions to return
+	 * @return the positions of staged chunks in file order
+	 */
+	public List<Long> getPositions(int max) {
+		ArrayList<Long> al = new ArrayList<Long>(Math.min(max,
+				this.staged.size()));
+		Iterator<Long> iter = this.staged.iterator();
+		while (iter.hasNext() && al.size() < max)
+			al.add(iter.next());
+		return al;
+	}
+
+	/**
+	 * Removes a chunk that has been deduped.
+	 *
+	 * @param pos
+	 *            the position of the chunk in the file
+	 */
+	public synchronized void remove(long pos) {
+		if (this.staged.remove(pos))
+			this.removed.add(pos);
+	}
+
+	/**
+	 * Drops the staged data past size.
+	 *
+	 * @param size
+	 *            the new length of the file
+	 * @throws IOException
+	 */
+	public synchronized void truncate(long size) throws IOException {
+		for (Long pos : this.staged.tailSet((size / this.chunkLength)
+				* this.chunkLength)) {
+			if (pos >= size)
+				this.remove(pos);
+			else
+				write(this.data, new byte[this.chunkLength], (int) (pos
+						+ this.chunkLength - size), size);
+		}
+	}
+
+	/**
+	 * Drops the chunks that are completely inside a trimmed range.
+	 */
+	public synchronized void trim(long start, int len) {
+		for (Long pos : this.staged.subSet(start, start + len)) {
+			if (pos + this.chunkLength <= start + len)
+				this.remove(pos);
+		}
+	}
+
+	public synchronized void sync() throws IOException {
+		if (this.data != null) {
+			this.data.force(false);
+			this.index.force(false);
+		}
+	}
+
+	/**
+	 * Clears the index bytes of the chunks that have been deduped. Must only
+	 * be called once the file map entries of those chunks have been synced.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void commitRemovals() throws IOException {
+		if (this.data == null)
+			return;
+		if (this.staged.isEmpty()) {
+			this.removed.clear();
+			if (this.index.size() > 0) {
+				this.index.truncate(0);
+				this.data.truncate(0);
+			}
+			return;
+		}
+		Iterator<Long> iter = this.removed.iterator();
+		while (iter.hasNext()) {
+			long pos = iter.next();
+			write(this.index, NOT_STAGED, 1, pos / this.chunkLength);
+			iter.remove();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (this.data != null) {
+			boolean empty = this.staged.isEmpty() && this.removed.isEmpty();
+			this.data.close();
+			this.index.close();
+			this.data = null;
+			this.index = null;
+			if (empty) {
+				this.dataFile.delete();
+				this.indexFile.delete();
+			}
+		}
+	}
+
+}
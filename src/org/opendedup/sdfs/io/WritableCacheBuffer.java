@@ -3,9 +3,15 @@ package org.opendedup.sdfs.io;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -14,7 +20,6 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import org.opendedup.collections.DataArchivedException;
 import org.opendedup.collections.HashtableFullException;
-import org.opendedup.collections.LongByteArrayMap;
 import org.opendedup.hashing.AbstractHashEngine;
 import org.opendedup.hashing.Finger;
 import org.opendedup.hashing.HashFunctionPool;
@@ -22,6 +27,9 @@ import org.opendedup.hashing.VariableHashEngine;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.servers.HCServiceProxy;
+import org.opendedup.util.BufferPool;
+import org.opendedup.util.ByteUtils;
+import org.opendedup.util.StringUtils;
 
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
@@ -36,6 +44,9 @@ import com.google.common.hash.Hashing;
 public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 
 	private ByteBuffer buf = null;
+	private boolean pooled = false;
+	// ranges written to a buffer that has not been read yet
+	private BitSet covered = null;
 	private boolean dirty = false;
 
 	private long endPosition = 0;
@@ -53,18 +64,25 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 	boolean rafInit = false;
 	int prevDoop = 0;
 	private boolean batchprocessed;
+	private volatile int flushGeneration = 0;
+	// counted down when the buffer queued by flush is closed or reopened
+	private CountDownLatch flushLatch = null;
+	// intent log segments holding writes to this buffer that are not stored
+	private HashSet<WriteIntentLog.Segment> intents = null;
+	// set when an unlogged write was fenced in the intent log and the log has
+	// to be synced before the buffer is stored
+	private volatile boolean fenced = false;
+	// set by the post process deduper so the next flush dedups the buffer
+	private boolean ingest = false;
+	private volatile long lastWrite = System.currentTimeMillis();
 	private boolean batchwritten;
 	private boolean reconstructed;
 	private boolean hlAdded = false;
 	private List<HashLocPair> ar = new ArrayList<HashLocPair>();
-	int sz;
 	private static int maxTasks = (HashFunctionPool.max_hash_cluster) *2;
 	private static BlockingQueue<Runnable> worksQueue = null;
 	private static RejectedExecutionHandler executionHandler = new BlockPolicy();
 	private static ThreadPoolExecutor executor = null;
-	private static BlockingQueue<Runnable> lworksQueue = null;
-	private static RejectedExecutionHandler lexecutionHandler = new BlockPolicy();
-	private static ThreadPoolExecutor lexecutor = null;
 	static {
 		if (maxTasks > 120)
 			maxTasks = 120;
@@ -73,10 +91,6 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		worksQueue = new LinkedBlockingQueue<Runnable>(maxTasks);
 		executor = new ThreadPoolExecutor(Main.writeThreads, Main.writeThreads,
 				10, TimeUnit.SECONDS, worksQueue, executionHandler);
-		lworksQueue = new LinkedBlockingQueue<Runnable>(maxTasks);
-		lexecutor = new ThreadPoolExecutor(Main.writeThreads,
-				Main.writeThreads, 10, TimeUnit.SECONDS, lworksQueue,
-				lexecutionHandler);
 
 		executor.allowCoreThreadTimeOut(true);
 	}
@@ -89,10 +103,10 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		this.ar = ar;
 		this.df = df;
 		this.reconstructed = reconstructed;
-		buf = ByteBuffer.wrap(new byte[Main.CHUNK_LENGTH]);
+		this.leaseBuffer();
 
 		// this.currentLen = 0;
-		this.setLength(Main.CHUNK_LENGTH);
+		this.setLength(this.df.getChunkLength());
 		this.endPosition = this.getFilePosition() + this.getLength();
 		this.setWritable(true);
 	}
@@ -126,7 +140,7 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		this.reconstructed = dk.getReconstructed();
 		this.ar = dk.getFingers();
 		this.df = (SparseDedupFile) df;
-		this.setLength(Main.CHUNK_LENGTH);
+		this.setLength(this.df.getChunkLength());
 		this.endPosition = this.getFilePosition() + this.getLength();
 		this.setWritable(true);
 	}
@@ -155,10 +169,13 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 			throw new BufferClosedException("Buffer Closed");
 		if (this.flushing)
 			throw new BufferClosedException("Buffer Flushing");
-			try {
-				this.initBuffer();
-			} catch (InterruptedException e) {
-				throw new IOException(e);
+			// a range that was just written is read from the buffer as is
+			if (!this.isCovered(startPos, len)) {
+				try {
+					this.initBuffer();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
 			}
 			byte[] dd = new byte[len];
 			buf.position(startPos);
@@ -179,149 +196,406 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 
 	}
 
-	private void initBuffer() throws IOException, InterruptedException, DataArchivedException {
-		if (this.buf == null) {
-			this.hlAdded = false;
-			if (HashFunctionPool.max_hash_cluster > 1) {
-				this.buf = ByteBuffer.wrap(new byte[Main.CHUNK_LENGTH]);
-				final ArrayList<Shard> cks = new ArrayList<Shard>();
-				int i = 0;
-				// long fp = this.position;
-
-				for (HashLocPair p : ar) {
-
-					if (p.hashloc[1] != 0) {
-						Shard sh = new Shard();
-						sh.hash = p.hash;
-						sh.hashloc = p.hashloc;
-						sh.pos = p.pos;
-						sh.nlen = p.nlen;
-						sh.offset = p.offset;
-						sh.len = p.len;
-						sh.apos = i;
-						cks.add(i, sh);
-					} else
-						break;
-					i++;
+	@Override
+	public void read(ByteBuffer dst, int startPos, int len)
+			throws IOException, BufferClosedException, DataArchivedException {
+		this.lock.lock();
+		try {
+			if (this.closed)
+				throw new BufferClosedException("Buffer Closed");
+			if (this.flushing)
+				throw new BufferClosedException("Buffer Flushing");
+			// a range that was just written is read from the buffer as is
+			if (!this.isCovered(startPos, len)) {
+				try {
+					this.initBuffer();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
 				}
-				sz = cks.size();
-				AsyncChunkReadActionListener l = new AsyncChunkReadActionListener() {
-
-					@Override
-					public void commandException(Exception e) {
-						this.incrementAndGetDNEX();
-						synchronized (this) {
-							this.notifyAll();
-						}
-
-					}
+			}
+			ByteBuffer src = buf.duplicate();
+			src.limit(startPos + len);
+			src.position(startPos);
+			dst.put(src);
+		} finally {
+			this.lock.unlock();
+		}
+	}
 
-					@Override
-					public void commandResponse(Shard result) {
-						cks.get(result.apos).ck = result.ck;
-						if (this.incrementandGetDN() >= sz) {
+	/**
+	 * Fetches shards from the DSE in parallel and waits for them. Each shard
+	 * holds its data in ck once this returns.
+	 */
+	private static void readShards(final ArrayList<Shard> cks)
+			throws IOException, InterruptedException, DataArchivedException {
+		final int sz = cks.size();
+		AsyncChunkReadActionListener l = new AsyncChunkReadActionListener() {
+
+			@Override
+			public void commandException(Exception e) {
+				this.incrementAndGetDNEX();
+			}
 
-							synchronized (this) {
-								this.notifyAll();
-							}
-						}
-					}
+			@Override
+			public void commandResponse(Shard result) {
+				cks.get(result.apos).ck = result.ck;
+				this.incrementandGetDN();
+			}
 
-					@Override
-					public void commandArchiveException(DataArchivedException e) {
-						this.incrementAndGetDNEX();
-						this.setDAR(e);
-						
-						synchronized (this) {
-							this.notifyAll();
-						}
-						
-					}
+			@Override
+			public void commandArchiveException(DataArchivedException e) {
+				this.setDAR(e);
+				this.incrementAndGetDNEX();
+			}
 
-				};
-				for (Shard sh : cks) {
-					sh.l = l;
-					executor.execute(sh);
+		};
+		l.setMaxSize(sz);
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>(sz);
+		for (Shard sh : cks) {
+			sh.l = l;
+			futures.add(IOTaskPool.submit(sh, executor));
+		}
+		int wl = 0;
+		int tm = 1000;
+		int al = 0;
+		try {
+			while (!l.await(tm)) {
+				wl += tm;
+				al++;
+				if (al == 30) {
+					int nt = wl / 1000;
+					SDFSLogger.getLog().debug(
+							"Slow io, waited [" + nt
+									+ "] seconds for all reads to complete.");
+					al = 0;
 				}
-				int wl = 0;
-				int tm = 1000;
-				int al = 0;
-				while (l.getDN() < sz && l.getDNEX() == 0) {
-					if (al == 30) {
-						int nt = wl / 1000;
-						SDFSLogger
-								.getLog()
-								.debug("Slow io, waited ["
-										+ nt
-										+ "] seconds for all reads to complete.");
-						al = 0;
-					}
-					if (Main.readTimeoutSeconds > 0
-							&& wl > (Main.writeTimeoutSeconds * tm)) {
-						int nt = (tm * wl) / 1000;
-						throw new IOException("read Timed Out after [" + nt
-								+ "] seconds. Expected [" + sz
-								+ "] block read but only [" + l.getDN()
-								+ "] were completed");
-					}
-					if(l.getDAR() != null) {
-						throw l.getDAR();
-					}
-					if(l.getDNEX() > 0)
-						throw new IOException("error while reading data");
-					synchronized (l) {
-						l.wait(1000);
-					}
-					wl += 1000;
-					al++;
+				if (Main.readTimeoutSeconds > 0
+						&& wl > (Main.readTimeoutSeconds * tm)) {
+					int nt = wl / 1000;
+					throw new IOException("read Timed Out after [" + nt
+							+ "] seconds. Expected [" + sz
+							+ "] block read but only [" + l.getDN()
+							+ "] were completed");
 				}
-				if(l.getDAR() != null) {
-					throw l.getDAR();
+			}
+		} finally {
+			if (l.getDN() < sz)
+				cancel(futures);
+		}
+		if(l.getDAR() != null) {
+			throw l.getDAR();
+		}
+		if (l.getDNEX() > 0) {
+			throw new IOException("error while getting blocks "
+					+ l.getDNEX() + " errors found");
+		}
+		if (l.getDN() < sz) {
+			throw new IOException(
+					"thread timed out before read was complete ");
+		}
+	}
+
+	/**
+	 * Reads the data of a stored chunk without a write buffer.
+	 * 
+	 * @param ar
+	 *            the sub-chunks of the chunk from its file map record
+	 * @param length
+	 *            the length of the chunk
+	 * @return the data of the chunk. Ranges not covered by a sub-chunk are
+	 *         zero.
+	 */
+	static byte[] readChunk(List<HashLocPair> ar, int length)
+			throws IOException, InterruptedException, DataArchivedException {
+		byte[] b = new byte[length];
+		if (ar.size() == 0)
+			return b;
+		if (HashFunctionPool.max_hash_cluster == 1) {
+			byte[] ck = HCServiceProxy.fetchChunk(ar.get(0).hash,
+					ar.get(0).hashloc);
+			System.arraycopy(ck, 0, b, 0, Math.min(ck.length, length));
+			return b;
+		}
+		ArrayList<Shard> cks = toShards(ar);
+		for (int i = 0; i < cks.size(); i++)
+			cks.get(i).apos = i;
+		readShards(cks);
+		for (Shard sh : cks)
+			System.arraycopy(sh.ck, sh.offset, b, sh.pos, sh.nlen);
+		return b;
+	}
+
+	/**
+	 * Converts the fingers of a chunk from its file map record into the
+	 * shards to read. Fingers with a position of -1 were stored in sequence
+	 * and follow the previous finger. Fingers without a hash location are
+	 * skipped.
+	 * 
+	 * @param ar
+	 *            the fingers of the chunk
+	 * @return the shards in the order of the fingers
+	 */
+	static ArrayList<Shard> toShards(List<HashLocPair> ar) {
+		ArrayList<Shard> cks = new ArrayList<Shard>(ar.size());
+		int rpos = 0;
+		for (HashLocPair p : ar) {
+			if (p.hashloc[1] == 0)
+				continue;
+			Shard sh = new Shard();
+			sh.hash = p.hash;
+			sh.hashloc = p.hashloc;
+			sh.pos = p.pos;
+			sh.nlen = p.nlen;
+			sh.offset = p.offset;
+			sh.len = p.len;
+			if (sh.pos == -1) {
+				// stored in sequence
+				sh.pos = rpos;
+				sh.offset = 0;
+				sh.nlen = sh.len;
+			}
+			rpos = sh.pos + sh.nlen;
+			cks.add(sh);
+		}
+		return cks;
+	}
+
+	/**
+	 * Reads a run of stored chunks for a restore. Each distinct sub-chunk is
+	 * fetched once, one at a time in the order of the chunks' positions in
+	 * the chunk store, and checked against its hash. The sub-chunks are then
+	 * assembled into the chunks in file order. Callers run this off the read
+	 * path, so the window is read by a single ordered reader.
+	 * 
+	 * @param ars
+	 *            the sub-chunks of each chunk from their file map records
+	 * @param length
+	 *            the length of the chunks
+	 * @return the data of the chunks in the order of ars
+	 */
+	static byte[][] readChunks(List<List<HashLocPair>> ars, int length)
+			throws IOException, InterruptedException, DataArchivedException {
+		HashMap<ByteBuffer, Shard> fetches = new HashMap<ByteBuffer, Shard>();
+		ArrayList<byte[]> hashes = new ArrayList<byte[]>();
+		ArrayList<Shard> unordered = new ArrayList<Shard>();
+		ArrayList<ArrayList<Shard>> slices = new ArrayList<ArrayList<Shard>>(
+				ars.size());
+		for (List<HashLocPair> ar : ars) {
+			ArrayList<Shard> sl;
+			if (HashFunctionPool.max_hash_cluster == 1) {
+				// fixed chunks are stored whole and their fingers may not
+				// have a length
+				sl = new ArrayList<Shard>(1);
+				if (ar.size() > 0) {
+					Shard sh = new Shard();
+					sh.hash = ar.get(0).hash;
+					sh.hashloc = ar.get(0).hashloc;
+					sh.pos = 0;
+					sh.offset = 0;
+					sh.nlen = length;
+					sl.add(sh);
 				}
-				if (l.getDNEX() > 0) {
-					throw new IOException("error while getting blocks "
-							+ l.getDNEX() + " errors found");
+			} else
+				sl = toShards(ar);
+			for (Shard sh : sl) {
+				ByteBuffer k = ByteBuffer.wrap(sh.hash);
+				if (!fetches.containsKey(k)) {
+					Shard f = new Shard();
+					f.hash = sh.hash;
+					f.hashloc = sh.hashloc;
+					fetches.put(k, f);
+					hashes.add(sh.hash);
+					unordered.add(f);
 				}
-				if (l.getDN() < sz) {
-					throw new IOException(
-							"thread timed out before read was complete ");
+			}
+			slices.add(sl);
+		}
+		Integer[] order = HCServiceProxy.getFetchOrder(hashes);
+		AbstractHashEngine eng = SparseDedupFile.hashPool.borrowObject();
+		try {
+			for (Integer i : order) {
+				Shard f = unordered.get(i);
+				f.ck = HCServiceProxy.fetchChunk(f.hash, f.hashloc);
+				if (!Arrays.equals(eng.getHash(f.ck), f.hash))
+					throw new IOException("restore read of chunk "
+							+ StringUtils.getHexString(f.hash)
+							+ " does not match its hash");
+			}
+		} finally {
+			SparseDedupFile.hashPool.returnObject(eng);
+		}
+		byte[][] chunks = new byte[ars.size()][];
+		for (int i = 0; i < chunks.length; i++) {
+			byte[] b = new byte[length];
+			for (Shard sh : slices.get(i)) {
+				byte[] ck = fetches.get(ByteBuffer.wrap(sh.hash)).ck;
+				int n = Math.min(Math.min(sh.nlen, length - sh.pos),
+						ck.length - sh.offset);
+				System.arraycopy(ck, sh.offset, b, sh.pos, n);
+			}
+			chunks[i] = b;
+		}
+		return chunks;
+	}
+
+	/**
+	 * Reads part of a stored chunk without a write buffer. Only the
+	 * sub-chunks that overlap the range are fetched and each slice is copied
+	 * once, into dst at its position.
+	 * 
+	 * @param ar
+	 *            the sub-chunks of the chunk from its file map record
+	 * @param start
+	 *            the start of the range in the chunk
+	 * @param len
+	 *            the length of the range
+	 * @param dst
+	 *            the buffer to read into. Its position is moved past the
+	 *            range. Parts of the range not covered by a sub-chunk are
+	 *            zero.
+	 */
+	static void readRange(List<HashLocPair> ar, int start, int len,
+			ByteBuffer dst) throws IOException, InterruptedException,
+			DataArchivedException {
+		int end = start + len;
+		ArrayList<Shard> cks = new ArrayList<Shard>();
+		for (Shard sh : toShards(ar)) {
+			if (sh.pos < end && sh.pos + sh.nlen > start) {
+				sh.apos = cks.size();
+				cks.add(sh);
+			}
+		}
+		readShards(cks);
+		int base = dst.position();
+		ByteBuffer d = dst.duplicate();
+		int zpos = start;
+		for (Shard sh : cks) {
+			int s = Math.max(start, sh.pos);
+			int e = Math.min(end, sh.pos + sh.nlen);
+			if (s > zpos) {
+				d.position(base + zpos - start);
+				d.put(new byte[s - zpos]);
+			}
+			d.position(base + s - start);
+			d.put(sh.ck, sh.offset + (s - sh.pos), e - s);
+			zpos = Math.max(zpos, e);
+		}
+		if (zpos < end) {
+			d.position(base + zpos - start);
+			d.put(new byte[end - zpos]);
+		}
+		dst.position(base + len);
+	}
+
+	/**
+	 * Fills the buffer ahead of a sequential read. Does nothing if the buffer
+	 * is closed or already holds the data of the chunk.
+	 */
+	void prefetch() throws IOException, DataArchivedException {
+		this.lock.lock();
+		try {
+			if (this.closed || this.flushing)
+				return;
+			if (this.buf == null || this.covered != null)
+				this.initBuffer();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Fills the buffer with the existing data of the chunk. If the buffer was
+	 * opened by a write only the ranges that have not been written are read
+	 * and sub-chunks that were completely overwritten are not fetched.
+	 */
+	private void initBuffer() throws IOException, InterruptedException, DataArchivedException {
+		if (this.buf == null || this.covered != null) {
+			if (this.buf == null)
+				this.hlAdded = false;
+			if (HashFunctionPool.max_hash_cluster > 1) {
+				if (this.buf == null)
+					this.leaseBuffer();
+				final ArrayList<Shard> cks = new ArrayList<Shard>();
+				for (Shard sh : toShards(ar)) {
+					if (this.isCovered(sh.pos, sh.nlen))
+						continue;
+					sh.apos = cks.size();
+					cks.add(sh);
 				}
-				buf.position(0);
+				readShards(cks);
 				for (Shard sh : cks) {
-					if (sh.pos == -1) {
-						try {
-							buf.put(sh.ck);
-						} catch (Exception e) {
-							// SDFSLogger.getLog().info("pos = " + this.position
-							// + "ck sz=" + sh.ck.length + " hcb sz=" +
-							// hcb.position() + " cks sz=" +cks.size() + " len="
-							// + (hcb.position() +sh.ck.length));
-							throw new IOException(e);
-						}
-					} else {
-						try {
-							
-							buf.position(sh.pos);
-							buf.put(sh.ck, sh.offset, sh.nlen);
-						} catch (Exception e) {
-							SDFSLogger.getLog().error(
-									"pos = " + this.position + " ck nlen="
-											+ sh.nlen + " ck offset="
-											+ sh.offset + " ck len="
-											+ sh.ck.length + " hcb pos="
-											+ buf.position() + " ck slen="
-											+ sh.len + " len="
-											+ (buf.capacity()));
-							throw new IOException(e);
-						}
+					try {
+						this.putUncovered(sh.ck, sh.offset, sh.pos, sh.nlen);
+					} catch (Exception e) {
+						SDFSLogger.getLog().error(
+								"pos = " + this.position + " ck nlen="
+										+ sh.nlen + " ck offset="
+										+ sh.offset + " ck len="
+										+ sh.ck.length + " hcb pos="
+										+ sh.pos + " ck slen="
+										+ sh.len + " len="
+										+ (buf.capacity()));
+						throw new IOException(e);
 					}
 				}
 				
-			} else {
+			} else if (this.buf == null) {
 				this.buf = ByteBuffer.wrap(HCServiceProxy.fetchChunk(
 						this.ar.get(0).hash, this.ar.get(0).hashloc));
 
+			} else if (this.ar.size() > 0) {
+				byte[] b = HCServiceProxy.fetchChunk(this.ar.get(0).hash,
+						this.ar.get(0).hashloc);
+				this.putUncovered(b, 0, 0, Math.min(b.length, buf.capacity()));
+			}
+			this.covered = null;
+		}
+	}
+
+	/**
+	 * Starts a buffer for a write to a chunk that has not been read. The
+	 * existing data is read by initBuffer when it is needed, or never if the
+	 * whole chunk is written first.
+	 */
+	private void startPartialBuffer() throws IOException {
+		this.leaseBuffer();
+		this.hlAdded = false;
+		this.covered = new BitSet(this.df.getChunkLength());
+	}
+
+	private void setCovered(int pos, int len) {
+		if (this.covered != null) {
+			this.covered.set(pos, pos + len);
+			if (this.covered.nextClearBit(0) >= buf.capacity())
+				this.covered = null;
+		}
+	}
+
+	private boolean isCovered(int pos, int len) {
+		return this.covered != null && this.covered.nextClearBit(pos) >= pos + len;
+	}
+
+	/**
+	 * Copies the parts of a range that have not been written to the buffer.
+	 */
+	private void putUncovered(byte[] src, int srcOff, int pos, int len) {
+		int end = pos + len;
+		int i = pos;
+		while (i < end) {
+			int s = this.covered == null ? i : this.covered.nextClearBit(i);
+			if (s >= end)
+				break;
+			int e = end;
+			if (this.covered != null) {
+				int ns = this.covered.nextSetBit(s);
+				if (ns >= 0 && ns < end)
+					e = ns;
 			}
+			buf.position(s);
+			buf.put(src, srcOff + (s - pos), e - s);
+			i = e;
 		}
 	}
 
@@ -337,13 +611,34 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 			if (buf != null) {
 				return this.buf.capacity();
 			} else {
-				return Main.CHUNK_LENGTH;
+				return this.df.getChunkLength();
 			}
 		} finally {
 			this.lock.unlock();
 		}
 	}
 
+	/**
+	 * Replaces the buffer with a zeroed one from the write buffer pool.
+	 */
+	private void leaseBuffer() throws IOException {
+		this.releaseBuffer();
+		this.buf = BufferPool.getWriteBufferPool().lease(this.df.getChunkLength(),
+				this);
+		this.pooled = true;
+	}
+
+	/**
+	 * Drops the buffer and returns it to the pool if it was leased from it.
+	 */
+	private void releaseBuffer() {
+		if (this.buf != null && this.pooled)
+			BufferPool.getWriteBufferPool().release(this.buf);
+		this.buf = null;
+		this.pooled = false;
+		this.covered = null;
+	}
+
 	public void setAR(List<HashLocPair> al) {
 		this.ar = al;
 	}
@@ -359,16 +654,13 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 	}
 
 	private void writeBlock(byte[] b, int pos) throws IOException, DataArchivedException {
-		try {
-			this.initBuffer();
-			buf.position(pos);
-			buf.put(b);
-			this.hlAdded = false;
-			this.dirty = true;
-		} catch (InterruptedException e) {
-			throw new IOException(e);
-		}
-		
+		if (this.buf == null)
+			this.startPartialBuffer();
+		buf.position(pos);
+		buf.put(b);
+		this.setCovered(pos, b.length);
+		this.hlAdded = false;
+		this.dirty = true;
 	}
 
 	public HashLocPair getPair(int pos) {
@@ -409,20 +701,30 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 				throw new BufferClosedException("Buffer Closed while writing");
 			if (this.flushing)
 				throw new BufferClosedException("Buffer Flushing");
+			this.lastWrite = System.currentTimeMillis();
+			this.df.markDirty(this);
+			this.logIntent(b, pos);
 
 			/*
 			 * if(pos != 0) SDFSLogger.getLog().info("start at " + pos);
 			 * if(b.length != this.capacity())
 			 * SDFSLogger.getLog().info("!capacity " + b.length);
 			 */
-			if (pos == 0 && b.length == Main.CHUNK_LENGTH) {
+			if (pos == 0 && b.length == this.df.getChunkLength()) {
+				this.releaseBuffer();
 				this.buf = ByteBuffer.wrap(b);
 				this.setDirty(true);
 			} else {
 
-				if (this.ar.size() >= LongByteArrayMap.MAX_ELEMENTS_PER_AR) {
+				if (this.ar.size() >= this.df.getMaxFingers()) {
 					
 					this.writeBlock(b, pos);
+					try {
+						// the old fingers are dropped so read the rest now
+						this.initBuffer();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
 					this.ar = new ArrayList<HashLocPair>();
 				} else if (this.buf == null && this.reconstructed
 						&& HashFunctionPool.max_hash_cluster > 1) {
@@ -449,7 +751,8 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 									b.length - dups, true);
 							df.mf.getIOMonitor().addDulicateData(dups, true);
 							this.prevDoop += dups;
-							SparseDataChunk.insertHashLocPair(ar, p);
+							SparseDataChunk.insertHashLocPair(ar, p,
+									this.df.getChunkLength());
 							this.hlAdded = true;
 
 							/*
@@ -502,15 +805,18 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 			throw new BufferClosedException("Buffer Flushing");
 		this.lock.lock();
 		try {
+			this.df.markDirty(this);
+			// copied extents are not in the intent log
+			this.fence(p.pos, p.nlen);
 			if (!this.isDirty() && this.buf != null) {
-				this.buf = null;
+				this.releaseBuffer();
 			}
 			if (this.buf != null
-					|| this.ar.size() >= LongByteArrayMap.MAX_ELEMENTS_PER_AR) {
-				if (this.ar.size() >= LongByteArrayMap.MAX_ELEMENTS_PER_AR)
+					|| this.ar.size() >= this.df.getMaxFingers()) {
+				if (this.ar.size() >= this.df.getMaxFingers())
 					SDFSLogger.getLog().info(
 							"copy extent Chuck Array Size greater than "
-									+ LongByteArrayMap.MAX_ELEMENTS_PER_AR
+									+ this.df.getMaxFingers()
 									+ " at " + (this.getFilePosition() + p.pos)
 									+ " for file " + this.df.mf.getPath());
 				byte[] b = HCServiceProxy.fetchChunk(p.hash, p.hashloc);
@@ -523,7 +829,8 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 				try {
 					this.reconstructed = true;
 					this.hlAdded = true;
-					SparseDataChunk.insertHashLocPair(ar, p);
+					SparseDataChunk.insertHashLocPair(ar, p,
+							this.df.getChunkLength());
 				} catch (Throwable e) {
 					df.errOccured = true;
 					throw new IOException(e);
@@ -544,87 +851,69 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 
 				@Override
 				public void commandException(Finger result, Throwable e) {
-					this.incrementAndGetDNEX();
 					SDFSLogger.getLog().error("Error while getting hash", e);
-					this.incrementandGetDN();
-					
-					synchronized (this) {
-						this.notifyAll();
-					}
+					this.incrementAndGetDNEX();
 				}
 
 				@Override
 				public void commandResponse(Finger result) {
-					int _dn = this.incrementandGetDN();
-					if (_dn >= this.getMaxSz()) {
-						synchronized (this) {
-							this.notifyAll();
-						}
-					}
+					this.incrementandGetDN();
 				}
+
 				@Override
 				public void commandArchiveException(DataArchivedException e) {
-					this.incrementAndGetDNEX();
-					this.dar = e;
 					SDFSLogger.getLog()
 							.error("Data has been archived", e);
-					this.incrementandGetDN();
-					
-					synchronized (this) {
-						this.notifyAll();
-					}
-					
+					this.dar = e;
+					this.incrementAndGetDNEX();
 				}
-				
 
 			};
 			l.setMaxSize(fs.size());
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>(fs.size());
 			for (Finger f : fs) {
 				f.l = l;
 				f.dedup = df.mf.isDedup();
-				SparseDedupFile.executor.execute(f);
+				futures.add(IOTaskPool.submit(f, SparseDedupFile.executor));
 			}
 			int wl = 0;
 			int tm = 1000;
 
 			int al = 0;
-			while (l.getDN() < fs.size() && l.getDNEX() == 0) {
-				if (al == 60) {
-					int nt = wl / 1000;
-					SDFSLogger.getLog().warn(
-							"Slow io, waited [" + nt
-									+ "] seconds for all writes to complete.");
-					al = 0;
-				}
-				if (Main.writeTimeoutSeconds > 0
-						&& wl > (Main.writeTimeoutSeconds * tm)) {
-					int nt = (tm * wl) / 1000;
-					df.toOccured = true;
-					throw new IOException("Write Timed Out after [" + nt
-							+ "] seconds. Expected [" + fs.size()
-							+ "] block writes but only [" + l.getDN()
-							+ "] were completed");
-				}
-				if(l.dar != null)
-					throw l.dar;
-				if(l.getDNEX() > 0) {
-					throw new IOException("Unable to read shard");
-				}
-				synchronized (l) {
-					l.wait(tm);
+			try {
+				while (!l.await(tm)) {
+					wl += tm;
+					al++;
+					if (al == 60) {
+						int nt = wl / 1000;
+						SDFSLogger.getLog().warn(
+								"Slow io, waited [" + nt
+										+ "] seconds for all writes to complete.");
+						al = 0;
+					}
+					if (Main.writeTimeoutSeconds > 0
+							&& wl > (Main.writeTimeoutSeconds * tm)) {
+						int nt = wl / 1000;
+						df.toOccured = true;
+						throw new IOException("Write Timed Out after [" + nt
+								+ "] seconds. Expected [" + fs.size()
+								+ "] block writes but only [" + l.getDN()
+								+ "] were completed");
+					}
 				}
-				al++;
-				wl += tm;
+			} finally {
+				if (l.getDN() < fs.size())
+					cancel(futures);
 			}
 			if(l.dar != null)
 				throw l.dar;
+			if (l.getDNEX() > 0)
+				throw new IOException("Write Failed because unable to read shard");
 			if (l.getDN() < fs.size()) {
 				df.toOccured = true;
 				throw new IOException("Write Timed Out expected [" + fs.size()
 						+ "] but got [" + l.getDN() + "]");
 			}
-			if (l.getDNEX() > 0)
-				throw new IOException("Write Failed because unable to read shard");
 			for (Finger f : fs) {
 				HashLocPair p = new HashLocPair();
 				try {
@@ -643,7 +932,8 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 							true);
 					df.mf.getIOMonitor().addDulicateData(dups, true);
 					this.prevDoop += dups;
-					SparseDataChunk.insertHashLocPair(ar, p);
+					SparseDataChunk.insertHashLocPair(ar, p,
+							this.df.getChunkLength());
 				} catch (Throwable e) {
 					SDFSLogger.getLog()
 							.warn("unable to write object finger", e);
@@ -676,6 +966,14 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 
 			this.destroy();
 			this.setDirty(true);
+			this.df.markDirty(this);
+			try {
+				this.fence(0, this.df.getChunkLength());
+			} catch (IOException e) {
+				SDFSLogger.getLog().error(
+						"unable to fence truncate at " + this.position
+								+ " in the write intent log", e);
+			}
 		} finally {
 			this.lock.unlock();
 		}
@@ -730,6 +1028,7 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 			this.lock.lock();
 			if (this.flushing) {
 				this.df.removeBufferFromFlush(this);
+				this.flushDone();
 			}
 			this.closed = false;
 			this.flushing = false;
@@ -742,36 +1041,252 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 	}
 
 	public void flush() throws BufferClosedException {
+		boolean queue;
 		this.lock.lock();
 		try {
+			queue = this.startFlush();
+		} finally {
+			this.lock.unlock();
+		}
+		// queued after the lock is released since the pipeline blocks when
+		// it is full and a commit thread may be waiting for the lock
+		if (queue)
+			SparseDedupFile.pool.execute(this);
+	}
 
-			if (this.flushing) {
-				if (SDFSLogger.isDebug())
-					SDFSLogger.getLog().debug(
-							"cannot flush buffer at pos "
-									+ this.getFilePosition()
-									+ " already flushing");
-				throw new BufferClosedException("Buffer Closed");
+	/**
+	 * Marks the buffer as flushing. Must be called with the lock held.
+	 * 
+	 * @return true if the buffer must be queued for hashing by the caller
+	 *         once it has released the lock
+	 */
+	private boolean startFlush() throws BufferClosedException {
+		if (this.flushing) {
+			if (SDFSLogger.isDebug())
+				SDFSLogger.getLog().debug(
+						"cannot flush buffer at pos "
+								+ this.getFilePosition()
+								+ " already flushing");
+			throw new BufferClosedException("Buffer Closed");
 
+		}
+		if (this.closed) {
+			if (SDFSLogger.isDebug())
+				SDFSLogger.getLog().debug(
+						"cannot flush buffer at pos "
+								+ this.getFilePosition() + " closed");
+			throw new BufferClosedException("Buffer Closed");
+		}
+		this.flushing = true;
+		this.flushGeneration++;
+		if (this.dirty && !this.hlAdded && !this.ingest
+				&& this.df.isPostProcess() && this.stage()) {
+			// deduped later by the post process deduper
+		} else if (this.isDirty() || this.isHlAdded()) {
+			this.flushLatch = new CountDownLatch(1);
+			this.df.putBufferIntoFlush(this);
+			return true;
+		} else {
+			this.df.clearDirty(this);
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the buffer to the staging store of the file instead of queueing
+	 * it. Called from flush with the lock held.
+	 * 
+	 * @return false if the buffer was not staged and has to be queued
+	 */
+	private boolean stage() {
+		try {
+			if (this.covered != null)
+				this.initBuffer();
+			// zeros are stored as a hole without hashing
+			if (ByteUtils.isZero(this.buf.array(), 0, this.buf.capacity()))
+				return false;
+			this.syncFence();
+			this.df.stage(this.position, this.buf.array());
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn(
+					"unable to stage buffer at " + this.position
+							+ " deduping it inline", e);
+			return false;
+		}
+		this.closed = true;
+		this.flushing = false;
+		this.dirty = false;
+		this.releaseBuffer();
+		this.df.clearDirty(this);
+		this.releaseIntents();
+		return true;
+	}
+
+	/**
+	 * 
+	 * @return true if the buffer was loaded from the staging store to be
+	 *         deduped
+	 */
+	public boolean isIngest() {
+		return this.ingest;
+	}
+
+	/**
+	 * Marks a buffer loaded from the staging store so it is deduped when it is
+	 * flushed.
+	 * 
+	 * @return false if the buffer is closed or flushing
+	 */
+	boolean ingest() {
+		this.lock.lock();
+		try {
+			if (this.closed || this.flushing || this.buf == null)
+				return false;
+			this.ingest = true;
+			this.dirty = true;
+			this.df.markDirty(this);
+			return true;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a buffer held by a streaming channel if the write buffer cache
+	 * has not taken it over.
+	 */
+	void flushStream() {
+		boolean queue = false;
+		this.lock.lock();
+		try {
+			// checked under the lock since the cache reopens the buffer
+			// after taking it, which cancels this flush
+			if (this.df.isStreamOwner(this))
+				queue = this.startFlush();
+		} catch (BufferClosedException e) {
+			if (SDFSLogger.isDebug())
+				SDFSLogger.getLog().debug(
+						"stream buffer at " + this.position + " already closed");
+		} finally {
+			this.df.removeStreamBuffer(this);
+			this.lock.unlock();
+		}
+		if (queue)
+			SparseDedupFile.pool.execute(this);
+	}
+
+	/**
+	 * Drops a buffer that was never written to.
+	 */
+	void discard() {
+		this.lock.lock();
+		try {
+			this.closed = true;
+			this.releaseBuffer();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	long getLastWrite() {
+		return this.lastWrite;
+	}
+
+	/**
+	 * Fills the buffer with a chunk read from the staging store, which is
+	 * newer than what is in the file map.
+	 */
+	void loadStaged(byte[] b) {
+		this.lock.lock();
+		try {
+			this.releaseBuffer();
+			this.buf = ByteBuffer.wrap(b);
+			this.hlAdded = false;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private void logIntent(byte[] b, int pos) throws IOException {
+		WriteIntentLog il = WriteIntentLog.getLog();
+		if (il == null)
+			return;
+		WriteIntentLog.Segment s = il.append(this.df, this.position + pos, b);
+		if (s == null) {
+			this.fence(pos, b.length);
+			return;
+		}
+		if (this.intents == null)
+			this.intents = new HashSet<WriteIntentLog.Segment>();
+		// the segment counts each buffer once
+		if (!this.intents.add(s))
+			s.release();
+	}
+
+	/**
+	 * Records a write that is not in the intent log so replay does not roll it
+	 * back with older logged writes. Called with the lock held.
+	 */
+	private void fence(int pos, long len) throws IOException {
+		this.df.addUnloggedWrite();
+		WriteIntentLog il = WriteIntentLog.getLog();
+		if (il == null)
+			return;
+		il.invalidate(this.df, this.position + pos, len);
+		this.fenced = true;
+	}
+
+	/**
+	 * Syncs the intent log if the buffer holds a fenced unlogged write. Must
+	 * be called before the buffer is stored.
+	 */
+	void syncFence() throws IOException {
+		if (this.fenced) {
+			WriteIntentLog il = WriteIntentLog.getLog();
+			this.fenced = false;
+			if (il != null) {
+				try {
+					il.sync();
+				} catch (IOException e) {
+					this.fenced = true;
+					throw e;
+				}
 			}
-			if (this.closed) {
-				if (SDFSLogger.isDebug())
-					SDFSLogger.getLog().debug(
-							"cannot flush buffer at pos "
-									+ this.getFilePosition() + " closed");
-				throw new BufferClosedException("Buffer Closed");
-			}
-			this.flushing = true;
-			if (this.isDirty() || this.isHlAdded()) {
-				this.df.putBufferIntoFlush(this);
-				if (Main.chunkStoreLocal)
-					lexecutor.execute(this);
-				else
-					SparseDedupFile.pool.execute(this);
-			}
+		}
+	}
+
+	private void releaseIntents() {
+		if (this.intents != null) {
+			for (WriteIntentLog.Segment s : this.intents)
+				s.release();
+			this.intents = null;
+		}
+	}
+
+	private void flushDone() {
+		if (this.flushLatch != null) {
+			this.flushLatch.countDown();
+			this.flushLatch = null;
+		}
+	}
+
+	/**
+	 * Waits for the last flush of this buffer to be written or cancelled by a
+	 * write.
+	 * 
+	 * @param ms
+	 *            the maximum time to wait
+	 * @return false if the flush did not finish in time
+	 */
+	public boolean awaitFlush(long ms) throws InterruptedException {
+		CountDownLatch l;
+		this.lock.lock();
+		try {
+			l = this.flushLatch;
 		} finally {
 			this.lock.unlock();
 		}
+		return l == null || l.await(ms, TimeUnit.MILLISECONDS);
 	}
 
 	public boolean isClosed() {
@@ -807,11 +1322,16 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 				this.flushing = false;
 				this.dirty = false;
 				this.hlAdded = false;
-				this.buf = null;
+				this.releaseBuffer();
+				this.df.clearDirty(this);
+				this.df.unstage(this.position);
+				this.releaseIntents();
 			} else {
 				this.closed = true;
 				this.flushing = false;
-				this.buf = null;
+				this.releaseBuffer();
+				this.df.clearDirty(this);
+				this.releaseIntents();
 			}
 		} catch (Exception e) {
 			throw new IOException(e);
@@ -819,6 +1339,7 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 			try {
 			df.removeBufferFromFlush(this);
 			}catch(Exception e) {}
+			this.flushDone();
 			this.lock.unlock();
 
 		}
@@ -829,6 +1350,35 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		this.batchprocessed = true;
 	}
 
+	/**
+	 * Locks the buffer for a batch close if it has not been reopened or
+	 * flushed again since the given flush. endClose must be called from the
+	 * same thread if this returns true.
+	 *
+	 * @param generation
+	 *            the value of getFlushGeneration when the buffer was hashed
+	 * @return true if the buffer is locked and can be closed
+	 */
+	public boolean startClose(int generation) {
+		// skipped without waiting if the buffer was flushed again. Otherwise
+		// the lock is only held for short buffer operations since flush
+		// queues the buffer after releasing it.
+		if (this.flushGeneration != generation)
+			return false;
+		this.lock.lock();
+		if (!this.flushing || this.closed
+				|| this.flushGeneration != generation) {
+			this.lock.unlock();
+			return false;
+		}
+		this.batchprocessed = true;
+		return true;
+	}
+
+	public int getFlushGeneration() {
+		return this.flushGeneration;
+	}
+
 	public boolean isBatchProcessed() {
 		return this.batchprocessed;
 	}
@@ -849,18 +1399,49 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 				df.removeBufferFromFlush(this);
 				this.closed = true;
 				this.flushing = false;
+				this.releaseBuffer();
+				this.df.clearDirty(this);
+				this.df.unstage(this.position);
+				this.releaseIntents();
 			}
 
 		} catch (Exception e) {
 			throw new IOException(e);
 		} finally {
 			this.batchprocessed = false;
+			this.flushDone();
 			this.lock.unlock();
 
 		}
 	}
 
-	public byte[] getFlushedBuffer() throws BufferClosedException {
+	/**
+	 * 
+	 * @return true if the buffer holds only zeros and can be stored as a hole
+	 * @throws IOException
+	 */
+	public boolean isZero() throws IOException {
+		this.lock.lock();
+		try {
+			if (this.buf == null)
+				return false;
+			if (this.covered != null) {
+				try {
+					this.initBuffer();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} catch (DataArchivedException e) {
+					throw new IOException(e);
+				}
+			}
+			return ByteUtils.isZero(this.buf.array(), 0, this.buf.capacity());
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	public byte[] getFlushedBuffer() throws BufferClosedException,
+			IOException {
 		this.lock.lock();
 		try {
 			if (this.closed) {
@@ -878,6 +1459,13 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 			if (this.buf == null)
 				SDFSLogger.getLog().info(
 						this.getFilePosition() + " buffer is null");
+			try {
+				this.initBuffer();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (DataArchivedException e) {
+				throw new IOException(e);
+			}
 			byte[] b = new byte[this.buf.capacity()];
 			System.arraycopy(this.buf.array(), 0, b, 0, b.length);
 			return b;
@@ -1082,6 +1670,16 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		}
 	}
 
+	/**
+	 * Cancels shard reads or chunk writes that have not started once the
+	 * caller has stopped waiting for them.
+	 */
+	static void cancel(List<Future<?>> futures) {
+		for (Future<?> f : futures) {
+			f.cancel(false);
+		}
+	}
+
 	public static class Shard implements Runnable {
 		public byte[] hash;
 		public byte[] hashloc;
@@ -0,0 +1,702 @@
+package org.opendedup.sdfs.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.opendedup.collections.DataArchivedException;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.MetaFileStore;
+import org.opendedup.sdfs.servers.HCServiceProxy;
+
+/**
+ *
+ * @author Sam Silverberg Sequential log of writes that have not been stored
+ *         yet. Every write is appended to the log before it is applied to its
+ *         write buffer, so an fsync only has to sync the log instead of
+ *         hashing and storing every dirty buffer of the file. The log is
+ *         enabled by setting intent-log-path, which should be on fast media.
+ *
+ *         The log is split into segments. A segment counts the write buffers
+ *         that hold writes from it and is removed once they have all been
+ *         stored and the file maps and chunk store have been synced. Segments
+ *         are always removed oldest first. When the log reaches
+ *         intent-log-size writes are no longer logged and an fsync of a file
+ *         that has unlogged writes flushes the file as it would without the
+ *         log.
+ *
+ *         Every write that is not logged, because the log is full or because
+ *         it copies an extent or truncates a buffer, is preceded by an
+ *         invalidate record for its range. Replay skips the parts of older
+ *         writes that an invalidate record covers so it never rolls back a
+ *         newer unlogged write that was stored. The log is synced before a
+ *         buffer holding an unlogged write is stored.
+ *
+ *         Truncates and deletes are logged as well so that replay never
+ *         writes data back past a truncate or into a file that has been
+ *         deleted. A truncate record is synced before the file map is
+ *         changed.
+ *
+ *         On mount the segments left by an unclean shutdown are replayed in
+ *         order through the dedup files they were written to. Records are
+ *         keyed by the guid of the dedup file. The path is only a hint and a
+ *         file that has been renamed since is found by walking the volume,
+ *         so a file recreated at the same path never gets the writes of the
+ *         old one. Record layout is as follows: [magic (4 bytes)|type (1
+ *         byte)|guid length (2 bytes)|guid|path length (2 bytes)|path|file
+ *         position or new length (8 bytes)|length (4 bytes)|crc32 (4
+ *         bytes)|data]. Replay stops at the first record of a segment that is
+ *         torn or does not match its crc.
+ *
+ */
+public class WriteIntentLog {
+	private static final int MAGIC = 0x53444932;
+	private static final byte WRITE = 0;
+	private static final byte TRUNCATE = 1;
+	private static final byte DELETE = 2;
+	private static final byte INVALIDATE = 3;
+	private static final String PREFIX = "intent-";
+	private static final String SUFFIX = ".log";
+	private static final long TRIM_INTERVAL = 1000;
+	private static WriteIntentLog log = null;
+	private final File dir;
+	private final long maxSize;
+	private final long segmentSize;
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private Segment current = null;
+	private long nextId;
+	private long size = 0;
+	private long appended = 0;
+	private long synced = 0;
+	private final Object syncLock = new Object();
+	private final Thread trimmer;
+	private volatile boolean closed = false;
+
+	static class Segment {
+		final long id;
+		final File file;
+		final FileChannel ch;
+		long size = 0;
+		final AtomicInteger pending = new AtomicInteger(0);
+		final Set<SparseDedupFile> files = Collections
+				.newSetFromMap(new IdentityHashMap<SparseDedupFile, Boolean>());
+
+		Segment(File dir, long id) throws IOException {
+			this.id = id;
+			this.file = new File(dir, PREFIX + id + SUFFIX);
+			this.ch = new RandomAccessFile(file, "rw").getChannel();
+		}
+
+		/**
+		 * Called by a write buffer once the writes it holds from this segment
+		 * have been stored.
+		 */
+		void release() {
+			this.pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Replays the log left by the last mount and opens a new one. Does
+	 * nothing if intent-log-path is not set. Must be called after the chunk
+	 * store is up and before the volume is mounted.
+	 *
+	 * @throws IOException
+	 */
+	public static synchronized void init() throws IOException {
+		if (Main.intentLogPath == null || log != null)
+			return;
+		File dir = new File(Main.intentLogPath);
+		if (!dir.exists())
+			dir.mkdirs();
+		File[] fls = listSegments(dir);
+		long nextId = 0;
+		if (fls.length > 0) {
+			replay(fls);
+			for (File f : fls)
+				f.delete();
+			nextId = getId(fls[fls.length - 1]) + 1;
+		}
+		log = new WriteIntentLog(dir, Main.intentLogSize, nextId);
+	}
+
+	/**
+	 *
+	 * @return the log or null if it is not enabled
+	 */
+	public static WriteIntentLog getLog() {
+		return log;
+	}
+
+	/**
+	 * Removes the segments whose writes have been stored and closes the log.
+	 * Segments with writes that were not stored are kept and replayed on the
+	 * next mount.
+	 */
+	public static synchronized void close() {
+		if (log != null) {
+			log.shutdown();
+			log = null;
+		}
+	}
+
+	private WriteIntentLog(File dir, long maxSize, long nextId)
+			throws IOException {
+		this.dir = dir;
+		this.maxSize = maxSize;
+		this.segmentSize = Math.max(1024 * 1024, maxSize / 16);
+		this.nextId = nextId;
+		this.current = new Segment(dir, this.nextId++);
+		this.segments.add(this.current);
+		this.trimmer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					try {
+						Thread.sleep(TRIM_INTERVAL);
+					} catch (InterruptedException e) {
+						break;
+					}
+					try {
+						trim();
+					} catch (Exception e) {
+						SDFSLogger.getLog().warn("unable to trim intent log",
+								e);
+					}
+				}
+			}
+		}, "intent-log-trim");
+		this.trimmer.setDaemon(true);
+		this.trimmer.start();
+		SDFSLogger.getLog().info(
+				"write intent log opened at " + dir.getPath() + " max-size="
+						+ maxSize);
+	}
+
+	/**
+	 * Appends a write to the log. The returned segment counts the write as
+	 * pending until release is called on it.
+	 *
+	 * @param df
+	 *            the file written to
+	 * @param pos
+	 *            the position in the file
+	 * @param b
+	 *            the data written
+	 * @return the segment holding the write or null if the log is full
+	 * @throws IOException
+	 */
+	Segment append(SparseDedupFile df, long pos, byte[] b) throws IOException {
+		return this.append(WRITE, df, pos, b);
+	}
+
+	/**
+	 * Logs a truncate and syncs the log. Must be called before the file map
+	 * is truncated so logged writes past the new length are never replayed
+	 * after the truncate has been stored.
+	 *
+	 * @param df
+	 *            the file truncated
+	 * @param size
+	 *            the new length of the file
+	 * @throws IOException
+	 */
+	void truncate(SparseDedupFile df, long size) throws IOException {
+		if (this.append(TRUNCATE, df, size, new byte[0]) != null)
+			this.sync();
+	}
+
+	/**
+	 * Logs the delete of a file so its logged writes are skipped on replay.
+	 *
+	 * @param df
+	 *            the file deleted
+	 * @throws IOException
+	 */
+	void delete(SparseDedupFile df) throws IOException {
+		this.append(DELETE, df, 0, new byte[0]);
+	}
+
+	/**
+	 * Logs a range that is about to be written without logging the data so
+	 * older logged writes to it are not replayed. Callers must sync the log
+	 * before the write is stored.
+	 *
+	 * @param df
+	 *            the file written to
+	 * @param pos
+	 *            the position in the file
+	 * @param len
+	 *            the length of the range
+	 * @throws IOException
+	 */
+	void invalidate(SparseDedupFile df, long pos, long len)
+			throws IOException {
+		this.append(INVALIDATE, df, pos, ByteBuffer.allocate(8).putLong(len)
+				.array());
+	}
+
+	private Segment append(byte type, SparseDedupFile df, long pos, byte[] b)
+			throws IOException {
+		byte[] guid = df.getGUID().getBytes("UTF-8");
+		byte[] path = df.getMetaFile().getPath().getBytes("UTF-8");
+		int hl = 4 + 1 + 2 + guid.length + 2 + path.length + 8 + 4;
+		ByteBuffer rec = ByteBuffer.allocate(hl + 4 + b.length);
+		rec.putInt(MAGIC);
+		rec.put(type);
+		rec.putShort((short) guid.length);
+		rec.put(guid);
+		rec.putShort((short) path.length);
+		rec.put(path);
+		rec.putLong(pos);
+		rec.putInt(b.length);
+		CRC32 crc = new CRC32();
+		crc.update(rec.array(), 4, hl - 4);
+		crc.update(b);
+		rec.putInt((int) crc.getValue());
+		rec.put(b);
+		rec.flip();
+		synchronized (this) {
+			// truncates, deletes and invalidates are small and are always
+			// logged
+			if (this.closed
+					|| (type == WRITE && this.size + rec.capacity() > this.maxSize))
+				return null;
+			if (this.current.size + rec.capacity() > this.segmentSize
+					&& this.current.size > 0)
+				this.roll();
+			Segment s = this.current;
+			long fpos = s.size;
+			while (rec.hasRemaining())
+				fpos += s.ch.write(rec, fpos);
+			s.size = fpos;
+			this.size += rec.capacity();
+			this.appended++;
+			if (type == WRITE)
+				s.pending.incrementAndGet();
+			// a truncate is only durable once the file map is synced
+			if (type == WRITE || type == TRUNCATE)
+				s.files.add(df);
+			return s;
+		}
+	}
+
+	/**
+	 * Syncs every write appended so far. Concurrent callers share one sync.
+	 *
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		long target;
+		Segment s;
+		synchronized (this) {
+			target = this.appended;
+			s = this.current;
+		}
+		synchronized (this.syncLock) {
+			if (this.synced >= target)
+				return;
+			// segments before s were synced when they were rolled
+			s.ch.force(false);
+			this.synced = target;
+		}
+	}
+
+	private void roll() throws IOException {
+		this.current.ch.force(false);
+		this.current = new Segment(dir, this.nextId++);
+		this.segments.add(this.current);
+	}
+
+	/**
+	 * Removes segments, oldest first, whose writes have all been stored.
+	 */
+	private void trim() throws IOException {
+		for (;;) {
+			Segment s;
+			synchronized (this) {
+				s = this.segments.peekFirst();
+				if (s == null || s.pending.get() > 0 || s.size == 0)
+					return;
+				if (s == this.current)
+					this.roll();
+			}
+			// the map entries of the stored writes must be durable before the
+			// writes are dropped
+			SparseDedupFile[] dfs;
+			synchronized (this) {
+				dfs = s.files.toArray(new SparseDedupFile[s.files.size()]);
+			}
+			for (SparseDedupFile df : dfs) {
+				if (!df.isClosed()) {
+					df.syncStaging();
+					df.bdb.sync();
+					df.getMetaFile().sync();
+				}
+			}
+			HCServiceProxy.sync();
+			synchronized (this) {
+				this.segments.removeFirst();
+				this.size -= s.size;
+			}
+			s.ch.close();
+			s.file.delete();
+			if (SDFSLogger.isDebug())
+				SDFSLogger.getLog().debug(
+						"trimmed intent log segment " + s.file.getPath());
+		}
+	}
+
+	private void shutdown() {
+		this.closed = true;
+		this.trimmer.interrupt();
+		try {
+			this.trimmer.join(10000);
+			this.trim();
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("unable to trim intent log", e);
+		}
+		synchronized (this) {
+			for (Segment s : this.segments) {
+				try {
+					s.ch.force(false);
+					s.ch.close();
+				} catch (IOException e) {
+				}
+				if (s.size == 0)
+					s.file.delete();
+				else
+					SDFSLogger.getLog().warn(
+							"intent log segment " + s.file.getPath()
+									+ " still has " + s.pending.get()
+									+ " writes that were not stored");
+			}
+			this.segments.clear();
+		}
+	}
+
+	public synchronized long getSize() {
+		return this.size;
+	}
+
+	private static File[] listSegments(File dir) {
+		File[] fls = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if (fls == null)
+			return new File[0];
+		Arrays.sort(fls, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long d = getId(a) - getId(b);
+				return d < 0 ? -1 : (d > 0 ? 1 : 0);
+			}
+		});
+		return fls;
+	}
+
+	private static long getId(File f) {
+		String nm = f.getName();
+		return Long.parseLong(nm.substring(PREFIX.length(), nm.length()
+				- SUFFIX.length()));
+	}
+
+	static class Record {
+		byte type;
+		String guid;
+		String path;
+		long pos;
+		byte[] b;
+	}
+
+	/**
+	 * Reads the next record of a segment.
+	 *
+	 * @return the record or null at the end of the segment
+	 * @throws IOException
+	 *             if the record is torn or does not match its crc
+	 */
+	private static Record readRecord(DataInputStream in) throws IOException {
+		int magic;
+		try {
+			magic = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		try {
+			if (magic != MAGIC)
+				throw new IOException("bad record header");
+			Record r = new Record();
+			r.type = in.readByte();
+			byte[] guid = new byte[in.readShort() & 0xffff];
+			in.readFully(guid);
+			byte[] path = new byte[in.readShort() & 0xffff];
+			in.readFully(path);
+			r.pos = in.readLong();
+			r.b = new byte[in.readInt()];
+			int ck = in.readInt();
+			in.readFully(r.b);
+			ByteBuffer hb = ByteBuffer.allocate(1 + 2 + guid.length + 2
+					+ path.length + 8 + 4);
+			hb.put(r.type);
+			hb.putShort((short) guid.length);
+			hb.put(guid);
+			hb.putShort((short) path.length);
+			hb.put(path);
+			hb.putLong(r.pos);
+			hb.putInt(r.b.length);
+			CRC32 crc = new CRC32();
+			crc.update(hb.array());
+			crc.update(r.b);
+			if ((int) crc.getValue() != ck)
+				throw new IOException("crc does not match");
+			r.guid = new String(guid, "UTF-8");
+			r.path = new String(path, "UTF-8");
+			return r;
+		} catch (NegativeArraySizeException e) {
+			throw new IOException("bad record length");
+		}
+	}
+
+	/**
+	 * Finds the current path of each dedup file that has logged writes. The
+	 * path logged last is checked first and the volume is walked for the
+	 * files that were renamed since.
+	 *
+	 * @param paths
+	 *            the last logged path of each guid
+	 * @return the path of each guid whose file still exists
+	 * @throws IOException
+	 */
+	private static HashMap<String, String> findFiles(
+			HashMap<String, String> paths) throws IOException {
+		final HashMap<String, String> files = new HashMap<String, String>();
+		final HashSet<String> missing = new HashSet<String>();
+		for (String guid : paths.keySet()) {
+			String pth = paths.get(guid);
+			MetaDataDedupFile mf = MetaFileStore.getMF(pth);
+			if (mf.exists() && guid.equals(mf.getDfGuid()))
+				files.put(guid, pth);
+			else
+				missing.add(guid);
+		}
+		if (missing.isEmpty())
+			return files;
+		SDFSLogger.getLog().info(
+				"looking for " + missing.size()
+						+ " files with logged writes that were moved");
+		Files.walkFileTree(Paths.get(Main.volume.getPath()),
+				new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path p,
+							BasicFileAttributes attrs) {
+						if (!attrs.isRegularFile())
+							return FileVisitResult.CONTINUE;
+						MetaDataDedupFile mf = MetaDataDedupFile.getFile(p
+								.toString());
+						String guid = mf.getDfGuid();
+						if (guid != null && missing.remove(guid))
+							files.put(guid, mf.getPath());
+						return missing.isEmpty() ? FileVisitResult.TERMINATE
+								: FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path p,
+							IOException e) {
+						return FileVisitResult.CONTINUE;
+					}
+				});
+		for (String guid : missing)
+			SDFSLogger.getLog().warn(
+					"skipping logged writes to " + paths.get(guid)
+							+ " since it no longer exists");
+		return files;
+	}
+
+	/**
+	 * Replays the parts of a logged write that no later invalidate record
+	 * covers.
+	 *
+	 * @param fences
+	 *            the invalidate records of the file as [sequence|start|end]
+	 * @param seq
+	 *            the sequence number of the write
+	 * @return the number of bytes skipped
+	 */
+	private static long replayWrite(DedupFileChannel ch, Record r,
+			ArrayList<long[]> fences, long seq) throws IOException,
+			DataArchivedException {
+		long end = r.pos + r.b.length;
+		ArrayList<long[]> cov = new ArrayList<long[]>();
+		if (fences != null) {
+			for (long[] f : fences) {
+				if (f[0] > seq && f[1] < end && f[2] > r.pos)
+					cov.add(f);
+			}
+		}
+		if (cov.isEmpty()) {
+			ch.writeFile(ByteBuffer.wrap(r.b), r.b.length, 0, r.pos, false);
+			return 0;
+		}
+		Collections.sort(cov, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return a[1] < b[1] ? -1 : (a[1] > b[1] ? 1 : 0);
+			}
+		});
+		long skipped = 0;
+		long p = r.pos;
+		for (long[] f : cov) {
+			if (f[1] > p) {
+				int off = (int) (p - r.pos);
+				int len = (int) (f[1] - p);
+				ch.writeFile(ByteBuffer.wrap(r.b), len, off, p, false);
+			}
+			if (f[2] > p) {
+				skipped += Math.min(f[2], end) - Math.max(f[1], p);
+				p = f[2];
+			}
+		}
+		if (p < end) {
+			int off = (int) (p - r.pos);
+			ch.writeFile(ByteBuffer.wrap(r.b), (int) (end - p), off, p, false);
+		}
+		return skipped;
+	}
+
+	private static void replay(File[] fls) throws IOException {
+		SDFSLogger.getLog().info(
+				"replaying " + fls.length + " write intent log segments");
+		// the first pass finds the files that still exist and the ranges
+		// that were written without being logged
+		HashMap<String, String> paths = new HashMap<String, String>();
+		HashSet<String> deleted = new HashSet<String>();
+		HashMap<String, ArrayList<long[]>> fences = new HashMap<String, ArrayList<long[]>>();
+		long seq = 0;
+		for (File f : fls) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(f)));
+			try {
+				Record r;
+				while ((r = readRecord(in)) != null) {
+					seq++;
+					paths.put(r.guid, r.path);
+					if (r.type == DELETE)
+						deleted.add(r.guid);
+					else if (r.type == INVALIDATE) {
+						ArrayList<long[]> fs = fences.get(r.guid);
+						if (fs == null) {
+							fs = new ArrayList<long[]>();
+							fences.put(r.guid, fs);
+						}
+						long len = ByteBuffer.wrap(r.b).getLong();
+						fs.add(new long[] { seq, r.pos, r.pos + len });
+					}
+				}
+			} catch (IOException e) {
+				// replay stops here too
+			} finally {
+				in.close();
+			}
+		}
+		for (String guid : deleted)
+			paths.remove(guid);
+		HashMap<String, String> files = findFiles(paths);
+		HashMap<String, DedupFileChannel> chs = new HashMap<String, DedupFileChannel>();
+		long records = 0;
+		long skipped = 0;
+		seq = 0;
+		try {
+			for (File f : fls) {
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(new FileInputStream(f)));
+				try {
+					for (;;) {
+						Record r;
+						try {
+							r = readRecord(in);
+						} catch (IOException e) {
+							// the tail of the log was not synced
+							SDFSLogger.getLog().warn(
+									"stopped replaying " + f.getPath()
+											+ " after " + records
+											+ " records : " + e.getMessage());
+							break;
+						}
+						if (r == null)
+							break;
+						seq++;
+						String pth = files.get(r.guid);
+						if (pth == null || r.type == DELETE
+								|| r.type == INVALIDATE)
+							continue;
+						DedupFileChannel ch = chs.get(r.guid);
+						if (ch == null) {
+							MetaDataDedupFile mf = MetaFileStore.getMF(pth);
+							ch = mf.getDedupFile().getChannel(-1);
+							chs.put(r.guid, ch);
+						}
+						if (r.type == TRUNCATE) {
+							if (r.pos < ch.getDedupFile().getMetaFile()
+									.length())
+								ch.truncateFile(r.pos);
+						} else {
+							skipped += replayWrite(ch, r, fences.get(r.guid),
+									seq);
+						}
+						records++;
+					}
+				} finally {
+					in.close();
+				}
+			}
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			for (DedupFileChannel ch : chs.values()) {
+				try {
+					ch.force(true);
+				} catch (Exception e) {
+					SDFSLogger.getLog().error(
+							"unable to sync " + ch.getPath(), e);
+				}
+				ch.getDedupFile().unRegisterChannel(ch, -1);
+			}
+		}
+		HCServiceProxy.sync();
+		SDFSLogger.getLog().info(
+				"replayed " + records + " records to " + chs.size()
+						+ " files, skipped " + skipped
+						+ " bytes overwritten by unlogged writes");
+	}
+
+}
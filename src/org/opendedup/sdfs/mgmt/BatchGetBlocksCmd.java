@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.logging.SDFSLogger;
@@ -42,14 +43,16 @@ public class BatchGetBlocksCmd {
 			}
 			SDFSLogger.getLog().debug("will fetch " + hashes.size() + "blocks");
 
-			ArrayList<HashChunk> chunks = new ArrayList<HashChunk>(
-					hashes.size());
-			for (int i = 0; i < hashes.size(); i++) {
-				hash = hashes.get(i);
-				HashChunk dChunk = HCServiceProxy.fetchHashChunk(hash);
-				chunks.add(i, dChunk);
+			// read in chunk store order and returned in the requested order
+			HashChunk[] fetched = new HashChunk[hashes.size()];
+			Integer[] order = HCServiceProxy.getFetchOrder(hashes);
+			for (int i = 0; i < order.length; i++) {
+				hash = hashes.get(order[i]);
+				fetched[order[i]] = HCServiceProxy.fetchHashChunk(hash);
 				SDFSLogger.getLog().debug("fetched " + i + " blocks");
 			}
+			ArrayList<HashChunk> chunks = new ArrayList<HashChunk>(
+					Arrays.asList(fetched));
 			ByteArrayOutputStream bos = new ByteArrayOutputStream();
 			ObjectOutputStream obj_out = new ObjectOutputStream(bos);
 			obj_out.writeObject(chunks);
@@ -57,16 +57,16 @@ public class CopyExtents {
 		SparseDedupFile ddf = (SparseDedupFile) dmf.getDedupFile();
 		try {
 			long written = 0;
-			long _spos = this.getChuckPosition(sstart);
-			long _dpos = this.getChuckPosition(dstart);
+			long _spos = sdf.getChuckPosition(sstart);
+			long _dpos = ddf.getChuckPosition(dstart);
 			Lock l = ddf.getWriteLock();
 			l.lock();
 			try {
 				while (written < len) {
 					long _sstart = written + sstart;
 					long _dstart = written + dstart;
-					_spos = this.getChuckPosition(_sstart);
-					_dpos = this.getChuckPosition(_dstart);
+					_spos = sdf.getChuckPosition(_sstart);
+					_dpos = ddf.getChuckPosition(_dstart);
 					long _rem = len - written;
 					int _so = (int) (_sstart - _spos);
 					int _do = (int) (_dstart - _dpos);
@@ -83,8 +83,8 @@ public class CopyExtents {
 					}
 					p.pos = _do;
 					int ep = p.pos + p.nlen;
-					if (ep > Main.CHUNK_LENGTH) {
-						p.nlen = Main.CHUNK_LENGTH - p.pos;
+					if (ep > ddf.getChunkLength()) {
+						p.nlen = ddf.getChunkLength() - p.pos;
 						p.hashloc[7] = 3;
 					}
 					try {
@@ -124,10 +124,4 @@ public class CopyExtents {
 
 	}
 
-	private long getChuckPosition(long location) {
-		long place = location / Main.CHUNK_LENGTH;
-		place = place * Main.CHUNK_LENGTH;
-		return place;
-	}
-
 }
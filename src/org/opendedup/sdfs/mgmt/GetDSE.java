@@ -5,6 +5,9 @@ import java.io.IOException;
 
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.AbstractChunkStore;
+import org.opendedup.sdfs.filestore.cloud.StagedChunkStore;
+import org.opendedup.sdfs.filestore.cloud.StagingUploader;
 import org.opendedup.sdfs.servers.HCServiceProxy;
 import org.opendedup.util.XMLUtils;
 import org.w3c.dom.Document;
@@ -43,6 +46,24 @@ public class GetDSE {
 			root.setAttribute("max-cache-size", Long.toString(HCServiceProxy.getMaxCacheSize()));
 			root.setAttribute("listen-encrypted",
 					Boolean.toString(Main.serverUseSSL));
+			AbstractChunkStore cs = HCServiceProxy.getChunkStore();
+			if (cs instanceof StagedChunkStore
+					&& ((StagedChunkStore) cs).getStagingUploader() != null) {
+				StagingUploader up = ((StagedChunkStore) cs)
+						.getStagingUploader();
+				root.setAttribute("upload-queue-depth",
+						Integer.toString(up.getQueueDepth()));
+				root.setAttribute("uploads-in-flight",
+						Integer.toString(up.getInFlight()));
+				root.setAttribute("max-uploads-in-flight",
+						Integer.toString(up.getMaxInFlight()));
+				root.setAttribute("upload-bandwidth",
+						Long.toString(up.getUploadBandwidth()));
+				root.setAttribute("bytes-uploaded",
+						Long.toString(up.getBytesUploaded()));
+				root.setAttribute("upload-failures",
+						Long.toString(up.getFailedUploads()));
+			}
 			return (Element) root.cloneNode(true);
 		} catch (Exception e) {
 			throw new IOException("request to fetch attributes failed because "
@@ -7,6 +7,7 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.io.MetaDataDedupFile;
 import org.w3c.dom.Document;
@@ -31,6 +32,16 @@ public class IOMonitor implements java.io.Serializable {
 	private int qos = -1;
 	private String iopProfile = "none";
 	private final MetaDataDedupFile mf;
+	private static final int DEDUP_WINDOW = 256;
+	// bytes and duplicate bytes of the last DEDUP_WINDOW buffers written
+	private transient int[] windowBytes;
+	private transient int[] windowDups;
+	private transient int windowPos;
+	private transient int windowCount;
+	private transient long windowByteSum;
+	private transient long windowDupSum;
+	private transient volatile boolean dedupBypassed;
+	private transient AtomicLong dedupBypassSwitches = new AtomicLong(0);
 
 	public IOMonitor(MetaDataDedupFile mf) {
 		this.mf = mf;
@@ -141,6 +152,94 @@ public class IOMonitor implements java.io.Serializable {
 		Main.volume.addDuplicateBytes(len, true);
 	}
 
+	/**
+	 * Adds a written buffer to the sliding window used to decide whether the
+	 * file looks up hashes before writing them. Once the window is full and
+	 * less than Main.inlineDedupBypassRatio of its bytes were duplicates the
+	 * file bypasses inline dedup and stages its buffers without hashing them.
+	 * The staged buffers are deduped in the background and keep adding
+	 * samples. Inline dedup is turned back on once the window dedups at twice
+	 * that ratio.
+	 *
+	 * @param len
+	 *            the bytes in the buffer
+	 * @param dups
+	 *            the bytes in the buffer that were already stored
+	 */
+	public synchronized void addDedupSample(int len, int dups) {
+		if (this.windowBytes == null) {
+			this.windowBytes = new int[DEDUP_WINDOW];
+			this.windowDups = new int[DEDUP_WINDOW];
+		}
+		if (this.windowCount == DEDUP_WINDOW) {
+			this.windowByteSum -= this.windowBytes[this.windowPos];
+			this.windowDupSum -= this.windowDups[this.windowPos];
+		} else
+			this.windowCount++;
+		this.windowBytes[this.windowPos] = len;
+		this.windowDups[this.windowPos] = dups;
+		this.windowByteSum += len;
+		this.windowDupSum += dups;
+		this.windowPos = (this.windowPos + 1) % DEDUP_WINDOW;
+		double threshold = Main.inlineDedupBypassRatio;
+		if (threshold <= 0 || this.windowCount < DEDUP_WINDOW) {
+			this.setDedupBypassed(false);
+			return;
+		}
+		double ratio = this.getWindowDedupRatio();
+		if (!this.dedupBypassed && ratio < threshold)
+			this.setDedupBypassed(true);
+		else if (this.dedupBypassed && ratio >= threshold * 2)
+			this.setDedupBypassed(false);
+	}
+
+	private void setDedupBypassed(boolean bypassed) {
+		if (this.dedupBypassed == bypassed)
+			return;
+		this.dedupBypassed = bypassed;
+		this.getDedupBypassSwitches().incrementAndGet();
+		if (SDFSLogger.isDebug())
+			SDFSLogger.getLog().debug(
+					(bypassed ? "bypassing" : "resuming")
+							+ " inline dedup for " + mf.getPath()
+							+ " window dedup ratio="
+							+ this.getWindowDedupRatio());
+	}
+
+	private AtomicLong getDedupBypassSwitches() {
+		if (this.dedupBypassSwitches == null)
+			this.dedupBypassSwitches = new AtomicLong(0);
+		return this.dedupBypassSwitches;
+	}
+
+	/**
+	 *
+	 * @return true if writes to the file are staged instead of deduped
+	 *         inline
+	 */
+	public boolean isInlineDedupBypassed() {
+		return this.dedupBypassed;
+	}
+
+	/**
+	 *
+	 * @return the fraction of bytes in the sliding window that were
+	 *         duplicates
+	 */
+	public synchronized double getWindowDedupRatio() {
+		if (this.windowByteSum == 0)
+			return 0;
+		return (double) this.windowDupSum / (double) this.windowByteSum;
+	}
+
+	/**
+	 *
+	 * @return the number of times the lookup was bypassed or resumed
+	 */
+	public long getInlineDedupBypassSwitches() {
+		return this.getDedupBypassSwitches().get();
+	}
+
 	public byte[] toByteArray() {
 		byte[] ip = this.iopProfile.getBytes();
 		ByteBuffer buf = ByteBuffer.wrap(new byte[8 + 8 + 8 + 8 + 4 + ip.length
@@ -207,6 +306,12 @@ public class IOMonitor implements java.io.Serializable {
 				Long.toString(this.bps.get() / (1024 * 1024)));
 		root.setAttribute("io-qos", Integer.toString(this.qos));
 		root.setAttribute("io-profile", this.iopProfile);
+		root.setAttribute("inline-dedup-bypassed",
+				Boolean.toString(this.dedupBypassed));
+		root.setAttribute("window-dedup-ratio",
+				Double.toString(this.getWindowDedupRatio()));
+		root.setAttribute("inline-dedup-bypass-switches",
+				Long.toString(this.getInlineDedupBypassSwitches()));
 		return root;
 	}
 
@@ -225,6 +330,10 @@ public class IOMonitor implements java.io.Serializable {
 		sb.append(this.readOperations);
 		sb.append("\"\n write-ops=\"");
 		sb.append(this.writeOperations);
+		sb.append("\"\n inline-dedup-bypassed=\"");
+		sb.append(this.dedupBypassed);
+		sb.append("\"\n window-dedup-ratio=\"");
+		sb.append(this.getWindowDedupRatio());
 		return sb.toString();
 	}
 
@@ -75,6 +75,7 @@ public class SDFSEvent implements java.io.Serializable {
 	public transient static final Type WSP = new Type("Set Write Speed");
 	public transient static final Type ARCHIVERESTORE = new Type("Restore from Glacier");
 	public transient static final Type WER = new Type("Write Error");
+	public transient static final Type SCRUB = new Type("Chunk Store Scrub");
 	public transient static final Level RUNNING = new Level("running");
 	public transient static final Level INFO = new Level("info");
 	public transient static final Level WARN = new Level("warning");
@@ -248,6 +249,11 @@ public class SDFSEvent implements java.io.Serializable {
 		return event;
 	}
 
+	public static SDFSEvent scrubEvent(String shortMsg) {
+		SDFSEvent event = new SDFSEvent(SCRUB, getTarget(), shortMsg, RUNNING);
+		return event;
+	}
+
 	public static SDFSEvent consistancyCheckEvent(String shortMsg, SDFSEvent evt) {
 		SDFSEvent event = new SDFSEvent(FSCK, getTarget(), shortMsg, RUNNING);
 		try {
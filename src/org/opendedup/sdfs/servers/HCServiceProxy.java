@@ -6,8 +6,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.opendedup.collections.AbstractHashesMap;
 import org.opendedup.collections.DataArchivedException;
@@ -49,6 +55,13 @@ public class HCServiceProxy {
 	private static EventBus eventBus = new EventBus();
 	public static ClusterSocket cs = null;
 	private static int cacheSize = 104857600 / Main.CHUNK_LENGTH;
+	private static final ThreadPoolExecutor batchWriter = new ThreadPoolExecutor(
+			Main.writeThreads, Main.writeThreads, 10, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(),
+			new ThreadPoolExecutor.CallerRunsPolicy());
+	static {
+		batchWriter.allowCoreThreadTimeOut(true);
+	}
 	private static final LoadingCache<ByteArrayWrapper, byte[]> chunks = CacheBuilder
 			.newBuilder().maximumSize(cacheSize).concurrencyLevel(72)
 			.build(new CacheLoader<ByteArrayWrapper, byte[]>() {
@@ -102,6 +115,39 @@ public class HCServiceProxy {
 	public static HashChunk fetchHashChunk(byte[] hash) throws IOException, DataArchivedException {
 		return hcService.fetchChunk(hash);
 	}
+
+	/**
+	 * Orders chunks by their position in the local chunk store so they can be
+	 * read in one pass over the store instead of in the order they are used.
+	 * Remote chunk stores keep the given order.
+	 * 
+	 * @param hashes
+	 *            the hashes of the chunks
+	 * @return the indexes of the hashes in the order to fetch them
+	 */
+	public static Integer[] getFetchOrder(List<byte[]> hashes) {
+		Integer[] order = new Integer[hashes.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		if (!Main.chunkStoreLocal || order.length < 2)
+			return order;
+		final long[] pos = new long[order.length];
+		try {
+			AbstractHashesMap m = hcService.getHashesMap();
+			for (int i = 0; i < pos.length; i++)
+				pos[i] = m.get(hashes.get(i));
+		} catch (Exception e) {
+			SDFSLogger.getLog().debug("unable to look up chunk positions", e);
+			return order;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(pos[a], pos[b]);
+			}
+		});
+		return order;
+	}
 	
 	public static synchronized long getCacheSize() {
 		if (Main.chunkStoreLocal) {
@@ -311,6 +357,16 @@ public class HCServiceProxy {
 
 	public static byte[] writeChunk(byte[] hash, byte[] aContents,
 			byte[] hashloc) throws IOException {
+		if (Main.chunkStoreLocal) {
+			// already found by batchHashExists
+			if (hashloc[0] == 1)
+				return hashloc;
+			try {
+				return writeChunk(hash, aContents, true);
+			} catch (HashtableFullException e) {
+				throw new IOException(e);
+			}
+		}
 
 		int tries = 0;
 		while (true) {
@@ -540,8 +596,25 @@ public class HCServiceProxy {
 	public static List<HashLocPair> batchHashExists(
 			List<HashLocPair> hashes) throws IOException {
 		if (Main.chunkStoreLocal) {
-			throw new IOException("not implemented for localstore");
-
+			ArrayList<HashLocPair> al = new ArrayList<HashLocPair>(
+					hashes.size());
+			for (HashLocPair p : hashes) {
+				if (p != null)
+					al.add(p);
+			}
+			byte[][] keys = new byte[al.size()][];
+			for (int i = 0; i < keys.length; i++)
+				keys[i] = al.get(i).hash;
+			boolean[] found = hcService.hashesExist(keys);
+			for (int i = 0; i < found.length; i++) {
+				HashLocPair p = al.get(i);
+				p.resetHashLoc();
+				if (found[i]) {
+					p.hashloc[0] = 1;
+					p.hashloc[1] = -2;
+				}
+			}
+			return hashes;
 		} else {
 			BatchHashExistsCmd cmd = new BatchHashExistsCmd(hashes);
 			cmd.executeCmd(socket);
@@ -549,11 +622,45 @@ public class HCServiceProxy {
 		}
 	}
 
+	/**
+	 * Writes every chunk in the list that was not found by batchHashExists.
+	 * For local chunk stores the writes are run in parallel.
+	 */
 	public static List<HashLocPair> batchWriteHash(
 			List<HashLocPair> hashes) throws IOException {
 		if (Main.chunkStoreLocal) {
-			throw new IOException("not implemented for localstore");
-
+			ArrayList<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(
+					hashes.size());
+			ArrayList<HashLocPair> written = new ArrayList<HashLocPair>(
+					hashes.size());
+			for (final HashLocPair p : hashes) {
+				if (p == null || p.hashloc[0] == 1)
+					continue;
+				written.add(p);
+				futures.add(batchWriter.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						return writeChunk(p.hash, p.data, true);
+					}
+				}));
+			}
+			try {
+				for (int i = 0; i < futures.size(); i++) {
+					if (Main.writeTimeoutSeconds > 0)
+						written.get(i).hashloc = futures.get(i).get(
+								Main.writeTimeoutSeconds, TimeUnit.SECONDS);
+					else
+						written.get(i).hashloc = futures.get(i).get();
+				}
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			} catch (Exception e) {
+				throw new IOException(e);
+			} finally {
+				for (Future<byte[]> f : futures)
+					f.cancel(false);
+			}
+			return hashes;
 		} else {
 			BatchWriteHashCmd cmd = new BatchWriteHashCmd(hashes);
 			cmd.executeCmd(socket);
@@ -132,6 +132,10 @@ public class HashChunkService implements HashChunkServiceInterface {
 		return exists;
 	}
 
+	public boolean[] hashesExist(byte[][] hashes) throws IOException {
+		return hs.hashesExist(hashes);
+	}
+
 	public HashChunk fetchChunk(byte[] hash) throws IOException, DataArchivedException {
 		HashChunk hashChunk = hs.getHashChunk(hash);
 		byte[] data = hashChunk.getData();
@@ -35,6 +35,8 @@ public interface HashChunkServiceInterface {
 	public abstract boolean hashExists(byte[] hash) throws IOException,
 			HashtableFullException;
 
+	public abstract boolean[] hashesExist(byte[][] hashes) throws IOException;
+
 	public abstract HashChunk fetchChunk(byte[] hash) throws IOException,DataArchivedException;
 
 	public abstract byte getHashRoute(byte[] hash);
@@ -10,7 +10,9 @@ import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.filestore.DedupFileStore;
 import org.opendedup.sdfs.filestore.MetaFileStore;
 import org.opendedup.sdfs.filestore.gc.StandAloneGCScheduler;
+import org.opendedup.sdfs.io.PostProcessDeduper;
 import org.opendedup.sdfs.io.SparseDedupFile;
+import org.opendedup.sdfs.io.WriteIntentLog;
 import org.opendedup.sdfs.mgmt.MgmtWebServer;
 import org.opendedup.sdfs.network.NetworkDSEServer;
 import org.opendedup.sdfs.notification.SDFSEvent;
@@ -79,7 +81,8 @@ public class SDFSService {
 
 			Main.pFullSched = new StandAloneGCScheduler();
 		}
-		
+		PostProcessDeduper.init();
+		WriteIntentLog.init();
 
 		Main.mountEvent.endEvent("Volume Mounted");
 		try {
@@ -106,9 +109,11 @@ public class SDFSService {
 			Main.pFullSched = null;
 		} catch (Exception e) {
 		}
+		PostProcessDeduper.close();
 		SDFSLogger.getLog().info("Flushing and Closing Write Caches");
 		DedupFileStore.close();
 		SDFSLogger.getLog().info("Write Caches Flushed and Closed");
+		WriteIntentLog.close();
 		SDFSLogger.getLog().info("Committing open Files");
 		MetaFileStore.close();
 		SDFSLogger.getLog().info("Open File Committed");
@@ -0,0 +1,256 @@
+package org.opendedup.util;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+
+/**
+ *
+ * @author Sam Silverberg Size classed pool of zeroed buffers built on
+ *         DirectBufPool. Buffers are leased by an owner and returned with
+ *         release. The pool never holds more than max-size bytes. When it is
+ *         full, lease hands out a buffer that is not pooled and becomes garbage
+ *         once the owner drops it.
+ *
+ *         Each lease holds a weak reference to its owner. If the owner is
+ *         collected without releasing the buffer, the buffer is reclaimed and
+ *         counted as a leak. Leases held longer than the leak age are logged
+ *         once.
+ *
+ */
+public class BufferPool {
+	private static final long LEAK_CHECK_INTERVAL = 60 * 1000;
+	private static final long LEAK_AGE = 10 * 60 * 1000;
+	private static BufferPool writePool = null;
+	private final long maxSize;
+	private final boolean direct;
+	private final ConcurrentHashMap<Integer, DirectBufPool> classes = new ConcurrentHashMap<Integer, DirectBufPool>();
+	private final Map<ByteBuffer, Lease> leases = Collections
+			.synchronizedMap(new IdentityHashMap<ByteBuffer, Lease>());
+	private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+	private final AtomicLong allocated = new AtomicLong(0);
+	private final AtomicLong leased = new AtomicLong(0);
+	private final AtomicLong overflows = new AtomicLong(0);
+	private final AtomicLong leaks = new AtomicLong(0);
+	private final Thread checker;
+	private volatile boolean closed = false;
+
+	private static class Lease extends WeakReference<Object> {
+		final ByteBuffer buf;
+		final long time = System.currentTimeMillis();
+		final String owner;
+		boolean reported = false;
+
+		Lease(Object owner, ByteBuffer buf, ReferenceQueue<Object> q) {
+			super(owner, q);
+			this.buf = buf;
+			this.owner = owner.getClass().getSimpleName();
+		}
+	}
+
+	/**
+	 *
+	 * @return the pool used for file write buffers
+	 */
+	public static synchronized BufferPool getWriteBufferPool() {
+		if (writePool == null)
+			writePool = new BufferPool(Main.writeBufferPoolSize, false);
+		return writePool;
+	}
+
+	/**
+	 *
+	 * @param maxSize
+	 *            the maximum number of bytes held by the pool
+	 * @param direct
+	 *            true to pool direct buffers
+	 */
+	public BufferPool(long maxSize, boolean direct) {
+		this.maxSize = maxSize;
+		this.direct = direct;
+		this.checker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					try {
+						Thread.sleep(LEAK_CHECK_INTERVAL);
+					} catch (InterruptedException e) {
+						break;
+					}
+					checkLeaks(LEAK_AGE);
+				}
+			}
+		}, "buffer-pool-leak-check");
+		this.checker.setDaemon(true);
+		this.checker.start();
+		SDFSLogger.getLog().info(
+				"buffer pool created with max-size=" + maxSize + " direct="
+						+ direct);
+	}
+
+	private DirectBufPool getPool(int size) {
+		DirectBufPool p = classes.get(size);
+		if (p == null) {
+			synchronized (classes) {
+				p = classes.get(size);
+				if (p == null) {
+					p = new DirectBufPool(size, direct);
+					// DirectBufPool starts with one buffer
+					allocated.addAndGet(size);
+					classes.put(size, p);
+				}
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Leases a zeroed buffer.
+	 *
+	 * @param size
+	 *            the capacity of the buffer
+	 * @param owner
+	 *            the object the buffer belongs to
+	 * @return the buffer
+	 * @throws IOException
+	 */
+	public ByteBuffer lease(int size, Object owner) throws IOException {
+		this.reclaim();
+		DirectBufPool p = this.getPool(size);
+		ByteBuffer b = p.pollObject();
+		if (b == null) {
+			if (allocated.addAndGet(size) > maxSize) {
+				allocated.addAndGet(-size);
+				overflows.incrementAndGet();
+				return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer
+						.allocate(size);
+			}
+			b = p.makeObject();
+		} else {
+			b.clear();
+			if (b.hasArray()) {
+				Arrays.fill(b.array(), (byte) 0);
+			} else {
+				while (b.remaining() >= 8)
+					b.putLong(0);
+				while (b.hasRemaining())
+					b.put((byte) 0);
+				b.clear();
+			}
+		}
+		leases.put(b, new Lease(owner, b, collected));
+		leased.addAndGet(size);
+		return b;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers that were not leased from this
+	 * pool are ignored.
+	 *
+	 * @param b
+	 *            the buffer
+	 */
+	public void release(ByteBuffer b) {
+		Lease l = leases.remove(b);
+		if (l == null)
+			return;
+		l.clear();
+		this.recycle(b);
+	}
+
+	private void recycle(ByteBuffer b) {
+		leased.addAndGet(-b.capacity());
+		if (closed) {
+			allocated.addAndGet(-b.capacity());
+			return;
+		}
+		b.clear();
+		this.getPool(b.capacity()).returnObject(b);
+	}
+
+	private void reclaim() {
+		Lease l;
+		while ((l = (Lease) collected.poll()) != null) {
+			if (leases.remove(l.buf) == l) {
+				leaks.incrementAndGet();
+				SDFSLogger.getLog().warn(
+						"reclaimed buffer of " + l.buf.capacity()
+								+ " bytes that was not released by "
+								+ l.owner);
+				this.recycle(l.buf);
+			}
+		}
+	}
+
+	/**
+	 * Reclaims buffers whose owners were collected and logs leases that have
+	 * been held for longer than maxAge.
+	 *
+	 * @param maxAge
+	 *            the lease age in milliseconds
+	 */
+	public void checkLeaks(long maxAge) {
+		this.reclaim();
+		long now = System.currentTimeMillis();
+		ArrayList<Lease> old = new ArrayList<Lease>();
+		synchronized (leases) {
+			for (Lease l : leases.values()) {
+				if (!l.reported && now - l.time > maxAge) {
+					l.reported = true;
+					old.add(l);
+				}
+			}
+		}
+		for (Lease l : old) {
+			SDFSLogger.getLog().warn(
+					"buffer of " + l.buf.capacity() + " bytes has been held by "
+							+ l.owner + " for " + ((now - l.time) / 1000)
+							+ " seconds");
+		}
+		if (SDFSLogger.isDebug())
+			SDFSLogger.getLog().debug(
+					"buffer pool allocated=" + allocated.get() + " leased="
+							+ leased.get() + " overflows=" + overflows.get()
+							+ " leaks=" + leaks.get());
+	}
+
+	public long getMaxSize() {
+		return this.maxSize;
+	}
+
+	public long getAllocated() {
+		return this.allocated.get();
+	}
+
+	public long getLeased() {
+		return this.leased.get();
+	}
+
+	public long getOverflows() {
+		return this.overflows.get();
+	}
+
+	public long getLeaks() {
+		return this.leaks.get();
+	}
+
+	public void close() {
+		this.closed = true;
+		this.checker.interrupt();
+		for (DirectBufPool p : classes.values())
+			p.close();
+		classes.clear();
+	}
+
+}
@@ -49,4 +49,40 @@ public class ByteUtils {
 		return map;
 	}
 
+	/**
+	 * Checks if a range of an array is all zeros. The range is read eight bytes
+	 * at a time and the check stops at the first word that is not zero.
+	 *
+	 * @param b
+	 *            the array
+	 * @param off
+	 *            the start of the range
+	 * @param len
+	 *            the length of the range
+	 * @return true if every byte in the range is 0
+	 */
+	public static boolean isZero(byte[] b, int off, int len) {
+		ByteBuffer buf = ByteBuffer.wrap(b);
+		int end = off + len;
+		int i = off;
+		for (; i + 32 <= end; i += 32) {
+			if ((buf.getLong(i) | buf.getLong(i + 8) | buf.getLong(i + 16) | buf
+					.getLong(i + 24)) != 0)
+				return false;
+		}
+		for (; i + 8 <= end; i += 8) {
+			if (buf.getLong(i) != 0)
+				return false;
+		}
+		for (; i < end; i++) {
+			if (b[i] != 0)
+				return false;
+		}
+		return true;
+	}
+
+	public static boolean isZero(byte[] b) {
+		return isZero(b, 0, b.length);
+	}
+
 }
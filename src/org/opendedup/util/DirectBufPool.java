@@ -13,12 +13,26 @@ public class DirectBufPool {
 	private ConcurrentLinkedQueue<ByteBuffer> passiveObjects = new ConcurrentLinkedQueue<ByteBuffer>();
 	private int size = 0;
 	private boolean closed = false;
+	private boolean direct = true;
 
 	public DirectBufPool(int sz) {
 		this.size = sz;
 		this.populatePool();
 	}
 
+	/**
+	 * 
+	 * @param sz
+	 *            the size of the buffers in the pool
+	 * @param direct
+	 *            false to pool heap buffers instead of direct buffers
+	 */
+	public DirectBufPool(int sz, boolean direct) {
+		this.size = sz;
+		this.direct = direct;
+		this.populatePool();
+	}
+
 	public void populatePool() {
 		for (int i = 0; i < poolSize; i++) {
 			try {
@@ -45,6 +59,17 @@ public class DirectBufPool {
 		return hc;
 	}
 
+	/**
+	 * 
+	 * @return a pooled buffer or null if the pool is empty
+	 * @throws IOException
+	 */
+	public ByteBuffer pollObject() throws IOException {
+		if (this.closed)
+			throw new IOException("Buf Pool closed");
+		return this.passiveObjects.poll();
+	}
+
 	public void returnObject(ByteBuffer buf) {
 		if (!this.closed) {
 			buf.position(0);
@@ -56,7 +81,10 @@ public class DirectBufPool {
 	}
 
 	public ByteBuffer makeObject() {
-		return ByteBuffer.allocateDirect(size);
+		if (this.direct)
+			return ByteBuffer.allocateDirect(size);
+		else
+			return ByteBuffer.allocate(size);
 	}
 
 	public void destroyObject(ByteBuffer buf) {